@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.api;
+
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stops bundles which conflict with or are superseded by a UI module, off the thread which found them, as a bundle
+ * cannot be stopped from its own start.
+ * <p>
+ * Stops run one at a time, lowest bundle ID first. A bundle already waiting to be stopped is not queued again, as
+ * the same conflict is typically found several times while one module deploys. Each time the queue empties, how many
+ * bundles it has stopped and the longest wait for a stop so far are logged.
+ */
+class BundleStopQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BundleStopQueue.class);
+
+    private static final BundleStopQueue SHARED = new BundleStopQueue(Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "brooklyn-ui-module-bundle-stopper");
+        thread.setDaemon(true);
+        return thread;
+    }));
+
+    private final Executor executor;
+    private final ConcurrentSkipListMap<Long, Stop> pending = new ConcurrentSkipListMap<>();
+    private final LongAdder requested = new LongAdder();
+    private final LongAdder stopped = new LongAdder();
+    private final AtomicLong lastLatencyMillis = new AtomicLong();
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+    BundleStopQueue(final Executor executor) {
+        this.executor = executor;
+    }
+
+    static BundleStopQueue get() {
+        return SHARED;
+    }
+
+    /**
+     * Queues the bundle to be stopped, unless it is queued already.
+     *
+     * @return Whether it was queued
+     */
+    boolean stop(final Bundle bundle, final String message) {
+        requested.increment();
+        if (pending.putIfAbsent(bundle.getBundleId(), new Stop(bundle, message)) != null) {
+            LOG.trace("Not queueing UiModules {} again; already waiting to stop", message);
+            return false;
+        }
+        executor.execute(this::stopNext);
+        return true;
+    }
+
+    private void stopNext() {
+        final Map.Entry<Long, Stop> next = pending.pollFirstEntry();
+        if (next == null) {
+            return;
+        }
+        final Stop stop = next.getValue();
+        try {
+            stop.bundle.stop();
+            stopped.increment();
+        } catch (Exception e) {
+            LOG.warn("UiModules: error "+stop.message+": "+e, e);
+        }
+        final long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stop.queuedNanos);
+        lastLatencyMillis.set(latency);
+        maxLatencyMillis.accumulateAndGet(latency, Math::max);
+        final int waiting = pending.size();
+        LOG.debug("UiModules: done {} after {}ms; {} more bundles waiting to stop", stop.message, latency, waiting);
+        if (waiting == 0) {
+            LOG.info("UiModules: no more bundles waiting to stop; {} of {} requested stops done, longest wait so far {}ms",
+                    stopped.sum(), requested.sum(), maxLatencyMillis.get());
+        }
+    }
+
+    /**
+     * @return The number of bundles waiting to be stopped
+     */
+    int getQueueDepth() {
+        return pending.size();
+    }
+
+    long getRequested() {
+        return requested.sum();
+    }
+
+    long getStopped() {
+        return stopped.sum();
+    }
+
+    /**
+     * @return How long the last stop took from being queued to the bundle stopping, in milliseconds
+     */
+    long getLastLatencyMillis() {
+        return lastLatencyMillis.get();
+    }
+
+    long getMaxLatencyMillis() {
+        return maxLatencyMillis.get();
+    }
+
+    private static class Stop {
+        private final Bundle bundle;
+        private final String message;
+        private final long queuedNanos = System.nanoTime();
+
+        Stop(final Bundle bundle, final String message) {
+            this.bundle = bundle;
+            this.message = message;
+        }
+    }
+}
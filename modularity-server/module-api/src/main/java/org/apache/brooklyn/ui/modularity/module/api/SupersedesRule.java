@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.api;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import java.util.regex.Pattern;
+
+/**
+ * One entry of {@link UiModule#getSupersedesBundles()}, {@code bundle-regex} or {@code bundle-regex:version-regex},
+ * compiled once rather than on every bundle it is checked against.
+ */
+class SupersedesRule {
+
+    // a bundle name with no regex syntax but escaped dots, eg org\.apache\.brooklyn\.ui\.home
+    private static final Pattern LITERAL = Pattern.compile("[\\w-]+(?:\\\\\\.[\\w-]+)*");
+    private static final LoadingCache<String, SupersedesRule> RULES = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            .build(CacheLoader.from(SupersedesRule::new));
+
+    private final Pattern name;
+    private final Pattern version;
+    private final String literalName;
+
+    private SupersedesRule(final String rule) {
+        String bn = rule;
+        String versionRegex = null;
+        final int split = bn.indexOf(':');
+        if (split >= 0) {
+            versionRegex = bn.substring(split + 1);
+            bn = bn.substring(0, split);
+        }
+        this.name = Pattern.compile(bn);
+        this.version = versionRegex == null ? null : Pattern.compile(versionRegex);
+        this.literalName = LITERAL.matcher(bn).matches() ? bn.replace("\\.", ".") : null;
+    }
+
+    static SupersedesRule of(final String rule) {
+        return RULES.getUnchecked(rule);
+    }
+
+    boolean matches(final String symbolicName, final String bundleVersion) {
+        return symbolicName != null && name.matcher(symbolicName).matches()
+                && (version == null || version.matcher(bundleVersion).matches());
+    }
+
+    /**
+     * @return The only symbolic name the rule can match, or null if it is a pattern
+     */
+    String getLiteralName() {
+        return literalName;
+    }
+}
@@ -18,9 +18,12 @@
  */
 package org.apache.brooklyn.ui.modularity.module.api;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
+import com.google.common.collect.ImmutableList;
+
 import org.apache.brooklyn.ui.modularity.module.api.internal.UiModuleImpl;
 
 public interface UiModule {
@@ -82,6 +85,9 @@ public interface UiModule {
         return DEFAULT_ORDER;
     }
 
+    /**
+     * @return The bundle the module comes from, as {@code symbolicName:version}, or null if unknown
+     */
     default String getBundleId(){
         return null;
     }
@@ -91,5 +97,16 @@ public interface UiModule {
         public static UiModule copyUiModule(UiModule src) {
             return UiModuleImpl.copyOf(src);
         }
+
+        /**
+         * @return The names a module's bundle can be looked up by: its symbolic name alone, and the bundle ID in full
+         */
+        public static List<String> bundleNames(String bundleId) {
+            if (bundleId == null) {
+                return Collections.emptyList();
+            }
+            final int version = bundleId.indexOf(':');
+            return version < 0 ? ImmutableList.of(bundleId) : ImmutableList.of(bundleId.substring(0, version), bundleId);
+        }
     }
 }
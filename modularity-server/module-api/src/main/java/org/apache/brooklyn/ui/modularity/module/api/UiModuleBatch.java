@@ -0,0 +1,273 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.api;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves UI module bundles deploying together, such as a whole UI being upgraded, as one set, rather than each
+ * stopping whatever it conflicts with as it comes, which may be another newcomer about to be superseded itself.
+ * <p>
+ * Bundles are collected until none has arrived for {@value #WINDOW_PROPERTY} milliseconds. Then, with the bundles
+ * already on their context paths and those any of them supersedes, a bundle superseded by any other loses, as does
+ * one on the same context path as a later installed bundle whose module {@link UiModule#getStopExisting() stops
+ * existing} ones. The losers are stopped together, and the winners then register their modules. With the property
+ * unset, as by default, each module resolves its own conflicts as it starts.
+ */
+class UiModuleBatch {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UiModuleBatch.class);
+
+    static final String WINDOW_PROPERTY = "brooklyn.ui.module.batchMillis";
+
+    private static final UiModuleBatch SHARED = new UiModuleBatch(Long.getLong(WINDOW_PROPERTY, 0));
+
+    private final long windowMillis;
+    private ScheduledExecutorService scheduler;
+    private final Map<Long, Candidate> pending = new TreeMap<>();
+    private final Map<Long, CompletableFuture<Boolean>> decisions = new HashMap<>();
+    private ScheduledFuture<?> flush;
+
+    UiModuleBatch(final long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    static UiModuleBatch get() {
+        return SHARED;
+    }
+
+    boolean isEnabled() {
+        return windowMillis > 0;
+    }
+
+    /**
+     * Adds a deploying UI module to the current batch, unless it is in one already.
+     */
+    synchronized void offer(final Bundle bundle, final UiModule uiModule) {
+        if (decisions.containsKey(bundle.getBundleId())) {
+            return;
+        }
+        decisions.put(bundle.getBundleId(), new CompletableFuture<>());
+        pending.put(bundle.getBundleId(), new Candidate(bundle, uiModule));
+        if (flush != null) {
+            flush.cancel(false);
+        }
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "brooklyn-ui-module-batch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        flush = scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Whether the module should register, once its batch is resolved; the module is added to the current
+     * batch if it is not in one already
+     */
+    synchronized CompletableFuture<Boolean> decide(final Bundle bundle, final UiModule uiModule) {
+        offer(bundle, uiModule);
+        final CompletableFuture<Boolean> decision = decisions.get(bundle.getBundleId());
+        if (decision.isDone()) {
+            decisions.remove(bundle.getBundleId());
+        }
+        return decision;
+    }
+
+    /**
+     * Drops what is known of a bundle whose deployment ended or failed, so the next deployment of it is decided
+     * afresh; anything still waiting on the old decision is told not to register.
+     */
+    synchronized void forget(final long bundleId) {
+        pending.remove(bundleId);
+        final CompletableFuture<Boolean> decision = decisions.remove(bundleId);
+        if (decision != null) {
+            decision.complete(false);
+        }
+    }
+
+    private void flush() {
+        final List<Candidate> batch;
+        final Map<Long, CompletableFuture<Boolean>> batchDecisions = new LinkedHashMap<>();
+        synchronized (this) {
+            batch = ImmutableList.copyOf(pending.values());
+            pending.clear();
+            flush = null;
+            for (final Candidate candidate : batch) {
+                batchDecisions.put(candidate.bundleId, decisions.get(candidate.bundleId));
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        final long start = System.nanoTime();
+        final List<Candidate> all = new ArrayList<>(batch);
+        try {
+            all.addAll(incumbents(batch));
+        } catch (Exception e) {
+            LOG.warn("Cannot find UI modules already deployed on the paths of "+batch.size()+" new ones; resolving the new ones alone: "+e, e);
+        }
+        final Set<Long> losers = resolve(all);
+        for (final Candidate candidate : all) {
+            if (losers.contains(candidate.bundleId) && candidate.bundle != null) {
+                BundleStopQueue.get().stop(candidate.bundle, "stopping bundle "+candidate.symbolicName+" ["+candidate.bundleId+"]; "
+                        + "it lost to another UI module deployed with it on "+candidate.path);
+            }
+        }
+        LOG.debug("Resolved {} UI modules deploying together, with {} already deployed, in {}ms: {} stopped",
+                batch.size(), all.size() - batch.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), losers.size());
+        synchronized (this) {
+            for (final Map.Entry<Long, CompletableFuture<Boolean>> decision : batchDecisions.entrySet()) {
+                if (decisions.get(decision.getKey()) != decision.getValue()) {
+                    // forgotten while resolving, so already told not to register
+                    continue;
+                }
+                decision.getValue().complete(!losers.contains(decision.getKey()));
+                if (losers.contains(decision.getKey())) {
+                    // a loser never starts, so will not ask again
+                    decisions.remove(decision.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The bundles already deployed on the context paths of the batch, and those the batch supersedes
+     */
+    private static Collection<Candidate> incumbents(final List<Candidate> batch) {
+        final Map<Long, Candidate> result = new TreeMap<>();
+        for (final Candidate candidate : batch) {
+            final UiModuleIndex index = UiModuleIndex.get(candidate.bundle.getBundleContext());
+            for (final long id : index.getWebBundles(candidate.path)) {
+                addIncumbent(result, batch, candidate, index, id, candidate.path);
+            }
+            if (candidate.uiModule != null) {
+                for (final long id : index.getSuperseded(candidate.uiModule)) {
+                    addIncumbent(result, batch, candidate, index, id, null);
+                }
+            }
+        }
+        return result.values();
+    }
+
+    private static void addIncumbent(final Map<Long, Candidate> result, final List<Candidate> batch, final Candidate candidate,
+                                     final UiModuleIndex index, final long id, final String path) {
+        final Bundle incumbent = candidate.bundle.getBundleContext().getBundle(id);
+        if (incumbent == null || result.containsKey(id) || batch.stream().anyMatch(c -> c.bundleId == id)) {
+            return;
+        }
+        final Collection<UiModule> modules = index.getModules(id);
+        final UiModule uiModule = modules.isEmpty() ? null : modules.iterator().next();
+        result.put(id, new Candidate(incumbent, uiModule, path != null ? path : uiModule != null ? uiModule.getPath() : null));
+    }
+
+    /**
+     * @return The IDs of the bundles which lose: any superseded by another, and of the rest any on the same context
+     * path as a later installed one which stops existing modules
+     */
+    static Set<Long> resolve(final Collection<Candidate> candidates) {
+        final Set<Long> losers = new TreeSet<>();
+        for (final Candidate superseding : candidates) {
+            for (final String spec : superseding.supersedes) {
+                final SupersedesRule rule = SupersedesRule.of(spec);
+                for (final Candidate other : candidates) {
+                    if (other != superseding && rule.matches(other.symbolicName, other.version)) {
+                        losers.add(other.bundleId);
+                    }
+                }
+            }
+        }
+        final Set<Long> superseded = ImmutableSet.copyOf(losers);
+        for (final Candidate candidate : candidates) {
+            if (superseded.contains(candidate.bundleId)) {
+                continue;
+            }
+            for (final Candidate later : candidates) {
+                if (later.stopExisting && later.bundleId > candidate.bundleId && later.path.equals(candidate.path)
+                        && !superseded.contains(later.bundleId)) {
+                    losers.add(candidate.bundleId);
+                    break;
+                }
+            }
+        }
+        return losers;
+    }
+
+    /**
+     * A bundle with the module it serves, if known, and the context path it serves it on.
+     */
+    static class Candidate {
+        private final long bundleId;
+        private final UiModule uiModule;
+        private final Bundle bundle;
+        private final String symbolicName;
+        private final String version;
+        private final String path;
+        private final Collection<String> supersedes;
+        private final boolean stopExisting;
+
+        Candidate(final Bundle bundle, final UiModule uiModule) {
+            this(bundle, uiModule, uiModule.getPath());
+        }
+
+        Candidate(final Bundle bundle, final UiModule uiModule, final String path) {
+            this(bundle.getBundleId(), bundle, uiModule, bundle.getSymbolicName(), bundle.getVersion().toString(), path,
+                    uiModule == null || uiModule.getSupersedesBundles() == null ? ImmutableList.of() : uiModule.getSupersedesBundles(),
+                    uiModule == null || uiModule.getStopExisting());
+        }
+
+        Candidate(final long bundleId, final Bundle bundle, final String symbolicName, final String version,
+                  final String path, final Collection<String> supersedes) {
+            this(bundleId, bundle, null, symbolicName, version, path, supersedes, true);
+        }
+
+        Candidate(final long bundleId, final Bundle bundle, final UiModule uiModule, final String symbolicName,
+                  final String version, final String path, final Collection<String> supersedes, final boolean stopExisting) {
+            this.bundleId = bundleId;
+            this.bundle = bundle;
+            this.uiModule = uiModule;
+            this.symbolicName = symbolicName;
+            this.version = version;
+            // as for conflicts between single modules, "" and "/" are the same path
+            this.path = path == null || path.isEmpty() ? "/" : path;
+            this.supersedes = supersedes;
+            this.stopExisting = stopExisting;
+        }
+    }
+}
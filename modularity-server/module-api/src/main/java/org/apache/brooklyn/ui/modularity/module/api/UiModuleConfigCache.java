@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.api;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The parsed {@code ui-module/config.yaml} of each UI bundle, shared by the servlet context and web listeners so
+ * it is read once per version of the bundle rather than on every deployment event.
+ * <p>
+ * It holds the parsed YAML rather than the {@link UiModule}, as each deployment must create a module with an ID of
+ * its own, in case one deployment's module is unregistered after the next one's is registered.
+ */
+class UiModuleConfigCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UiModuleConfigCache.class);
+
+    private static final Cache<String, Map<String, ?>> CONFIGS = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            .build();
+
+    /**
+     * @return The parsed config of the bundle, read from the source only if not cached for this version of it
+     */
+    static Map<String, ?> get(final Bundle bundle, final String path, final Callable<InputStream> source) {
+        // an updated bundle is modified, so has a new key
+        final String key = bundle.getBundleId() + "@" + bundle.getLastModified();
+        try {
+            return CONFIGS.get(key, () -> parse(path, source));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Cannot read configuration of module on path [" + path + "]: " + e.getCause(), e.getCause());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, ?> parse(final String path, final Callable<InputStream> source) throws Exception {
+        try (InputStream is = source.call()) {
+            if (is == null) {
+                throw new RuntimeException(String.format("Module on path [%s] will not be registered as it does not have any configuration", path));
+            }
+            final Map<String, ?> config = (Map<String, ?>) new Yaml().load(is);
+            LOG.debug("Parsed Brooklyn UI module configuration for {}; {}", path, config);
+            return config;
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read configuration of module on path [" + path + "]: " + e, e);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.api;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.apache.karaf.web.WebBundle;
+import org.apache.karaf.web.WebContainerService;
+import org.ops4j.pax.web.service.spi.WebListener;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What {@link UiModuleListener} needs to resolve conflicts between UI modules, kept up to date by listeners rather
+ * than worked out by walking every web bundle, service and installed bundle each time a module starts:
+ * <ul>
+ *     <li>the web bundles on each context path;</li>
+ *     <li>the {@link UiModule} services of each bundle;</li>
+ *     <li>the symbolic name and version of each installed bundle, by name.</li>
+ * </ul>
+ * One index is shared by all UI modules, opened on the module API bundle.
+ */
+class UiModuleIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UiModuleIndex.class);
+
+    private static UiModuleIndex shared;
+
+    private final ConcurrentHashMap<String, Set<Long>> webBundlesByPath = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, String> webPaths = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Set<UiModule>> modules = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, String[]> bundles = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<Long>> bundlesByName = new ConcurrentHashMap<>();
+
+    private BundleContext context;
+    private SynchronousBundleListener bundleListener;
+    private ServiceTracker<UiModule, TrackedModule> moduleTracker;
+    private ServiceRegistration<WebListener> webListener;
+
+    /**
+     * @return The shared index, opened if it is not yet or its bundle has restarted
+     */
+    static synchronized UiModuleIndex get(final BundleContext fallback) {
+        final Bundle own = FrameworkUtil.getBundle(UiModuleIndex.class);
+        final BundleContext context = own != null && own.getBundleContext() != null ? own.getBundleContext() : fallback;
+        if (shared == null || shared.context != context) {
+            if (shared != null) {
+                shared.close();
+            }
+            shared = new UiModuleIndex();
+            shared.open(context);
+        }
+        return shared;
+    }
+
+    private void open(final BundleContext context) {
+        this.context = context;
+        // listen first, then add what is there already, so nothing in between is missed
+        bundleListener = this::bundleChanged;
+        context.addBundleListener(bundleListener);
+        for (final Bundle bundle : context.getBundles()) {
+            bundleInstalled(bundle.getBundleId(), bundle.getSymbolicName(), bundle.getVersion().toString());
+        }
+
+        webListener = context.registerService(WebListener.class, event -> {
+            if (event.getContextPath() != null) {
+                webDeployed(event.getBundleId(), event.getContextPath());
+            }
+        }, null);
+        final ServiceReference<WebContainerService> webReference = context.getServiceReference(WebContainerService.class);
+        if (webReference != null) {
+            try {
+                final WebContainerService web = context.getService(webReference);
+                if (web != null) {
+                    for (final WebBundle webBundle : web.list()) {
+                        webDeployed(webBundle.getBundleId(), webBundle.getContextPath());
+                    }
+                }
+            } catch (Exception e) {
+                LOG.warn("Cannot list web bundles; context path conflicts will only be found for bundles deployed from now: "+e, e);
+            } finally {
+                context.ungetService(webReference);
+            }
+        }
+
+        moduleTracker = new ServiceTracker<>(context, UiModule.class, new ServiceTrackerCustomizer<UiModule, TrackedModule>() {
+            @Override
+            public TrackedModule addingService(final ServiceReference<UiModule> reference) {
+                final UiModule uiModule = context.getService(reference);
+                if (uiModule == null) {
+                    return null;
+                }
+                final TrackedModule tracked = new TrackedModule(reference.getBundle().getBundleId(), uiModule);
+                moduleAdded(tracked.bundleId, uiModule);
+                return tracked;
+            }
+
+            @Override
+            public void modifiedService(final ServiceReference<UiModule> reference, final TrackedModule tracked) {
+            }
+
+            @Override
+            public void removedService(final ServiceReference<UiModule> reference, final TrackedModule tracked) {
+                moduleRemoved(tracked.bundleId, tracked.uiModule);
+                context.ungetService(reference);
+            }
+        });
+        moduleTracker.open();
+    }
+
+    private void close() {
+        try {
+            moduleTracker.close();
+            webListener.unregister();
+            context.removeBundleListener(bundleListener);
+        } catch (IllegalStateException e) {
+            // the bundle has stopped, taking the registrations with it
+        }
+    }
+
+    private void bundleChanged(final BundleEvent event) {
+        final Bundle bundle = event.getBundle();
+        switch (event.getType()) {
+            case BundleEvent.INSTALLED:
+            case BundleEvent.UPDATED:
+                bundleInstalled(bundle.getBundleId(), bundle.getSymbolicName(), bundle.getVersion().toString());
+                break;
+            case BundleEvent.UNINSTALLED:
+                bundleUninstalled(bundle.getBundleId());
+                break;
+            default:
+        }
+    }
+
+    void bundleInstalled(final long bundleId, final String symbolicName, final String version) {
+        bundleUninstalled(bundleId);
+        if (symbolicName != null) {
+            bundles.put(bundleId, new String[] {symbolicName, version});
+            add(bundlesByName, symbolicName, bundleId);
+        }
+    }
+
+    void bundleUninstalled(final long bundleId) {
+        final String[] bundle = bundles.remove(bundleId);
+        if (bundle != null) {
+            remove(bundlesByName, bundle[0], bundleId);
+        }
+        final String path = webPaths.remove(bundleId);
+        if (path != null) {
+            remove(webBundlesByPath, path, bundleId);
+        }
+    }
+
+    void webDeployed(final long bundleId, final String contextPath) {
+        final String path = normalizePath(contextPath);
+        final String previous = webPaths.put(bundleId, path);
+        if (previous != null && !previous.equals(path)) {
+            remove(webBundlesByPath, previous, bundleId);
+        }
+        add(webBundlesByPath, path, bundleId);
+    }
+
+    void moduleAdded(final long bundleId, final UiModule uiModule) {
+        add(modules, bundleId, uiModule);
+    }
+
+    void moduleRemoved(final long bundleId, final UiModule uiModule) {
+        remove(modules, bundleId, uiModule);
+    }
+
+    /**
+     * @return The IDs of the web bundles on the context path, treating {@code ""} as {@code "/"}
+     */
+    Collection<Long> getWebBundles(final String contextPath) {
+        final Set<Long> ids = webBundlesByPath.get(normalizePath(contextPath));
+        return ids == null ? ImmutableList.of() : ImmutableList.copyOf(ids);
+    }
+
+    Collection<UiModule> getModules(final long bundleId) {
+        final Set<UiModule> bundleModules = modules.get(bundleId);
+        return bundleModules == null ? ImmutableList.of() : ImmutableList.copyOf(bundleModules);
+    }
+
+    /**
+     * @return The IDs of the installed bundles the module supersedes; a rule naming one bundle costs one lookup, only
+     * one with a pattern is checked against every bundle
+     */
+    Collection<Long> getSuperseded(final UiModule uiModule) {
+        final Set<Long> result = new LinkedHashSet<>();
+        if (uiModule.getSupersedesBundles() == null) {
+            return result;
+        }
+        for (final String spec : uiModule.getSupersedesBundles()) {
+            final SupersedesRule rule = SupersedesRule.of(spec);
+            if (rule.getLiteralName() != null) {
+                for (final Long id : bundlesByName.getOrDefault(rule.getLiteralName(), ImmutableSet.of())) {
+                    addIfMatches(result, rule, id, bundles.get(id));
+                }
+            } else {
+                for (final Map.Entry<Long, String[]> bundle : bundles.entrySet()) {
+                    addIfMatches(result, rule, bundle.getKey(), bundle.getValue());
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void addIfMatches(final Set<Long> result, final SupersedesRule rule, final Long id, final String[] bundle) {
+        if (bundle != null && rule.matches(bundle[0], bundle[1])) {
+            result.add(id);
+        }
+    }
+
+    private static <K, V> void add(final ConcurrentHashMap<K, Set<V>> index, final K key, final V value) {
+        index.compute(key, (k, values) -> {
+            final Set<V> result = values == null ? ConcurrentHashMap.newKeySet() : values;
+            result.add(value);
+            return result;
+        });
+    }
+
+    private static <K, V> void remove(final ConcurrentHashMap<K, Set<V>> index, final K key, final V value) {
+        index.computeIfPresent(key, (k, values) -> {
+            values.remove(value);
+            return values.isEmpty() ? null : values;
+        });
+    }
+
+    private static String normalizePath(final String contextPath) {
+        return contextPath.isEmpty() ? "/" : contextPath;
+    }
+
+    private static class TrackedModule {
+        private final long bundleId;
+        private final UiModule uiModule;
+
+        TrackedModule(final long bundleId, final UiModule uiModule) {
+            this.bundleId = bundleId;
+            this.uiModule = uiModule;
+        }
+    }
+}
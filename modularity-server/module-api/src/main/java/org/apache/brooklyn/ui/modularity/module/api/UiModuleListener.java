@@ -19,14 +19,11 @@
 package org.apache.brooklyn.ui.modularity.module.api;
 
 import org.apache.brooklyn.ui.modularity.module.api.internal.UiModuleImpl;
-import org.apache.karaf.web.WebBundle;
-import org.apache.karaf.web.WebContainerService;
 import org.ops4j.pax.web.service.spi.WebEvent;
 import org.ops4j.pax.web.service.spi.WebListener;
 import org.osgi.framework.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.yaml.snakeyaml.Yaml;
 
 import javax.annotation.Nullable;
 import javax.servlet.ServletContext;
@@ -35,21 +32,39 @@ import javax.servlet.ServletContextListener;
 import java.io.InputStream;
 import java.net.URL;
 import java.time.Duration;
-import java.util.Collection;
-import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
 
 /** Invoked by modules in their web.xml to create and register the {@link UiModule} service for that UI module. */
 public class UiModuleListener implements ServletContextListener {
     
     private static final Logger LOG = LoggerFactory.getLogger(UiModuleListener.class);
-    private static final Dictionary<String, ?> EMPTY_DICTIONARY = new Hashtable<>();
     public static final String CONFIG_PATH = "/WEB-INF/classes/ui-module/config.yaml";
+    /** Service property giving how long after its context initialized a module was registered, in milliseconds. */
+    public static final String REGISTRATION_MILLIS_PROPERTY = "brooklyn.ui.module.registrationMillis";
+    // the bundles whose current deployment has been handled by a web listener; each UI module registers its own
+    // listener, so every deployment event is seen several times
+    private static final Set<Long> DEPLOYMENTS_HANDLED = ConcurrentHashMap.newKeySet();
+    private static final Duration ACTIVE_TIMEOUT = Duration.ofMinutes(2);
+    // times out waits for bundles to start; shared by every module, and idle unless one is waiting
+    private static final ScheduledExecutorService TIMEOUTS = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "brooklyn-ui-module-start-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private ServiceRegistration<UiModule> registration;
+    private CompletableFuture<Bundle> pending;
     private AtomicReference<WebListener> listener = new AtomicReference<>();
 
     public UiModuleListener() {
@@ -68,19 +83,54 @@ public class UiModuleListener implements ServletContextListener {
         // destroy but servlet context destroy is useful for symmetry with this and in case it is destroyed without 
         // destroying the bundle; also we were already doing it)
         
+        // registration waits for the bundle to be ACTIVE, but not on this thread: the web container deploys
+        // WARs one at a time on it, so blocking here would make every other UI module wait for this one
+        final long initialized = System.nanoTime();
+        final CompletableFuture<Bundle> active = whenActive(bundle, uiModule);
+        synchronized (this) {
+            pending = active;
+        }
+        active.whenComplete((started, error) -> {
+            if (error != null) {
+                if (!active.isCancelled()) {
+                    LOG.error("Failed registration of Brooklyn UI module [" + uiModule.getName() + "] to [" + uiModule.getPath() + "]: "+error, error);
+                }
+            } else if (UiModuleBatch.get().isEnabled()) {
+                // conflicts are resolved for the whole batch, and only its winners register
+                UiModuleBatch.get().decide(bundle, uiModule).thenAccept(won -> {
+                    if (won) {
+                        register(uiModule, bundle, initialized, false);
+                    } else {
+                        LOG.debug("Not registering Brooklyn UI module [{}] from {}, as it lost to another deployed with it",
+                            uiModule.getName(), bundle.getSymbolicName());
+                    }
+                });
+            } else {
+                register(uiModule, bundle, initialized, true);
+            }
+        });
+    }
+
+    private void register(final UiModule uiModule, final Bundle bundle, final long initialized, final boolean resolveConflicts) {
+        final long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - initialized);
         try {
-            if (bundle.getState() != Bundle.ACTIVE) {
-                final Duration TIMEOUT = Duration.ofMinutes(2);
-                LOG.warn("Bundle [{}] not ACTIVE to register Brooklyn UI module [{}], bundle current state [{}], will wait up to {}", 
-                    bundle.getSymbolicName(), uiModule.getName(), bundle.getState(), TIMEOUT);
-                blockUntilBundleStarted(bundle, TIMEOUT);
+            synchronized (this) {
+                if (pending == null || pending.isCancelled()) {
+                    // context destroyed while waiting
+                    return;
+                }
+                pending = null;
+                LOG.debug("Registering new Brooklyn UI module {}:{} [{}] called '{}' on context-path '{}', {}ms after its context initialized",
+                    bundle.getSymbolicName(), bundle.getVersion(), bundle.getVersion(), uiModule.getName(), uiModule.getPath(), latencyMillis);
+                final Hashtable<String, Object> properties = new Hashtable<>();
+                properties.put(REGISTRATION_MILLIS_PROPERTY, latencyMillis);
+                registration = bundle.getBundleContext().registerService(UiModule.class, uiModule, properties);
+            }
+            if (resolveConflicts) {
+                LOG.trace("ServletContextListener on initializing UI module "+bundle.getSymbolicName()+" ["+bundle.getBundleId()+"] "
+                    + "to "+uiModule.getPath()+", checking whether any bundles need stopping");
+                stopAnyExistingOrSuperseded(uiModule, bundle);
             }
-            LOG.debug("Registering new Brooklyn UI module {}:{} [{}] called '{}' on context-path '{}'", 
-                bundle.getSymbolicName(), bundle.getVersion(), bundle.getVersion(), uiModule.getName(), uiModule.getPath() );
-            registration = bundle.getBundleContext().registerService(UiModule.class, uiModule, EMPTY_DICTIONARY);
-            LOG.trace("ServletContextListener on initializing UI module "+bundle.getSymbolicName()+" ["+bundle.getBundleId()+"] "
-                + "to "+uiModule.getPath()+", checking whether any bundles need stopping");
-            stopAnyExistingOrSuperseded(uiModule, bundle);
         } catch (Exception e) {
             LOG.error("Failed registration of Brooklyn UI module [" + uiModule.getName() + "] to [" + uiModule.getPath() + "]: "+e, e);
         }
@@ -93,19 +143,25 @@ public class UiModuleListener implements ServletContextListener {
     }
 
     public class UiModuleWebListener implements WebListener {
-        long lastId = -1;
         @Override
         public void webEvent(WebEvent event) {
             try {
-                if (event.getType() == WebEvent.DEPLOYING && lastId != event.getBundleId()) {
-                    // on deployment of new bundles check whether they are UI modules
-                    // (this seems to be called about 10 times for any deployment; keep a note of the last bundle id to avoid duplication
-                    lastId = event.getBundleId();
+                if (event.getType() == WebEvent.UNDEPLOYED || event.getType() == WebEvent.FAILED) {
+                    // the next deployment of the bundle is handled afresh
+                    DEPLOYMENTS_HANDLED.remove(event.getBundleId());
+                    UiModuleBatch.get().forget(event.getBundleId());
+                } else if (event.getType() == WebEvent.DEPLOYING && DEPLOYMENTS_HANDLED.add(event.getBundleId())) {
+                    // on deployment of new bundles check whether they are UI modules, once however many listeners see it
                     URL config = event.getBundle().getResource(CONFIG_PATH);
                     if (config!=null) {
                         LOG.trace("WebListener on deploying UI module "+event.getBundle().getSymbolicName()+" ["+event.getBundleId()+"] "
                             + "to "+event.getContextPath()+", checking whether any bundles need stopping");
-                        stopAnyExistingOrSuperseded(createUiModule(config.openStream(), event.getContextPath(), event.getBundle()), event.getBundle());
+                        UiModule uiModule = createUiModule(event.getBundle(), event.getContextPath(), config::openStream);
+                        if (UiModuleBatch.get().isEnabled()) {
+                            UiModuleBatch.get().offer(event.getBundle(), uiModule);
+                        } else {
+                            stopAnyExistingOrSuperseded(uiModule, event.getBundle());
+                        }
                     }
                 }
             } catch (Exception e) {
@@ -130,39 +186,33 @@ public class UiModuleListener implements ServletContextListener {
     /** stop modules on the same endpoint that with a lower number ID;
      * or if a module supersedes us, stop ourselves */
     private void stopExistingModulesListeningOnOurEndpoint(Bundle bundle, UiModule uiModule) throws Exception {
-        ServiceReference<WebContainerService> webS = bundle.getBundleContext().getServiceReference(WebContainerService.class);
-        WebContainerService web = bundle.getBundleContext().getService(webS);
-        
-        for (WebBundle bi: web.list()) {
-            if (bi.getBundleId()==bundle.getBundleId()) continue;
-            if (uiModule.getPath().equals(bi.getContextPath()) || (uiModule.getPath().equals("") && bi.getContextPath().equals("/"))) {
-                Bundle bb = bundle.getBundleContext().getBundle(bi.getBundleId());
-                Collection<ServiceReference<UiModule>> modules = bundle.getBundleContext().getServiceReferences(UiModule.class, null);
-                for (ServiceReference<UiModule> modS: modules) {
-                    if (modS.getBundle()!=null && modS.getBundle().getBundleId()==bi.getBundleId()) {
-                        // found UiModule for the potentially conflicting bundle
-                        UiModule mod = bundle.getBundleContext().getService(modS);
-                        if (isBundleSuperseded(mod, bundle)) {
-                            // if that module supersedes us, don't stop them, stop us!
-                            stopBundle(bundle, "context path "+bi.getContextPath()+" is in use by "+bb.getSymbolicName()+" ["+bb.getBundleId()+"]");
-                            return;
-                        }
-                    }
-                }
-                if (bb.getBundleId() < bundle.getBundleId()) {
-                    // in case of context-path conflict with no declared supersedes relationship, prefer the higher number (later installed)
-                    stopBundle(bb, "context path "+bi.getContextPath()+" is needed for installation of "+bundle.getSymbolicName()+" ["+bundle.getBundleId()+"]");
+        UiModuleIndex index = UiModuleIndex.get(bundle.getBundleContext());
+        for (long otherId: index.getWebBundles(uiModule.getPath())) {
+            if (otherId==bundle.getBundleId()) continue;
+            Bundle bb = bundle.getBundleContext().getBundle(otherId);
+            if (bb==null) continue;
+            for (UiModule mod: index.getModules(otherId)) {
+                // found UiModule for the potentially conflicting bundle
+                if (isBundleSuperseded(mod, bundle)) {
+                    // if that module supersedes us, don't stop them, stop us!
+                    stopBundle(bundle, "context path "+uiModule.getPath()+" is in use by "+bb.getSymbolicName()+" ["+bb.getBundleId()+"]");
+                    return;
                 }
             }
+            if (bb.getBundleId() < bundle.getBundleId()) {
+                // in case of context-path conflict with no declared supersedes relationship, prefer the higher number (later installed)
+                stopBundle(bb, "context path "+uiModule.getPath()+" is needed for installation of "+bundle.getSymbolicName()+" ["+bundle.getBundleId()+"]");
+            }
         }
     }
 
     /** stop modules superseded by us */
     private void stopSupersededBundles(Bundle bundle, UiModule uiModule) {
         LOG.trace("Calling stopSuperseded on install of "+bundle.getSymbolicName()+"; will stop any of "+uiModule.getSupersedesBundles());
-        for (Bundle b: bundle.getBundleContext().getBundles()) {
-            if (b.getBundleId()==bundle.getBundleId()) continue;
-            if (isBundleSuperseded(uiModule, b)) {
+        for (long id: UiModuleIndex.get(bundle.getBundleContext()).getSuperseded(uiModule)) {
+            if (id==bundle.getBundleId()) continue;
+            Bundle b = bundle.getBundleContext().getBundle(id);
+            if (b!=null) {
                 stopBundle(b, "it is superseded by "+bundle.getSymbolicName()+" ["+bundle.getBundleId()+"]");
             }
         }
@@ -171,14 +221,7 @@ public class UiModuleListener implements ServletContextListener {
     private boolean isBundleSuperseded(UiModule module, Bundle bundle) {
         if (module.getSupersedesBundles()!=null) {
             for (String superseded: module.getSupersedesBundles()) {
-                String bn = superseded;
-                String version = null;
-                int split = bn.indexOf(':');
-                if (split>=0) {
-                    version = bn.substring(split+1);
-                    bn = bn.substring(0, split);
-                }
-                if (bundle.getSymbolicName().matches(bn) && (version==null || bundle.getVersion().toString().matches(version))) {
+                if (SupersedesRule.of(superseded).matches(bundle.getSymbolicName(), bundle.getVersion().toString())) {
                     return true;
                 }
             }
@@ -194,14 +237,9 @@ public class UiModuleListener implements ServletContextListener {
             // if it tries to start it should abort itself
             return;
         }
-        LOG.debug("UiModules: " + message);
-        new Thread(() -> { 
-            try {
-                bundleToStop.stop(); 
-            } catch (Exception e) {
-                LOG.warn("UiModules: error "+message+": "+e, e);
-            }
-        }).start();
+        if (BundleStopQueue.get().stop(bundleToStop, message)) {
+            LOG.debug("UiModules: " + message);
+        }
     }
 
     protected boolean isBundleStartingOrActive(Bundle bundleToStop) {
@@ -214,21 +252,56 @@ public class UiModuleListener implements ServletContextListener {
         return false;
     }
 
-    private void blockUntilBundleStarted(final Bundle bundle, Duration timeout) throws InterruptedException {
-        long endTime = System.currentTimeMillis() + timeout.toMillis();
-        do {
-            TimeUnit.MILLISECONDS.sleep(100);
-            LOG.trace("Waiting for bundle [{}] to be ACTIVE, current state [{}]", bundle.getSymbolicName(), bundle.getState());
-            if (bundle.getState() == Bundle.ACTIVE) {
-                return;
+    /**
+     * @return A future completed when the bundle is ACTIVE, at once if it is already, or failed if it does not
+     * become ACTIVE within {@link #ACTIVE_TIMEOUT}
+     */
+    private CompletableFuture<Bundle> whenActive(final Bundle bundle, final UiModule uiModule) {
+        final CompletableFuture<Bundle> active = new CompletableFuture<>();
+        if (bundle.getState() == Bundle.ACTIVE) {
+            active.complete(bundle);
+            return active;
+        }
+        LOG.debug("Bundle [{}] not ACTIVE to register Brooklyn UI module [{}], bundle current state [{}], will register when it is, up to {}",
+            bundle.getSymbolicName(), uiModule.getName(), bundle.getState(), ACTIVE_TIMEOUT);
+        final BundleContext context = bundle.getBundleContext();
+        if (context == null) {
+            active.completeExceptionally(new IllegalStateException("Bundle "+bundle.getSymbolicName()+":"+bundle.getVersion()+" is not starting"));
+            return active;
+        }
+        final BundleListener listener = event -> {
+            if (event.getBundle().getBundleId() == bundle.getBundleId() && event.getType() == BundleEvent.STARTED) {
+                active.complete(bundle);
+            }
+        };
+        context.addBundleListener(listener);
+        // it may have started before the listener was added
+        if (bundle.getState() == Bundle.ACTIVE) {
+            active.complete(bundle);
+        }
+        final ScheduledFuture<?> timeout = TIMEOUTS.schedule(() -> active.completeExceptionally(new TimeoutException(
+                "Bundle "+bundle.getSymbolicName()+":"+bundle.getVersion()+" is not ACTIVE, even after waiting "+ACTIVE_TIMEOUT)),
+            ACTIVE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        active.whenComplete((started, error) -> {
+            timeout.cancel(false);
+            try {
+                context.removeBundleListener(listener);
+            } catch (IllegalStateException e) {
+                // the bundle has stopped, taking the listener with it
             }
-        } while (System.currentTimeMillis() < endTime);
-        throw new IllegalStateException("Bundle "+bundle.getSymbolicName()+":"+bundle.getVersion()+" is not ACTIVE, even after waiting");
+        });
+        return active;
     }
         
     @Override
     public void contextDestroyed(ServletContextEvent servletContextEvent) {
         LOG.debug("Unregistering Brooklyn UI module at [{}]", servletContextEvent.getServletContext().getContextPath());
+        synchronized (this) {
+            if (pending != null) {
+                pending.cancel(false);
+                pending = null;
+            }
+        }
         if (registration != null) {
             try {
                 registration.unregister();
@@ -244,18 +317,25 @@ public class UiModuleListener implements ServletContextListener {
     }
 
     private UiModule createUiModule(ServletContext servletContext, @Nullable Bundle bundle) {
-        final InputStream is = servletContext.getResourceAsStream(CONFIG_PATH);
-        final String path = servletContext.getContextPath();
-        return createUiModule(is, path, bundle);
+        return createUiModule(bundle, servletContext.getContextPath(), () -> servletContext.getResourceAsStream(CONFIG_PATH));
+    }
+
+    private UiModule createUiModule(final Bundle bundle, final String path, final Callable<InputStream> config) {
+        return createUiModule(UiModuleConfigCache.get(bundle, path, config), path, bundle);
     }
 
     protected UiModule createUiModule(final InputStream is, final String path, @Nullable Bundle bundle) {
-        if (is == null) {
-            throw new RuntimeException(String.format("Module on path [%s] will not be registered as it does not have any configuration", path));
+        try {
+            return createUiModule(UiModuleConfigCache.parse(path, () -> is), path, bundle);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
         }
-        @SuppressWarnings("unchecked")
-        Map<String, ?> config = (Map<String, ?>) new Yaml().load(is);
-        LOG.debug("Creating Brooklyn UI module definition for "+path+"; "+config+" / "+is);
+    }
+
+    private UiModule createUiModule(final Map<String, ?> config, final String path, @Nullable Bundle bundle) {
+        LOG.debug("Creating Brooklyn UI module definition for "+path+"; "+config);
         UiModuleImpl ui = UiModuleImpl.createFromMap(config).path(path);
         ui.bundleId(bundle.getSymbolicName()+":"+bundle.getVersion());
         return ui;
@@ -19,6 +19,8 @@
 package org.apache.brooklyn.ui.modularity.module.api;
 
 import java.util.Collection;
+import java.util.Objects;
+import java.util.stream.Collectors;
 
 public interface UiModuleRegistry {
 
@@ -27,4 +29,34 @@ public interface UiModuleRegistry {
     void unregister(final UiModule uiModule);
 
     Collection<UiModule> getRegisteredModules();
+
+    /**
+     * @return The registered modules having the given type, eg single-page-app
+     */
+    default Collection<UiModule> getModulesByType(final String type) {
+        return getRegisteredModules().stream()
+                .filter(uiModule -> uiModule.getTypes() != null && uiModule.getTypes().contains(type))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param bundle The bundle's symbolic name, matching any version of it, or {@code symbolicName:version} as in
+     *               {@link UiModule#getBundleId()}, matching that version only
+     * @return The registered modules from the bundle
+     */
+    default Collection<UiModule> getModulesByBundle(final String bundle) {
+        return getRegisteredModules().stream()
+                .filter(uiModule -> UiModule.Utils.bundleNames(uiModule.getBundleId()).contains(bundle))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return The registered modules served at the given path; normally one, but briefly two while a bundle is
+     * replaced by another version of it
+     */
+    default Collection<UiModule> getModulesByPath(final String path) {
+        return getRegisteredModules().stream()
+                .filter(uiModule -> Objects.equals(uiModule.getPath(), path))
+                .collect(Collectors.toList());
+    }
 }
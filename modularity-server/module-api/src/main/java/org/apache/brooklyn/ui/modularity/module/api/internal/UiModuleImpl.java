@@ -57,6 +57,7 @@ public class UiModuleImpl implements UiModule {
         result.setStopExisting(src.getStopExisting());
         result.setPath(src.getPath());
         if (src.getActions()!=null) result.actions.addAll(src.getActions());
+        result.setBundleId(src.getBundleId());
         return result;
     }
     
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.api;
+
+import org.mockito.InOrder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BundleStopQueueTest {
+
+    @Test
+    public void stopsEachBundleOnceLowestIdFirst() throws Exception {
+        final List<Runnable> tasks = new ArrayList<>();
+        final BundleStopQueue queue = new BundleStopQueue(tasks::add);
+        final Bundle later = bundle(7);
+        final Bundle earlier = bundle(3);
+
+        assertThat(queue.stop(later, "stopping later")).isTrue();
+        assertThat(queue.stop(earlier, "stopping earlier")).isTrue();
+        assertThat(queue.stop(later, "stopping later again")).isFalse();
+        assertThat(queue.getQueueDepth()).isEqualTo(2);
+        assertThat(queue.getRequested()).isEqualTo(3);
+
+        tasks.forEach(Runnable::run);
+        final InOrder order = inOrder(earlier, later);
+        order.verify(earlier).stop();
+        order.verify(later).stop();
+        verify(later, times(1)).stop();
+        assertThat(queue.getQueueDepth()).isZero();
+        assertThat(queue.getStopped()).isEqualTo(2);
+
+        // once stopped, a bundle can be queued again
+        assertThat(queue.stop(later, "stopping later once more")).isTrue();
+    }
+
+    @Test
+    public void carriesOnAfterFailedStop() throws Exception {
+        final List<Runnable> tasks = new ArrayList<>();
+        final BundleStopQueue queue = new BundleStopQueue(tasks::add);
+        final Bundle failing = bundle(1);
+        doThrow(new BundleException("test")).when(failing).stop();
+        final Bundle other = bundle(2);
+
+        queue.stop(failing, "stopping failing");
+        queue.stop(other, "stopping other");
+        tasks.forEach(Runnable::run);
+        verify(other).stop();
+        assertThat(queue.getStopped()).isEqualTo(1);
+    }
+
+    private static Bundle bundle(final long id) {
+        final Bundle bundle = mock(Bundle.class);
+        when(bundle.getBundleId()).thenReturn(id);
+        return bundle;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.api;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.brooklyn.ui.modularity.module.api.internal.UiModuleImpl;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+import org.testng.annotations.Test;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class UiModuleBatchTest {
+
+    @Test
+    public void keepsLatestOnEachPath() {
+        assertThat(UiModuleBatch.resolve(ImmutableList.of(
+                candidate(10, "org.example.home", "1.0.0", "/home"),
+                candidate(20, "org.example.home", "2.0.0", "/home"),
+                candidate(21, "org.example.catalog", "2.0.0", "/catalog"),
+                candidate(5, "org.example.root", "1.0.0", "/"),
+                candidate(22, "org.example.root", "2.0.0", "")))).containsExactly(5L, 10L);
+    }
+
+    @Test
+    public void dropsSupersededWhereverTheyAre() {
+        assertThat(UiModuleBatch.resolve(ImmutableList.of(
+                // an older bundle which supersedes the newer one on its path wins it
+                candidate(10, "org.example.home", "2.0.0", "/home", "org\\.example\\.home-legacy"),
+                candidate(30, "org.example.home-legacy", "1.0.0", "/home"),
+                // superseded on another path, and by version only
+                candidate(21, "org.example.catalog", "2.0.0", "/catalog", "org\\.example\\.catalog:1\\..*"),
+                candidate(11, "org.example.catalog", "1.0.0", "/catalog-v1"),
+                candidate(12, "org.example.catalog", "2.0.0", "/catalog-v2")))).containsExactly(11L, 30L);
+    }
+
+    @Test
+    public void keepsExistingForModulesWhichDoNotStopThem() {
+        assertThat(UiModuleBatch.resolve(ImmutableList.of(
+                candidate(10, "org.example.home", "1.0.0", "/home"),
+                new UiModuleBatch.Candidate(20, null, null, "org.example.home-extra", "1.0.0", "/home", ImmutableList.of(), false),
+                candidate(11, "org.example.catalog", "1.0.0", "/catalog"),
+                new UiModuleBatch.Candidate(21, null, null, "org.example.catalog-extra", "1.0.0", "/catalog", ImmutableList.of(), false),
+                candidate(22, "org.example.catalog", "2.0.0", "/catalog")))).containsExactly(11L, 21L);
+    }
+
+    @Test
+    public void forgetsBundlesWhoseDeploymentEnded() {
+        final UiModuleBatch batch = new UiModuleBatch(60_000);
+        final Bundle bundle = mock(Bundle.class);
+        when(bundle.getBundleId()).thenReturn(10L);
+        when(bundle.getSymbolicName()).thenReturn("org.example.home");
+        when(bundle.getVersion()).thenReturn(Version.parseVersion("1.0.0"));
+        final UiModuleImpl home = new UiModuleImpl().id("1").name("Home").path("/home");
+
+        final CompletableFuture<Boolean> first = batch.decide(bundle, home);
+        assertThat(first).isNotDone();
+        batch.forget(10L);
+        assertThat(first).isCompletedWithValue(false);
+        // deployed again, it joins a new batch rather than reusing the old decision
+        assertThat(batch.decide(bundle, home)).isNotSameAs(first).isNotDone();
+    }
+
+    private static UiModuleBatch.Candidate candidate(final long id, final String symbolicName, final String version,
+                                                     final String path, final String... supersedes) {
+        final Collection<String> rules = ImmutableList.copyOf(supersedes);
+        return new UiModuleBatch.Candidate(id, null, symbolicName, version, path, rules);
+    }
+}
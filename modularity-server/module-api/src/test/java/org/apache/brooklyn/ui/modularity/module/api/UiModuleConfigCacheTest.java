@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.api;
+
+import org.osgi.framework.Bundle;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class UiModuleConfigCacheTest {
+
+    @Test
+    public void parsesOncePerBundleVersion() {
+        final Bundle bundle = mock(Bundle.class);
+        when(bundle.getBundleId()).thenReturn(1001L);
+        when(bundle.getLastModified()).thenReturn(1L);
+        final AtomicInteger reads = new AtomicInteger();
+        final Callable<InputStream> source = () -> {
+            reads.incrementAndGet();
+            return new ByteArrayInputStream("name: Home\ntypes: [home-ui-module]\n".getBytes(StandardCharsets.UTF_8));
+        };
+
+        assertThat(UiModuleConfigCache.get(bundle, "/home", source)).containsEntry("name", "Home");
+        assertThat(UiModuleConfigCache.get(bundle, "/home", source)).containsEntry("name", "Home");
+        assertThat(reads.get()).isEqualTo(1);
+
+        when(bundle.getLastModified()).thenReturn(2L);
+        UiModuleConfigCache.get(bundle, "/home", source);
+        assertThat(reads.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void rejectsModuleWithoutConfiguration() {
+        final Bundle bundle = mock(Bundle.class);
+        when(bundle.getBundleId()).thenReturn(1002L);
+        assertThatThrownBy(() -> UiModuleConfigCache.get(bundle, "/none", () -> null))
+                .isInstanceOf(RuntimeException.class)
+                .hasMessageContaining("does not have any configuration");
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.api;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.brooklyn.ui.modularity.module.api.internal.UiModuleImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UiModuleIndexTest {
+    private static final Logger LOG = LoggerFactory.getLogger(UiModuleIndexTest.class);
+
+    @Test
+    public void findsConflictsByContextPath() {
+        final UiModuleIndex index = new UiModuleIndex();
+        final UiModule home = new UiModuleImpl().name("Home").path("");
+        index.webDeployed(10, "/");
+        index.webDeployed(11, "/catalog");
+        index.moduleAdded(10, home);
+        assertThat(index.getWebBundles("")).containsOnly(10L);
+        assertThat(index.getWebBundles("/catalog")).containsOnly(11L);
+        assertThat(index.getModules(10)).containsOnly(home);
+        assertThat(index.getModules(11)).isEmpty();
+
+        index.webDeployed(11, "/blueprint-composer");
+        assertThat(index.getWebBundles("/catalog")).isEmpty();
+        index.moduleRemoved(10, home);
+        index.bundleUninstalled(10);
+        assertThat(index.getModules(10)).isEmpty();
+        assertThat(index.getWebBundles("/")).isEmpty();
+    }
+
+    @Test
+    public void findsSupersededBundles() {
+        final UiModuleIndex index = new UiModuleIndex();
+        index.bundleInstalled(1, "org.example.home", "1.0.0");
+        index.bundleInstalled(2, "org.example.home", "2.0.0");
+        index.bundleInstalled(3, "orgXexample.home", "1.0.0");
+        index.bundleInstalled(4, "org.example.catalog", "1.0.0");
+
+        assertThat(index.getSuperseded(supersedes("org\\.example\\.home"))).containsOnly(1L, 2L);
+        assertThat(index.getSuperseded(supersedes("org.example.home"))).containsOnly(1L, 2L, 3L);
+        assertThat(index.getSuperseded(supersedes("org\\.example\\.home:1\\..*"))).containsOnly(1L);
+        assertThat(index.getSuperseded(supersedes("org\\.example\\..*", "orgXexample\\.home"))).containsOnly(1L, 2L, 3L, 4L);
+
+        index.bundleInstalled(2, "org.example.home2", "2.0.0");
+        index.bundleUninstalled(1);
+        assertThat(index.getSuperseded(supersedes("org\\.example\\.home"))).isEmpty();
+    }
+
+    @Test(groups = "Integration")
+    public void benchmarkThousandsOfBundles() {
+        final int bundleCount = 5_000;
+        final UiModuleIndex index = new UiModuleIndex();
+        final List<String[]> installed = new ArrayList<>();
+        final List<Object[]> webBundles = new ArrayList<>();
+        for (int i = 0; i < bundleCount; i++) {
+            final String name = "org.example.bundle" + i;
+            installed.add(new String[] {name, "1.0." + i});
+            index.bundleInstalled(i, name, "1.0." + i);
+            if (i % 10 == 0) {
+                webBundles.add(new Object[] {(long) i, "/ui" + i});
+                index.webDeployed(i, "/ui" + i);
+                index.moduleAdded(i, new UiModuleImpl().name("UI " + i).path("/ui" + i));
+            }
+        }
+        final UiModule module = supersedes("org\\.example\\.bundle4990", "org\\.example\\.bundle4980:1\\.0\\..*");
+        final String path = "/ui4990";
+
+        for (int run = 0; run < 5; run++) {
+            int found = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < 100; i++) {
+                // as before: every web bundle for the path, every bundle for each supersedes rule, uncompiled
+                for (final Object[] webBundle : webBundles) {
+                    if (path.equals(webBundle[1])) {
+                        found++;
+                    }
+                }
+                for (final String[] bundle : installed) {
+                    for (final String superseded : module.getSupersedesBundles()) {
+                        final String[] parts = superseded.split(":", 2);
+                        if (bundle[0].matches(parts[0]) && (parts.length == 1 || bundle[1].matches(parts[1]))) {
+                            found++;
+                        }
+                    }
+                }
+            }
+            final long scanNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < 100; i++) {
+                found += index.getWebBundles(path).size();
+                found += index.getSuperseded(module).size();
+            }
+            final long indexNanos = System.nanoTime() - start;
+
+            LOG.info("{} bundles, 100 conflict checks: scan {}ms, index {}ms", bundleCount,
+                    TimeUnit.NANOSECONDS.toMillis(scanNanos), TimeUnit.NANOSECONDS.toMillis(indexNanos));
+            assertThat(found).isEqualTo(2 * 100 * 3);
+        }
+    }
+
+    private static UiModule supersedes(final String... rules) {
+        final UiModuleImpl module = new UiModuleImpl().name("Superseding");
+        module.setSupersedesBundles(ImmutableSet.copyOf(rules));
+        return module;
+    }
+}
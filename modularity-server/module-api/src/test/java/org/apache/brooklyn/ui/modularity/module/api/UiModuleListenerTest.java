@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.api;
+
+import org.mockito.ArgumentCaptor;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Version;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Dictionary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class UiModuleListenerTest {
+
+    private Bundle bundle;
+    private BundleContext context;
+    private ServletContextEvent event;
+
+    @BeforeMethod
+    public void setUp() {
+        bundle = mock(Bundle.class);
+        context = mock(BundleContext.class);
+        when(bundle.getBundleContext()).thenReturn(context);
+        when(bundle.getState()).thenReturn(Bundle.STARTING);
+        when(bundle.getSymbolicName()).thenReturn("org.example.home");
+        when(bundle.getVersion()).thenReturn(Version.emptyVersion);
+        when(bundle.getBundleId()).thenReturn(42L);
+        when(context.getBundle()).thenReturn(bundle);
+        final ServletContext servletContext = mock(ServletContext.class);
+        when(servletContext.getAttribute("osgi-bundlecontext")).thenReturn(context);
+        when(servletContext.getContextPath()).thenReturn("/home");
+        when(servletContext.getResourceAsStream(UiModuleListener.CONFIG_PATH)).thenReturn(
+                new ByteArrayInputStream("name: Home\nstopExisting: 'false'\n".getBytes(StandardCharsets.UTF_8)));
+        event = new ServletContextEvent(servletContext);
+    }
+
+    @Test
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void registersWhenBundleStartsWithoutBlocking() {
+        final UiModuleListener moduleListener = new UiModuleListener();
+        moduleListener.contextInitialized(event);
+        final ArgumentCaptor<BundleListener> listener = ArgumentCaptor.forClass(BundleListener.class);
+        verify(context).addBundleListener(listener.capture());
+        verify(context, never()).registerService(eq(UiModule.class), any(UiModule.class), any(Dictionary.class));
+
+        when(bundle.getState()).thenReturn(Bundle.ACTIVE);
+        listener.getValue().bundleChanged(new BundleEvent(BundleEvent.STARTED, bundle));
+        final ArgumentCaptor<Dictionary> properties = ArgumentCaptor.forClass(Dictionary.class);
+        verify(context).registerService(eq(UiModule.class), any(UiModule.class), properties.capture());
+        assertThat(properties.getValue().get(UiModuleListener.REGISTRATION_MILLIS_PROPERTY)).isInstanceOf(Long.class);
+        verify(context).removeBundleListener(listener.getValue());
+    }
+
+    @Test
+    public void doesNotRegisterOnceContextDestroyed() {
+        final UiModuleListener moduleListener = new UiModuleListener();
+        moduleListener.contextInitialized(event);
+        final ArgumentCaptor<BundleListener> listener = ArgumentCaptor.forClass(BundleListener.class);
+        verify(context).addBundleListener(listener.capture());
+
+        moduleListener.contextDestroyed(event);
+        listener.getValue().bundleChanged(new BundleEvent(BundleEvent.STARTED, bundle));
+        verify(context, never()).registerService(eq(UiModule.class), any(UiModule.class), any());
+        verify(context).removeBundleListener(listener.getValue());
+    }
+}
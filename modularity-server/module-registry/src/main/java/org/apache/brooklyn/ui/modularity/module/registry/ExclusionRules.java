@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.registry;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The bundle exclusion rules of {@code brooklyn-ui.cfg}, compiled once so a module can be checked without reading
+ * the file or compiling anything:
+ * <pre>
+ * exclude_bundle_unset: true
+ * exclude_bundle_regex:
+ *   - org\.example\.ui\..*
+ *   - org.example.legacy
+ * </pre>
+ * Rules are whole-match regular expressions. Those which are plain bundle names, with every {@code .} escaped, are
+ * looked up in a set; the rest are joined into one alternation, so a bundle is matched in a single pass however many
+ * rules there are. A rule with a back-reference keeps a pattern of its own, as joining would renumber its groups.
+ */
+public class ExclusionRules {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExclusionRules.class);
+    private static final Pattern LITERAL = Pattern.compile("[\\w-]+(?:\\\\\\.[\\w-]+)*");
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\[1-9]|\\\\k<");
+
+    public static final ExclusionRules NONE = new ExclusionRules(false, Collections.emptyList());
+
+    private final boolean excludeUnset;
+    private final Set<String> literals;
+    private final Pattern combined;
+    private final List<Pattern> separate;
+    private final int size;
+
+    public ExclusionRules(final boolean excludeUnset, final List<String> regexes) {
+        this.excludeUnset = excludeUnset;
+        final ImmutableSet.Builder<String> literals = ImmutableSet.builder();
+        final ImmutableList.Builder<Pattern> separate = ImmutableList.builder();
+        final StringBuilder alternation = new StringBuilder();
+        int size = 0;
+        for (final String regex : regexes) {
+            try {
+                Pattern.compile(regex);
+            } catch (PatternSyntaxException e) {
+                LOG.warn("Invalid bundle exclusion [{}] in brooklyn-ui.cfg (ignoring): {}", regex, e.getDescription());
+                continue;
+            }
+            size++;
+            if (LITERAL.matcher(regex).matches()) {
+                literals.add(regex.replace("\\.", "."));
+            } else if (BACK_REFERENCE.matcher(regex).find()) {
+                separate.add(Pattern.compile(regex));
+            } else {
+                alternation.append(alternation.length() == 0 ? "(?:" : "|(?:").append(regex).append(')');
+            }
+        }
+        this.literals = literals.build();
+        this.combined = alternation.length() == 0 ? null : Pattern.compile(alternation.toString());
+        this.separate = separate.build();
+        this.size = size;
+    }
+
+    public boolean isExcluded(final String bundleId) {
+        if (bundleId == null) {
+            return excludeUnset;
+        }
+        if (literals.contains(bundleId)) {
+            return true;
+        }
+        if (combined != null && combined.matcher(bundleId).matches()) {
+            return true;
+        }
+        for (final Pattern pattern : separate) {
+            if (pattern.matcher(bundleId).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of valid rules
+     */
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static ExclusionRules fromConfig(final Map<String, Object> config) {
+        if (config == null) {
+            return NONE;
+        }
+        final Object unset = config.get("exclude_bundle_unset");
+        final Object regexes = config.get("exclude_bundle_regex");
+        return new ExclusionRules(Boolean.TRUE.equals(unset),
+                regexes instanceof List ? (List<String>) regexes : Collections.emptyList());
+    }
+
+    /**
+     * @return The rules in the file, or none if there is no file
+     * @throws IOException if the file cannot be read
+     * @throws RuntimeException if the file is not valid YAML
+     */
+    public static ExclusionRules load(final Path file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return fromConfig(new Yaml().load(reader));
+        } catch (NoSuchFileException e) {
+            LOG.trace("No brooklyn-ui.cfg found. Module settings will use defaults.");
+            return NONE;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.registry;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.brooklyn.ui.modularity.module.api.UiModule;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * The registered modules grouped by some property, eg their types, kept up to date as modules come and go so a
+ * lookup does not scan the registry.
+ * <p>
+ * Updates must not run concurrently with each other; lookups may run at any time.
+ */
+class ModuleIndex {
+
+    private final Function<UiModule, Collection<String>> keys;
+    private final ConcurrentHashMap<String, Map<String, UiModule>> entries = new ConcurrentHashMap<>();
+    // the keys each module was indexed under, as a module being removed may no longer be able to say
+    private final ConcurrentHashMap<String, Collection<String>> indexed = new ConcurrentHashMap<>();
+
+    ModuleIndex(final Function<UiModule, Collection<String>> keys) {
+        this.keys = keys;
+    }
+
+    void add(final UiModule uiModule) {
+        remove(uiModule.getId());
+        final Collection<String> moduleKeys = ImmutableList.copyOf(keys.apply(uiModule));
+        for (final String key : moduleKeys) {
+            entries.computeIfAbsent(key, k -> new ConcurrentHashMap<>()).put(uiModule.getId(), uiModule);
+        }
+        indexed.put(uiModule.getId(), moduleKeys);
+    }
+
+    void remove(final String id) {
+        final Collection<String> moduleKeys = indexed.remove(id);
+        if (moduleKeys == null) {
+            return;
+        }
+        for (final String key : moduleKeys) {
+            entries.computeIfPresent(key, (k, modules) -> {
+                modules.remove(id);
+                return modules.isEmpty() ? null : modules;
+            });
+        }
+    }
+
+    Collection<UiModule> get(final String key) {
+        final Map<String, UiModule> modules = key == null ? null : entries.get(key);
+        return modules == null ? ImmutableList.of() : ImmutableList.copyOf(modules.values());
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.registry;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import org.apache.brooklyn.ui.modularity.module.api.UiModule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The recent changes to the registry, each stamped with the {@link RegistrySnapshot#getVersion() version} of the
+ * snapshot it produced, so a client holding one version can ask for everything after it.
+ * <p>
+ * Only the latest changes are kept. A client further behind than that, or holding a version from before a restart,
+ * is told to {@link Batch#isReset() reset}: fetch the whole registry again and carry on from its version.
+ */
+public class RegistryChangeFeed {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RegistryChangeFeed.class);
+
+    public enum Type { ADDED, REMOVED, MODIFIED }
+
+    private final int capacity;
+    private final ArrayDeque<Change> changes = new ArrayDeque<>();
+    private final Set<Runnable> listeners = ConcurrentHashMap.newKeySet();
+    private long version;
+    // the highest version some of whose changes have been dropped
+    private long floor;
+
+    public RegistryChangeFeed(final int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Records the changes which produced a new version of the registry, and runs the listeners waiting for them.
+     */
+    void append(final long version, final List<Change> batch) {
+        synchronized (this) {
+            this.version = version;
+            changes.addAll(batch);
+            while (changes.size() > capacity) {
+                floor = Math.max(floor, changes.removeFirst().getVersion());
+            }
+        }
+        for (final Runnable listener : listeners) {
+            if (listeners.remove(listener)) {
+                try {
+                    listener.run();
+                } catch (RuntimeException e) {
+                    LOG.debug("Registry change listener failed: {}", e.toString());
+                }
+            }
+        }
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The changes after the given version, possibly none
+     */
+    public synchronized Batch since(final long from) {
+        if (from < floor || from > version) {
+            return new Batch(version, true, ImmutableList.of());
+        }
+        final ImmutableList.Builder<Change> result = ImmutableList.builder();
+        for (final Change change : changes) {
+            if (change.getVersion() > from) {
+                result.add(change);
+            }
+        }
+        return new Batch(version, false, result.build());
+    }
+
+    /**
+     * Runs the listener once, on the next change, unless it is removed first. For waiting without holding a thread.
+     */
+    public void onNextChange(final Runnable listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * One module added to, removed from or replaced in the registry.
+     */
+    public static class Change {
+        private final long version;
+        private final Type type;
+        private final String id;
+        private final UiModule module;
+        private final Map<ObjectMapper, byte[]> json = new ConcurrentHashMap<>(2);
+
+        Change(final long version, final Type type, final UiModule module) {
+            this.version = version;
+            this.type = type;
+            this.id = module.getId();
+            // a removed module's proxy may already be unusable, so only its ID is sent
+            this.module = type == Type.REMOVED ? null
+                    : module instanceof RegistryStore.Provisional ? module : UiModule.Utils.copyUiModule(module);
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public String getType() {
+            return type.name().toLowerCase(Locale.ROOT);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return The module as now registered, or null if it was removed
+         */
+        public UiModule getModule() {
+            return module;
+        }
+
+        /**
+         * @return The change encoded as JSON by {@link RegistrySnapshot#MAPPER}, once however many clients it is sent to
+         */
+        @JsonIgnore
+        public byte[] getJson() {
+            return getJson(RegistrySnapshot.MAPPER);
+        }
+
+        /**
+         * @return The change encoded as JSON by the given mapper, once however many clients it is sent to
+         */
+        public byte[] getJson(final ObjectMapper mapper) {
+            return json.computeIfAbsent(mapper, m -> {
+                try {
+                    return m.writeValueAsBytes(this);
+                } catch (JsonProcessingException e) {
+                    throw new IllegalStateException("Cannot encode UI module change as JSON", e);
+                }
+            });
+        }
+    }
+
+    /**
+     * The changes after some version, up to the registry's current {@link #getVersion() version}.
+     */
+    public static class Batch {
+        private final long version;
+        private final boolean reset;
+        private final List<Change> changes;
+
+        Batch(final long version, final boolean reset, final List<Change> changes) {
+            this.version = version;
+            this.reset = reset;
+            this.changes = changes;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return Whether the changes asked for are no longer known, so the whole registry must be fetched again
+         */
+        public boolean isReset() {
+            return reset;
+        }
+
+        public List<Change> getChanges() {
+            return changes;
+        }
+    }
+}
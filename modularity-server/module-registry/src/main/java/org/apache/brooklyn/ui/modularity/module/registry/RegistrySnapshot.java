@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.registry;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Ordering;
+import com.google.common.hash.Hashing;
+import org.apache.brooklyn.ui.modularity.module.api.UiModule;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * The registered modules at one version of the registry, sorted by name, as served by {@link RestUiModuleRegistry}.
+ * <p>
+ * A snapshot is built each time the set of registered modules changes, and never changes itself; its version is one
+ * more than the one it replaced. Its JSON encoding and entity tag are worked out on first use and then kept, so
+ * serving an unchanged registry costs no copying or serialization. They are kept for each mapper asked for, as the
+ * REST API encodes with the mapper of its JSON provider and persistence with {@link #MAPPER}.
+ * <p>
+ * The modules are indexed by type, bundle and path as the snapshot is built, provisional ones included, so a query
+ * filters the same modules it returns.
+ */
+public class RegistrySnapshot {
+
+    static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final Ordering<UiModule> BY_NAME = Ordering.<String>natural()
+            .onResultOf((UiModule input) -> input == null || input.getName() == null ? "" : input.getName());
+
+    public static final RegistrySnapshot EMPTY = new RegistrySnapshot(0, ImmutableList.of());
+
+    private final long version;
+    private final List<UiModule> modules;
+    private final ImmutableListMultimap<String, UiModule> byType;
+    private final ImmutableListMultimap<String, UiModule> byBundle;
+    private final ImmutableListMultimap<String, UiModule> byPath;
+    private final Map<ObjectMapper, Encoding> encodings = new ConcurrentHashMap<>(2);
+
+    RegistrySnapshot(final long version, final Collection<UiModule> modules) {
+        this.version = version;
+        // turn each from a proxy to a serializable bean; provisional ones are beans already, and must stay marked
+        this.modules = BY_NAME.immutableSortedCopy(Iterables.transform(modules, input ->
+                input instanceof RegistryStore.Provisional ? input : UiModule.Utils.copyUiModule(input)));
+        this.byType = index(this.modules, UiModule::getTypes);
+        this.byBundle = index(this.modules, uiModule -> UiModule.Utils.bundleNames(uiModule.getBundleId()));
+        this.byPath = index(this.modules, uiModule -> Collections.singletonList(normalizePath(uiModule.getPath())));
+    }
+
+    private static ImmutableListMultimap<String, UiModule> index(final List<UiModule> modules,
+                                                                 final Function<UiModule, Collection<String>> keys) {
+        final ImmutableListMultimap.Builder<String, UiModule> result = ImmutableListMultimap.builder();
+        for (final UiModule uiModule : modules) {
+            final Collection<String> moduleKeys = keys.apply(uiModule);
+            if (moduleKeys != null) {
+                moduleKeys.stream().filter(Objects::nonNull).distinct().forEach(key -> result.put(key, uiModule));
+            }
+        }
+        return result.build();
+    }
+
+    /**
+     * @return A snapshot of the modules, versioned one after this one
+     */
+    RegistrySnapshot next(final Collection<UiModule> modules) {
+        return new RegistrySnapshot(version + 1, modules);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<UiModule> getModules() {
+        return modules;
+    }
+
+    /**
+     * @return The modules having the given type, sorted by name
+     */
+    public List<UiModule> getModulesByType(final String type) {
+        return type == null ? ImmutableList.of() : byType.get(type);
+    }
+
+    /**
+     * @param bundle The bundle's symbolic name, or {@code symbolicName:version} for one version of it
+     * @return The modules from the bundle, sorted by name
+     */
+    public List<UiModule> getModulesByBundle(final String bundle) {
+        return bundle == null ? ImmutableList.of() : byBundle.get(bundle);
+    }
+
+    /**
+     * @return The modules served at the given path, ignoring a trailing slash, sorted by name
+     */
+    public List<UiModule> getModulesByPath(final String path) {
+        return path == null ? ImmutableList.of() : byPath.get(normalizePath(path));
+    }
+
+    /**
+     * @return The modules encoded as a JSON array by {@link #MAPPER}; not to be modified
+     */
+    public byte[] getJson() {
+        return getJson(MAPPER);
+    }
+
+    /**
+     * @return The modules encoded as a JSON array by the given mapper; not to be modified
+     */
+    public byte[] getJson(final ObjectMapper mapper) {
+        return encode(mapper).json;
+    }
+
+    /**
+     * @return A strong entity tag, unquoted, derived from the JSON so it stays the same across restarts
+     */
+    public String getETag() {
+        return getETag(MAPPER);
+    }
+
+    /**
+     * @return A strong entity tag, unquoted, for the JSON encoded by the given mapper
+     */
+    public String getETag(final ObjectMapper mapper) {
+        return encode(mapper).etag;
+    }
+
+    private Encoding encode(final ObjectMapper mapper) {
+        return encodings.computeIfAbsent(mapper, m -> {
+            try {
+                return new Encoding(m.writeValueAsBytes(modules));
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException("Cannot encode UI modules as JSON", e);
+            }
+        });
+    }
+
+    private static class Encoding {
+        private final byte[] json;
+        private final String etag;
+
+        private Encoding(final byte[] json) {
+            this.json = json;
+            this.etag = Hashing.sha256().hashBytes(json).toString();
+        }
+    }
+
+    /**
+     * @return The path without a trailing slash, so {@code /foo/} finds a module at {@code /foo}
+     */
+    static String normalizePath(final String path) {
+        return path != null && path.length() > 1 && path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    }
+}
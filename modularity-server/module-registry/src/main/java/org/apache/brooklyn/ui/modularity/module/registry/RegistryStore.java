@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.registry;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.collect.ImmutableList;
+import org.apache.brooklyn.ui.modularity.module.api.UiModule;
+import org.apache.brooklyn.ui.modularity.module.api.UiModuleAction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the last registry snapshot on disk, so after a restart the modules from the last run can be offered as
+ * {@link Provisional provisional} while their bundles start.
+ */
+class RegistryStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RegistryStore.class);
+    private static final ObjectReader READER = RegistrySnapshot.MAPPER
+            .readerFor(new TypeReference<List<Provisional>>() {})
+            .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    private final Path file;
+
+    RegistryStore(final Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return The modules saved last, or none if there are none or they cannot be read
+     */
+    List<Provisional> load() {
+        try {
+            return READER.readValue(Files.readAllBytes(file));
+        } catch (NoSuchFileException e) {
+            return ImmutableList.of();
+        } catch (IOException e) {
+            LOG.warn("Cannot read last known UI modules from [{}] (ignoring): {}", file, e.toString());
+            return ImmutableList.of();
+        }
+    }
+
+    /**
+     * Replaces the saved modules with the JSON of a {@link RegistrySnapshot}, atomically so a crash leaves either.
+     */
+    void save(final byte[] json) {
+        final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Files.write(temp, json);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Cannot save UI modules to [{}]: {}", file, e.toString());
+        }
+    }
+
+    /**
+     * A module from the last run, listed until its bundle registers it again or it times out. It keeps the ID it had,
+     * as the registered module will have a new one.
+     */
+    static class Provisional implements UiModule {
+        private String id;
+        private String name;
+        private String slug;
+        private String description;
+        private String icon;
+        private Set<String> types = new LinkedHashSet<>();
+        private Set<String> supersedesBundles = new LinkedHashSet<>();
+        private boolean stopExisting = true;
+        private String path;
+        private List<UiModuleAction> actions = new ArrayList<>();
+        private int order = DEFAULT_ORDER;
+        private String bundleId;
+
+        public boolean isProvisional() {
+            return true;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        public void setId(final String id) {
+            this.id = id;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        public void setName(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getSlug() {
+            return slug;
+        }
+
+        public void setSlug(final String slug) {
+            this.slug = slug;
+        }
+
+        @Override
+        public String getDescription() {
+            return description;
+        }
+
+        public void setDescription(final String description) {
+            this.description = description;
+        }
+
+        @Override
+        public String getIcon() {
+            return icon;
+        }
+
+        public void setIcon(final String icon) {
+            this.icon = icon;
+        }
+
+        @Override
+        public Set<String> getTypes() {
+            return types;
+        }
+
+        public void setTypes(final Set<String> types) {
+            this.types = types;
+        }
+
+        @Override
+        public Set<String> getSupersedesBundles() {
+            return supersedesBundles;
+        }
+
+        public void setSupersedesBundles(final Set<String> supersedesBundles) {
+            this.supersedesBundles = supersedesBundles;
+        }
+
+        @Override
+        public boolean getStopExisting() {
+            return stopExisting;
+        }
+
+        public void setStopExisting(final boolean stopExisting) {
+            this.stopExisting = stopExisting;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        public void setPath(final String path) {
+            this.path = path;
+        }
+
+        @Override
+        public List<UiModuleAction> getActions() {
+            return actions;
+        }
+
+        @JsonDeserialize(contentAs = Action.class)
+        public void setActions(final List<UiModuleAction> actions) {
+            this.actions = actions;
+        }
+
+        @Override
+        public int getOrder() {
+            return order;
+        }
+
+        public void setOrder(final int order) {
+            this.order = order;
+        }
+
+        @Override
+        public String getBundleId() {
+            return bundleId;
+        }
+
+        public void setBundleId(final String bundleId) {
+            this.bundleId = bundleId;
+        }
+    }
+
+    /**
+     * An action of a {@link Provisional} module.
+     */
+    static class Action implements UiModuleAction {
+        private String name;
+        private String path;
+        private String icon;
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        public void setName(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        public void setPath(final String path) {
+            this.path = path;
+        }
+
+        @Override
+        public String getIcon() {
+            return icon;
+        }
+
+        public void setIcon(final String icon) {
+            this.icon = icon;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.registry;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Providers;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Pushes changes to the registry to clients, so a menu of modules can update as soon as one is installed rather than
+ * re-fetching {@code /ui-module-registry}. A client starts from the version in that endpoint's
+ * {@value RestUiModuleRegistry#VERSION_HEADER} header and then either:
+ * <ul>
+ *     <li>opens a server-sent event stream ({@code Accept: text/event-stream}), each event's ID being the version it
+ *     brings the registry to, so an {@code EventSource} resumes where it left off when it reconnects; or</li>
+ *     <li>long-polls, asking for the changes {@code since} a version, and is answered as soon as there are any.</li>
+ * </ul>
+ * Neither holds a thread while it waits: the request is suspended, and resumed by the next change or a timeout. So a
+ * stream carries the events of one change and then ends, and the {@code EventSource} reconnects shortly after to
+ * wait for the next. Streams and polls together are still capped, to bound the connections held open.
+ */
+@Path("/changes")
+public class RestUiModuleChanges {
+
+    private static final String EVENT_STREAM = "text/event-stream";
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private UiModuleRegistryImpl uiModuleRegistry;
+    private volatile ObjectMapper mapper;
+    private Semaphore connections = new Semaphore(200);
+    private long pollTimeoutSeconds = 30;
+    private long streamSeconds = 30;
+
+    /**
+     * Answers with the changes after {@code since} as soon as there are any, or with none after the timeout.
+     */
+    @GET
+    @Consumes(MediaType.WILDCARD)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void poll(@QueryParam("since") final Long since, @Suspended final AsyncResponse async) {
+        final RegistryChangeFeed feed = uiModuleRegistry.getChangeFeed();
+        final long from = since == null ? feed.getVersion() : since;
+        answerOnChange(feed, from, pollTimeoutSeconds, async, batch -> batch);
+    }
+
+    /**
+     * Streams the next change as events named after their type, with the change as JSON data, or a comment to keep
+     * the connection alive if there is none before the timeout. A client already behind is sent what it missed at once.
+     */
+    @GET
+    @Consumes(MediaType.WILDCARD)
+    @Produces(EVENT_STREAM)
+    public void stream(@QueryParam("since") final Long since, @HeaderParam("Last-Event-ID") final Long lastEventId,
+                       @Context final Providers providers, @Suspended final AsyncResponse async) {
+        final RegistryChangeFeed feed = uiModuleRegistry.getChangeFeed();
+        final long from = lastEventId != null ? lastEventId : since != null ? since : feed.getVersion();
+        final ObjectMapper mapper = getMapper(providers);
+        answerOnChange(feed, from, streamSeconds, async, batch -> Response.ok(events(batch, mapper), EVENT_STREAM)
+                .header(HttpHeaders.CACHE_CONTROL, "no-cache")
+                .build());
+    }
+
+    /**
+     * Resumes the request with the changes after {@code from} as soon as there are any, or with none after the
+     * timeout, without a thread waiting meanwhile.
+     */
+    private void answerOnChange(final RegistryChangeFeed feed, final long from, final long timeoutSeconds,
+                                final AsyncResponse async, final Function<RegistryChangeFeed.Batch, Object> answer) {
+        final RegistryChangeFeed.Batch batch = feed.since(from);
+        if (batch.isReset() || !batch.getChanges().isEmpty()) {
+            async.resume(answer.apply(batch));
+            return;
+        }
+        if (!connections.tryAcquire()) {
+            async.resume(tooManyConnections());
+            return;
+        }
+        // answered by whichever comes first, the next change or the timeout
+        final AtomicBoolean answered = new AtomicBoolean();
+        final Runnable resume = () -> {
+            if (answered.compareAndSet(false, true)) {
+                connections.release();
+                async.resume(answer.apply(feed.since(from)));
+            }
+        };
+        async.setTimeout(timeoutSeconds, TimeUnit.SECONDS);
+        async.setTimeoutHandler(response -> {
+            feed.removeListener(resume);
+            resume.run();
+        });
+        feed.onNextChange(resume);
+        if (feed.getVersion() != from) {
+            // changed before the listener was added
+            feed.removeListener(resume);
+            resume.run();
+        }
+    }
+
+    private static byte[] events(final RegistryChangeFeed.Batch batch, final ObjectMapper mapper) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, "retry: " + RECONNECT_MILLIS + "\n\n");
+        if (batch.isReset()) {
+            write(out, "id: " + batch.getVersion() + "\nevent: reset\ndata: {\"version\":" + batch.getVersion() + "}\n\n");
+        } else if (batch.getChanges().isEmpty()) {
+            write(out, ": keep-alive\n\n");
+        }
+        for (final RegistryChangeFeed.Change change : batch.getChanges()) {
+            write(out, "id: " + change.getVersion() + "\nevent: " + change.getType() + "\ndata: ");
+            final byte[] json = change.getJson(mapper);
+            out.write(json, 0, json.length);
+            write(out, "\n\n");
+        }
+        return out.toByteArray();
+    }
+
+    private ObjectMapper getMapper(final Providers providers) {
+        ObjectMapper result = mapper;
+        if (result == null) {
+            mapper = result = RestUiModuleRegistry.locateMapper(providers);
+        }
+        return result;
+    }
+
+    private static void write(final ByteArrayOutputStream out, final String text) {
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static Response tooManyConnections() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, 5)
+                .build();
+    }
+
+    public void setUiModuleRegistry(final UiModuleRegistryImpl uiModuleRegistry) {
+        this.uiModuleRegistry = uiModuleRegistry;
+    }
+
+    public void setMaxConnections(final int maxConnections) {
+        this.connections = new Semaphore(maxConnections);
+    }
+
+    public void setPollTimeoutSeconds(final long pollTimeoutSeconds) {
+        this.pollTimeoutSeconds = pollTimeoutSeconds;
+    }
+
+    /**
+     * How long a stream waits for a change before it ends with a keep-alive, for the client to reconnect.
+     */
+    public void setStreamSeconds(final long streamSeconds) {
+        this.streamSeconds = streamSeconds;
+    }
+}
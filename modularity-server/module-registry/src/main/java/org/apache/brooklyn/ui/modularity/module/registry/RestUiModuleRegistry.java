@@ -18,44 +18,143 @@
  */
 package org.apache.brooklyn.ui.modularity.module.registry;
 
-import java.util.Collection;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
+import com.google.common.hash.Hashing;
+import org.apache.brooklyn.ui.modularity.module.api.UiModule;
+import org.apache.brooklyn.ui.modularity.module.api.UiModuleRegistry;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
-
-import org.apache.brooklyn.ui.modularity.module.api.UiModule;
-import org.apache.brooklyn.ui.modularity.module.api.UiModuleRegistry;
-
-import com.google.common.base.Function;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Ordering;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Providers;
+import java.lang.annotation.Annotation;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Path("/")
 public class RestUiModuleRegistry {
 
+    static final String VERSION_HEADER = "X-UI-Module-Registry-Version";
+
     private UiModuleRegistry uiModuleRegistry;
-    private static final Function<UiModule, String> GET_NAME_FUNCTION = new Function<UiModule, String>() {
-        @Override
-        public String apply(UiModule input) {
-            if (input != null) {
-                return input.getName();
-            }
-            return "";
-        }
-    };
+    private volatile ObjectMapper mapper;
 
+    /**
+     * Returns the registered modules as a JSON array sorted by name. The encoding is built once per change to the
+     * registry, and a client sending back its entity tag in {@code If-None-Match} gets 304 until the next change.
+     * <p>
+     * The modules can be narrowed to those with a {@code type}, from a {@code bundle} (by symbolic name, or as
+     * {@code symbolicName:version} for one version) or at a {@code path}, and each
+     * module to a comma-separated list of {@code fields}, so a page fetches only what it renders.
+     */
     @GET
     @Consumes(MediaType.WILDCARD)
     @Produces(MediaType.APPLICATION_JSON)
-    public Collection<UiModule> getRegisteredWebComponents() {
-        return Ordering.natural()
-                .onResultOf(GET_NAME_FUNCTION)
-                .immutableSortedCopy(
-                    // turn it from a proxy to a serializable bean
-                    Iterables.transform(uiModuleRegistry.getRegisteredModules(), x -> UiModule.Utils.copyUiModule(x)));
+    public Response getRegisteredWebComponents(@Context final Request request,
+                                               @Context final Providers providers,
+                                               @QueryParam("type") final String type,
+                                               @QueryParam("bundle") final String bundle,
+                                               @QueryParam("path") final String path,
+                                               @QueryParam("fields") final String fields) {
+        final RegistrySnapshot snapshot = getSnapshot();
+        final ObjectMapper mapper = getMapper(providers);
+        final byte[] json;
+        final EntityTag etag;
+        if (type == null && bundle == null && path == null && fields == null) {
+            json = snapshot.getJson(mapper);
+            etag = new EntityTag(snapshot.getETag(mapper));
+        } else {
+            json = query(mapper, snapshot, type, bundle, path, fields);
+            etag = new EntityTag(Hashing.sha256().hashBytes(json).toString());
+        }
+        final Response.ResponseBuilder notModified = request.evaluatePreconditions(etag);
+        if (notModified != null) {
+            return notModified.tag(etag).header(VERSION_HEADER, snapshot.getVersion()).build();
+        }
+        return Response.ok(json, MediaType.APPLICATION_JSON_TYPE)
+                .tag(etag)
+                .header(VERSION_HEADER, snapshot.getVersion())
+                .build();
+    }
+
+    private RegistrySnapshot getSnapshot() {
+        if (uiModuleRegistry instanceof UiModuleRegistryImpl) {
+            return ((UiModuleRegistryImpl) uiModuleRegistry).getSnapshot();
+        }
+        // another implementation keeps no snapshot, so each request takes its own
+        return RegistrySnapshot.EMPTY.next(uiModuleRegistry.getRegisteredModules());
+    }
+
+    private ObjectMapper getMapper(final Providers providers) {
+        ObjectMapper result = mapper;
+        if (result == null) {
+            mapper = result = locateMapper(providers);
+        }
+        return result;
+    }
+
+    /**
+     * @return The mapper of the JAX-RS server's JSON provider, so modules are encoded as any other Brooklyn REST
+     * response, or {@link RegistrySnapshot#MAPPER} if the provider is not Jackson's
+     */
+    static ObjectMapper locateMapper(final Providers providers) {
+        final MessageBodyWriter<UiModule> writer = providers == null ? null
+                : providers.getMessageBodyWriter(UiModule.class, UiModule.class, new Annotation[0], MediaType.APPLICATION_JSON_TYPE);
+        return writer instanceof JacksonJsonProvider
+                ? ((JacksonJsonProvider) writer).locateMapper(UiModule.class, MediaType.APPLICATION_JSON_TYPE)
+                : RegistrySnapshot.MAPPER;
+    }
+
+    private byte[] query(final ObjectMapper mapper, final RegistrySnapshot snapshot, final String type, final String bundle, final String path, final String fields) {
+        // the snapshot's indexes find the matching IDs among its own modules, provisional ones included
+        Set<String> ids = null;
+        if (type != null) {
+            ids = intersect(ids, snapshot.getModulesByType(type));
+        }
+        if (bundle != null) {
+            ids = intersect(ids, snapshot.getModulesByBundle(bundle));
+        }
+        if (path != null) {
+            ids = intersect(ids, snapshot.getModulesByPath(path));
+        }
+        final List<String> projection = fields == null ? null : Splitter.on(',').trimResults().omitEmptyStrings().splitToList(fields);
+        final ArrayNode result = mapper.createArrayNode();
+        for (final UiModule uiModule : snapshot.getModules()) {
+            if (ids == null || ids.contains(uiModule.getId())) {
+                final ObjectNode node = mapper.valueToTree(uiModule);
+                if (projection != null) {
+                    node.retain(projection);
+                }
+                result.add(node);
+            }
+        }
+        try {
+            return mapper.writeValueAsBytes(result);
+        } catch (JsonProcessingException e) {
+            throw new WebApplicationException(e);
+        }
+    }
+
+    private static Set<String> intersect(final Set<String> ids, final Collection<UiModule> matches) {
+        final Set<String> matched = matches.stream().map(UiModule::getId).collect(Collectors.toSet());
+        return ids == null ? matched : ImmutableSet.copyOf(ids.stream().filter(matched::contains).iterator());
     }
 
     public void setUiModuleRegistry(final UiModuleRegistry uiModuleRegistry) {
@@ -18,88 +18,373 @@
  */
 package org.apache.brooklyn.ui.modularity.module.registry;
 
-import com.google.common.io.CharStreams;
+import com.google.common.collect.ImmutableList;
 import org.apache.brooklyn.ui.modularity.module.api.UiModule;
 import org.apache.brooklyn.ui.modularity.module.api.UiModuleRegistry;
-import org.apache.brooklyn.ui.modularity.module.api.internal.UiModuleImpl;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.yaml.snakeyaml.Yaml;
-import org.yaml.snakeyaml.events.Event;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class UiModuleRegistryImpl implements UiModuleRegistry {
     private static final Logger LOG = LoggerFactory.getLogger(UiModuleRegistryImpl.class);
+    private static final Path DEFAULT_CONFIG_FILE = Paths.get("etc", "brooklyn-ui.cfg");
+    private static final Path DEFAULT_STATE_FILE = Paths.get(System.getProperty("karaf.data", "data"), "brooklyn-ui-module-registry.json");
+
     // keyed on UUID (doesn't really matter what)
     // also note the context paths will normally be unique, as even if diff versions of same bundle are installed,
     // only one will have the servlet context initialized and thus only one will normally be available here;
     // however due to asynchronous callback of unregister the register(v2) and unregister(v1) might occur in either order,
     // so we mustn't key on the slug or the context path here!
     private final ConcurrentHashMap<String, UiModule> registry = new ConcurrentHashMap<>();
+    // every module bound, including excluded ones, so a change to the rules can bring them back
+    private final ConcurrentHashMap<String, UiModule> bound = new ConcurrentHashMap<>();
+    private final ModuleIndex byType = new ModuleIndex(uiModule ->
+            uiModule.getTypes() == null ? ImmutableList.of() : uiModule.getTypes());
+    private final ModuleIndex byBundle = new ModuleIndex(uiModule -> UiModule.Utils.bundleNames(uiModule.getBundleId()));
+    private final ModuleIndex byPath = new ModuleIndex(uiModule ->
+            uiModule.getPath() == null ? ImmutableList.of() : ImmutableList.of(RegistrySnapshot.normalizePath(uiModule.getPath())));
+    private final AtomicReference<ExclusionRules> rules = new AtomicReference<>(ExclusionRules.NONE);
+    private final Path configFile;
+    private final RegistryStore store;
+    // modules from the last run whose bundles have not registered them again yet, keyed on their old ID
+    private final Map<String, UiModule> provisional = new LinkedHashMap<>();
+    private long provisionalTimeoutSeconds = 120;
+    private ScheduledExecutorService scheduler;
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+    private volatile RegistrySnapshot snapshot = RegistrySnapshot.EMPTY;
+    private final RegistryChangeFeed changeFeed = new RegistryChangeFeed(1000);
+    private WatchService watchService;
+    private Thread watcher;
+
+    public UiModuleRegistryImpl() {
+        this(DEFAULT_CONFIG_FILE, DEFAULT_STATE_FILE);
+    }
+
+    UiModuleRegistryImpl(final Path configFile) {
+        this(configFile, null);
+    }
+
+    UiModuleRegistryImpl(final Path configFile, final Path stateFile) {
+        this.configFile = configFile;
+        this.store = stateFile == null ? null : new RegistryStore(stateFile);
+        reloadRules();
+    }
+
+    /**
+     * Lists the modules saved from the last run until their bundles start, and starts watching
+     * {@code brooklyn-ui.cfg}, so edits to the exclusion rules apply without a restart.
+     */
+    public synchronized void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "brooklyn-ui-module-registry-state");
+            thread.setDaemon(true);
+            return thread;
+        });
+        loadProvisional();
+
+        final Path dir = configFile.toAbsolutePath().getParent();
+        if (dir == null || !Files.isDirectory(dir)) {
+            LOG.debug("Not watching [{}] for changes, as its directory does not exist", configFile);
+            return;
+        }
+        try {
+            watchService = dir.getFileSystem().newWatchService();
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            LOG.warn("Changes to [{}] will not apply until restart: {}", configFile, e.toString());
+            return;
+        }
+        watcher = new Thread(this::watch, "brooklyn-ui-module-registry-config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public synchronized void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                LOG.debug("Failed to stop watching [{}]: {}", configFile, e.toString());
+            }
+            watchService = null;
+        }
+        if (watcher != null) {
+            watcher.interrupt();
+            watcher = null;
+        }
+    }
+
+    private void watch() {
+        final WatchService service = watchService;
+        final Path name = configFile.getFileName();
+        try {
+            while (true) {
+                final WatchKey key = service.take();
+                boolean changed = false;
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context());
+                }
+                if (changed) {
+                    reloadRules();
+                }
+                if (!key.reset()) {
+                    LOG.debug("Stopped watching [{}], as its directory is no longer accessible", configFile);
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped by destroy()
+        }
+    }
+
+    /**
+     * Reads the exclusion rules again and applies them to every module bound so far. If the file cannot be read,
+     * as it may not be while an editor is still writing it, the rules in force are kept.
+     */
+    void reloadRules() {
+        final ExclusionRules next;
+        try {
+            next = ExclusionRules.load(configFile);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Invalid brooklyn-ui.cfg (ignoring): "+e, e);
+            return;
+        }
+        rules.set(next);
+        reevaluate();
+    }
+
+    private synchronized void reevaluate() {
+        final ExclusionRules current = rules.get();
+        final Map<UiModule, RegistryChangeFeed.Type> changes = new LinkedHashMap<>();
+        for (final UiModule uiModule : bound.values()) {
+            if (current.isExcluded(uiModule.getBundleId())) {
+                if (registry.remove(uiModule.getId()) != null) {
+                    unindex(uiModule.getId());
+                    LOG.info("Brooklyn web component [{}] [{}] is now excluded from the registry", uiModule.getId(), uiModule.getName());
+                    changes.put(uiModule, RegistryChangeFeed.Type.REMOVED);
+                }
+            } else if (registry.putIfAbsent(uiModule.getId(), uiModule) == null) {
+                index(uiModule);
+                LOG.info("Brooklyn web component [{}] [{}] is no longer excluded; registering", uiModule.getId(), uiModule.getName());
+                changes.put(uiModule, RegistryChangeFeed.Type.ADDED);
+            }
+        }
+        for (final Iterator<UiModule> i = provisional.values().iterator(); i.hasNext(); ) {
+            final UiModule uiModule = i.next();
+            if (current.isExcluded(uiModule.getBundleId())) {
+                i.remove();
+                changes.put(uiModule, RegistryChangeFeed.Type.REMOVED);
+            }
+        }
+        if (!changes.isEmpty()) {
+            publish(changes);
+        }
+    }
+
+    /**
+     * Lists the modules saved at the last change, unless excluded or registered already, until their bundles
+     * register them again or the timeout passes, so navigation is complete as soon as the registry starts.
+     */
+    private void loadProvisional() {
+        if (store == null) {
+            return;
+        }
+        final Map<UiModule, RegistryChangeFeed.Type> changes = new LinkedHashMap<>();
+        for (final UiModule uiModule : store.load()) {
+            if (uiModule.getId() != null && !isExcluded(uiModule) && !registry.containsKey(uiModule.getId())
+                    && registry.values().stream().noneMatch(registered -> isSameModule(registered, uiModule))) {
+                provisional.put(uiModule.getId(), uiModule);
+                changes.put(uiModule, RegistryChangeFeed.Type.ADDED);
+            }
+        }
+        if (!changes.isEmpty()) {
+            LOG.debug("Listing {} Brooklyn web components from the last run until their bundles start", changes.size());
+            publish(changes);
+            scheduler.schedule(this::expireProvisional, provisionalTimeoutSeconds, TimeUnit.SECONDS);
+        }
+    }
 
-    public void register(final UiModule uiModule) {
+    private synchronized void expireProvisional() {
+        if (provisional.isEmpty()) {
+            return;
+        }
+        final Map<UiModule, RegistryChangeFeed.Type> changes = new LinkedHashMap<>();
+        for (final UiModule uiModule : provisional.values()) {
+            LOG.info("Brooklyn web component [{}] [{}] from the last run did not start within {}s; removing",
+                    uiModule.getId(), uiModule.getName(), provisionalTimeoutSeconds);
+            changes.put(uiModule, RegistryChangeFeed.Type.REMOVED);
+        }
+        provisional.clear();
+        publish(changes);
+    }
+
+    /**
+     * Drops the provisional entries a newly registered module stands for.
+     */
+    private void confirm(final UiModule uiModule, final Map<UiModule, RegistryChangeFeed.Type> changes) {
+        for (final Iterator<UiModule> i = provisional.values().iterator(); i.hasNext(); ) {
+            final UiModule previous = i.next();
+            if (isSameModule(uiModule, previous)) {
+                i.remove();
+                changes.put(previous, RegistryChangeFeed.Type.REMOVED);
+            }
+        }
+    }
+
+    private static boolean isSameModule(final UiModule a, final UiModule b) {
+        return (a.getBundleId() != null && a.getBundleId().equals(b.getBundleId()))
+                || (a.getPath() != null && Objects.equals(RegistrySnapshot.normalizePath(a.getPath()), RegistrySnapshot.normalizePath(b.getPath())));
+    }
+
+    private void scheduleSave() {
+        // only while active: as the registry or Karaf stops, modules unregister and the last state must stay saved
+        if (store == null || scheduler == null) {
+            return;
+        }
+        if (saveScheduled.compareAndSet(false, true)) {
+            // coalesces the burst of changes as bundles start
+            scheduler.schedule(() -> {
+                saveScheduled.set(false);
+                if (isStopping()) {
+                    LOG.debug("Not saving UI modules, as the registry is stopping");
+                } else {
+                    store.save(snapshot.getJson());
+                }
+            }, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    private static boolean isStopping() {
+        final Bundle bundle = FrameworkUtil.getBundle(UiModuleRegistryImpl.class);
+        if (bundle == null) {
+            return false;
+        }
+        final BundleContext context = bundle.getBundleContext();
+        return context == null || bundle.getState() == Bundle.STOPPING || context.getBundle(0).getState() == Bundle.STOPPING;
+    }
+
+    /**
+     * Replaces the snapshot with one of the modules registered now, and records the changes which led to it;
+     * called with the lock held after each change.
+     */
+    private void publish(final Map<UiModule, RegistryChangeFeed.Type> changes) {
+        final List<UiModule> modules = new ArrayList<>(registry.values());
+        modules.addAll(provisional.values());
+        final RegistrySnapshot next = snapshot.next(modules);
+        snapshot = next;
+        final List<RegistryChangeFeed.Change> batch = new ArrayList<>(changes.size());
+        for (final Map.Entry<UiModule, RegistryChangeFeed.Type> change : changes.entrySet()) {
+            batch.add(new RegistryChangeFeed.Change(next.getVersion(), change.getValue(), change.getKey()));
+        }
+        changeFeed.append(next.getVersion(), batch);
+        scheduleSave();
+    }
+
+    private void publish(final UiModule uiModule, final RegistryChangeFeed.Type type) {
+        publish(Collections.singletonMap(uiModule, type));
+    }
+
+    public RegistryChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    /**
+     * @return The registered modules as of the last change, which is never modified
+     */
+    public RegistrySnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public synchronized void register(final UiModule uiModule) {
         if (uiModule.getId()==null) {
             LOG.error("Skipping invalid Brooklyn UI module "+uiModule, new Throwable("source of error"));
             return;
         }
+        bound.put(uiModule.getId(), uiModule);
         if (isExcluded(uiModule)) {
             LOG.info("Brooklyn web component [{}] [{}] is excluded from the registry in this deployment", uiModule.getId(), uiModule.getName());
         } else {
             LOG.info("Registering new Brooklyn web component [{}] [{}]", uiModule.getId(), uiModule.getName());
-            registry.put(uiModule.getId(), uiModule);
+            final UiModule previous = registry.put(uiModule.getId(), uiModule);
+            index(uiModule);
+            final Map<UiModule, RegistryChangeFeed.Type> changes = new LinkedHashMap<>();
+            confirm(uiModule, changes);
+            changes.put(uiModule, previous == null ? RegistryChangeFeed.Type.ADDED : RegistryChangeFeed.Type.MODIFIED);
+            publish(changes);
         }
     }
 
-    Map brooklynUiCfg;
     public boolean isExcluded(UiModule uiModule) {
-        InputStream s = null;
-        try {
-            s = new URL("file:etc/brooklyn-ui.cfg").openStream();
-            if (s==null) return false;
-        } catch (IOException e) {
-            LOG.trace("No brooklyn-ui.cfg found. Module settings will use defaults.");
-        }
-        try {
-            if (brooklynUiCfg==null) {
-                brooklynUiCfg = new Yaml().load(s);
-                if (brooklynUiCfg==null) brooklynUiCfg = Collections.emptyMap();
-            }
-            String bundleId = uiModule.getBundleId();
-
-            if (bundleId==null) {
-                Boolean excludeNull = (Boolean) brooklynUiCfg.get("exclude_bundle_unset");
-                if (excludeNull == null) return false;
-                return excludeNull;
-            } else {
-                List<String> exclusions = (List<String>) brooklynUiCfg.get("exclude_bundle_regex");
-                if (exclusions != null) {
-                    for (String ex : exclusions) {
-                        if (bundleId.matches(ex)) return true;
-                    }
-                }
-            }
-        } catch (Exception e) {
-            LOG.warn("Invalid brooklyn-ui.cfg (ignoring): "+e, e);
-            if (brooklynUiCfg==null) brooklynUiCfg = Collections.emptyMap();
-        }
-        return false;
+        return rules.get().isExcluded(uiModule.getBundleId());
     }
 
-    public void unregister(final UiModule uiModule) {
+    public synchronized void unregister(final UiModule uiModule) {
         if (uiModule != null) {
             LOG.info("Unregistered new Brooklyn web component [{}] [{}]", uiModule.getId(),  uiModule.getName());
-            registry.remove(uiModule.getId());
+            bound.remove(uiModule.getId());
+            if (registry.remove(uiModule.getId()) != null) {
+                unindex(uiModule.getId());
+                publish(uiModule, RegistryChangeFeed.Type.REMOVED);
+            }
         }
     }
 
+    public void setProvisionalTimeoutSeconds(final long provisionalTimeoutSeconds) {
+        this.provisionalTimeoutSeconds = provisionalTimeoutSeconds;
+    }
+
     public Collection<UiModule> getRegisteredModules() {
         return registry.values();
     }
+
+    @Override
+    public Collection<UiModule> getModulesByType(final String type) {
+        return byType.get(type);
+    }
+
+    @Override
+    public Collection<UiModule> getModulesByBundle(final String bundle) {
+        return byBundle.get(bundle);
+    }
+
+    @Override
+    public Collection<UiModule> getModulesByPath(final String path) {
+        return byPath.get(RegistrySnapshot.normalizePath(path));
+    }
+
+    private void index(final UiModule uiModule) {
+        byType.add(uiModule);
+        byBundle.add(uiModule);
+        byPath.add(uiModule);
+    }
+
+    private void unindex(final String id) {
+        byType.remove(id);
+        byBundle.remove(id);
+        byPath.remove(id);
+    }
 }
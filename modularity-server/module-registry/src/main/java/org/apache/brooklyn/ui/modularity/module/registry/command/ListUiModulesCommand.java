@@ -23,10 +23,13 @@ import org.apache.brooklyn.ui.modularity.module.api.UiModule;
 import org.apache.brooklyn.ui.modularity.module.api.UiModuleRegistry;
 import org.apache.karaf.shell.api.action.Action;
 import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
 import org.apache.karaf.shell.api.action.lifecycle.Reference;
 import org.apache.karaf.shell.api.action.lifecycle.Service;
 import org.apache.karaf.shell.support.table.ShellTable;
 
+import java.util.Collection;
+
 @Command(scope = "brooklyn", name = "list-ui-modules", description = "List registered Brooklyn UI Modules")
 @Service
 public class ListUiModulesCommand implements Action {
@@ -34,6 +37,12 @@ public class ListUiModulesCommand implements Action {
     @Reference
     private UiModuleRegistry registry;
 
+    @Option(name = "--type", description = "Only list modules of this type, eg single-page-app")
+    private String type;
+
+    @Option(name = "--bundle", description = "Only list modules from the bundle with this symbolic name, or symbolic-name:version")
+    private String bundle;
+
     public Object execute() throws Exception {
         ShellTable table = new ShellTable();
         table.column("ID");
@@ -41,7 +50,13 @@ public class ListUiModulesCommand implements Action {
         table.column("TYPES");
         table.column("PATH");
 
-        for (final UiModule component : registry.getRegisteredModules()) {
+        final Collection<UiModule> components = type != null ? registry.getModulesByType(type)
+                : bundle != null ? registry.getModulesByBundle(bundle)
+                : registry.getRegisteredModules();
+        for (final UiModule component : components) {
+            if (bundle != null && !UiModule.Utils.bundleNames(component.getBundleId()).contains(bundle)) {
+                continue;
+            }
             table.addRow().addContent(
                     component.getId(), component.getName(), component.getTypes(), component.getPath());
         }
@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.registry.internal;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Stops responses being cached, as Brooklyn's {@code NoCacheFilter} does, except those with an entity tag. These are
+ * marked {@code no-cache} alone: a browser may keep them but must revalidate each time, sending the tag back in
+ * {@code If-None-Match} to be answered with 304 while nothing has changed. With {@code no-store} it would keep nothing
+ * to revalidate, and fetch the whole registry on every page load.
+ */
+@Provider
+public class NoCacheUnlessTaggedFilter implements ContainerResponseFilter {
+
+    @Override
+    public void filter(final ContainerRequestContext requestContext, final ContainerResponseContext responseContext) {
+        final MultivaluedMap<String, Object> headers = responseContext.getHeaders();
+        if (responseContext.getEntityTag() != null) {
+            headers.putSingle(HttpHeaders.CACHE_CONTROL, "no-cache");
+            headers.remove("Pragma");
+            headers.remove(HttpHeaders.EXPIRES);
+        } else {
+            headers.putSingle(HttpHeaders.CACHE_CONTROL, "no-cache, no-store");
+            headers.putSingle("Pragma", "no-cache");
+            headers.putSingle(HttpHeaders.EXPIRES, "0");
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.registry;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ExclusionRulesTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExclusionRulesTest.class);
+
+    @Test
+    public void matchesLikeEachRuleOnItsOwn() {
+        final List<String> regexes = ImmutableList.of(
+                "org\\.example\\.legacy", "org.example.ui.*", "(?i)com\\.acme\\..*-beta", "(net)\\.\\1", "[invalid");
+        final ExclusionRules rules = new ExclusionRules(false, regexes);
+        assertThat(rules.size()).isEqualTo(4);
+
+        for (final String bundleId : ImmutableList.of("org.example.legacy", "org.example.legacy2", "orgXexample.ui.home",
+                "org.example.ui", "COM.ACME.UI-BETA", "com.acme.ui", "net.net", "net.org", "")) {
+            boolean expected = false;
+            for (final String regex : regexes.subList(0, 4)) {
+                expected |= bundleId.matches(regex);
+            }
+            assertThat(rules.isExcluded(bundleId)).as(bundleId).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void unsetBundleFollowsItsOwnSetting() {
+        assertThat(ExclusionRules.NONE.isExcluded(null)).isFalse();
+        assertThat(ExclusionRules.fromConfig(ImmutableMap.of("exclude_bundle_unset", true)).isExcluded(null)).isTrue();
+        assertThat(ExclusionRules.fromConfig(null).isExcluded("org.example")).isFalse();
+    }
+
+    @Test(groups = "Integration")
+    public void benchmarkHundredsOfRules() {
+        final List<String> regexes = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            regexes.add("org\\.example\\.module" + i);
+            regexes.add("com\\.vendor" + i + "\\.ui\\..*");
+        }
+        final List<Pattern> patterns = new ArrayList<>();
+        for (final String regex : regexes) {
+            patterns.add(Pattern.compile(regex));
+        }
+        final ExclusionRules rules = new ExclusionRules(false, regexes);
+        final String[] bundles = {"org.example.module249", "com.vendor249.ui.home", "org.apache.brooklyn.ui.home"};
+
+        for (int run = 0; run < 5; run++) {
+            int matches = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < 2_000; i++) {
+                for (final String bundle : bundles) {
+                    for (final String regex : regexes) {
+                        if (bundle.matches(regex)) {
+                            matches++;
+                            break;
+                        }
+                    }
+                }
+            }
+            final long perRegexNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < 2_000; i++) {
+                for (final String bundle : bundles) {
+                    for (final Pattern pattern : patterns) {
+                        if (pattern.matcher(bundle).matches()) {
+                            matches++;
+                            break;
+                        }
+                    }
+                }
+            }
+            final long precompiledNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < 2_000; i++) {
+                for (final String bundle : bundles) {
+                    if (rules.isExcluded(bundle)) {
+                        matches++;
+                    }
+                }
+            }
+            final long rulesNanos = System.nanoTime() - start;
+
+            LOG.info("500 rules, 6000 checks: String.matches {}ms, precompiled loop {}ms, ExclusionRules {}ms",
+                    TimeUnit.NANOSECONDS.toMillis(perRegexNanos), TimeUnit.NANOSECONDS.toMillis(precompiledNanos),
+                    TimeUnit.NANOSECONDS.toMillis(rulesNanos));
+            assertThat(matches).isEqualTo(3 * 2 * 2_000);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.registry;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.brooklyn.ui.modularity.module.api.internal.UiModuleImpl;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RegistryChangeFeedTest {
+
+    @Test
+    public void recordsRegistryChangesByVersion() throws IOException {
+        final UiModuleRegistryImpl registry = new UiModuleRegistryImpl(Files.createTempDirectory("ui-module-registry-test").resolve("none.cfg"));
+        final RegistryChangeFeed feed = registry.getChangeFeed();
+        final UiModuleImpl home = new UiModuleImpl().id("1").name("Home").bundleId("org.example.home");
+        registry.register(home);
+        registry.register(new UiModuleImpl().id("1").name("Home 2").bundleId("org.example.home"));
+        registry.unregister(home);
+
+        assertThat(feed.getVersion()).isEqualTo(registry.getSnapshot().getVersion()).isEqualTo(3);
+        assertThat(feed.since(0).getChanges()).extracting("type").containsExactly("added", "modified", "removed");
+        assertThat(feed.since(1).getChanges()).extracting("version").containsExactly(2L, 3L);
+        assertThat(feed.since(3).getChanges()).isEmpty();
+        assertThat(feed.since(3).isReset()).isFalse();
+
+        final RegistryChangeFeed.Change removed = feed.since(2).getChanges().get(0);
+        assertThat(removed.getModule()).isNull();
+        assertThat(new String(removed.getJson(), StandardCharsets.UTF_8))
+                .contains("\"type\":\"removed\"", "\"id\":\"1\"", "\"version\":3");
+    }
+
+    @Test
+    public void resetsClientsItCannotCatchUp() {
+        final RegistryChangeFeed feed = new RegistryChangeFeed(2);
+        for (int v = 1; v <= 4; v++) {
+            feed.append(v, ImmutableList.of(change(v)));
+        }
+        assertThat(feed.since(1).isReset()).isTrue();
+        assertThat(feed.since(2).isReset()).isFalse();
+        assertThat(feed.since(2).getChanges()).extracting("version").containsExactly(3L, 4L);
+        // from before a restart
+        assertThat(feed.since(10).isReset()).isTrue();
+        assertThat(feed.since(10).getVersion()).isEqualTo(4);
+    }
+
+    @Test
+    public void wakesWaitersOnChange() {
+        final RegistryChangeFeed feed = new RegistryChangeFeed(10);
+        final List<List<RegistryChangeFeed.Change>> seen = new ArrayList<>();
+        feed.onNextChange(() -> seen.add(feed.since(0).getChanges()));
+        final AtomicInteger removed = new AtomicInteger();
+        final Runnable gone = removed::incrementAndGet;
+        feed.onNextChange(gone);
+        feed.removeListener(gone);
+        assertThat(seen).isEmpty();
+
+        // listeners run after the change is recorded, so see it
+        feed.append(1, ImmutableList.of(change(1)));
+        assertThat(seen).hasSize(1);
+        assertThat(seen.get(0)).extracting("version").containsExactly(1L);
+        assertThat(removed.get()).isZero();
+
+        // listeners run once
+        feed.append(2, ImmutableList.of(change(2)));
+        assertThat(seen).hasSize(1);
+    }
+
+    private static RegistryChangeFeed.Change change(final long version) {
+        return new RegistryChangeFeed.Change(version, RegistryChangeFeed.Type.ADDED,
+                new UiModuleImpl().id(String.valueOf(version)).name("Module " + version));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.registry;
+
+import org.apache.brooklyn.ui.modularity.module.api.internal.UiModuleImpl;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class RestUiModuleChangesTest {
+
+    private UiModuleRegistryImpl registry;
+    private RestUiModuleChanges resource;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        registry = new UiModuleRegistryImpl(Files.createTempDirectory("ui-module-registry-test").resolve("none.cfg"));
+        resource = new RestUiModuleChanges();
+        resource.setUiModuleRegistry(registry);
+        resource.setMaxConnections(1);
+    }
+
+    @Test
+    public void streamsChangesAsEvents() {
+        registry.register(new UiModuleImpl().id("1").name("Home").path("/home"));
+        registry.unregister(new UiModuleImpl().id("1").name("Home").path("/home"));
+
+        final String events = stream(0L, null);
+        assertThat(events).startsWith("retry: 1000\n\n");
+        assertThat(events).contains("id: 1\nevent: added\ndata: {");
+        assertThat(events).contains("id: 2\nevent: removed\ndata: {");
+        assertThat(events).endsWith("}\n\n");
+        assertThat(events.indexOf("id: 1\n")).isLessThan(events.indexOf("id: 2\n"));
+    }
+
+    @Test
+    public void resumesStreamFromLastEventId() {
+        registry.register(new UiModuleImpl().id("1").name("Home").path("/home"));
+        registry.register(new UiModuleImpl().id("2").name("Catalog").path("/catalog"));
+
+        // an EventSource reconnecting sends the ID of the last event it had, which wins over the since it started from
+        final String resumed = stream(0L, 1L);
+        assertThat(resumed).doesNotContain("id: 1\n");
+        assertThat(resumed).contains("id: 2\nevent: added\n");
+
+        // from before a restart, so the client must fetch the registry again
+        final String reset = stream(null, 10L);
+        assertThat(reset).contains("id: 2\nevent: reset\ndata: {\"version\":2}\n\n");
+    }
+
+    @Test
+    public void refusesWaitersBeyondMaxConnections() {
+        final AsyncResponse waiting = mock(AsyncResponse.class);
+        resource.poll(0L, waiting);
+        verify(waiting).setTimeout(30, TimeUnit.SECONDS);
+        verify(waiting, never()).resume(any(Object.class));
+
+        final AsyncResponse refused = mock(AsyncResponse.class);
+        resource.poll(0L, refused);
+        final Response response = (Response) resumedWith(refused);
+        assertThat(response.getStatus()).isEqualTo(503);
+        assertThat(response.getHeaderString("Retry-After")).isEqualTo("5");
+
+        // the next change answers the waiter and frees its connection
+        registry.register(new UiModuleImpl().id("1").name("Home").path("/home"));
+        final RegistryChangeFeed.Batch batch = (RegistryChangeFeed.Batch) resumedWith(waiting);
+        assertThat(batch.getChanges()).extracting("id").containsExactly("1");
+        final AsyncResponse next = mock(AsyncResponse.class);
+        resource.poll(1L, next);
+        verify(next, never()).resume(any(Object.class));
+    }
+
+    @Test
+    public void answersWithNoChangesOnTimeout() {
+        final AsyncResponse waiting = mock(AsyncResponse.class);
+        resource.setPollTimeoutSeconds(5);
+        resource.poll(null, waiting);
+        verify(waiting).setTimeout(5, TimeUnit.SECONDS);
+        final ArgumentCaptor<TimeoutHandler> timeout = ArgumentCaptor.forClass(TimeoutHandler.class);
+        verify(waiting).setTimeoutHandler(timeout.capture());
+
+        timeout.getValue().handleTimeout(waiting);
+        final RegistryChangeFeed.Batch batch = (RegistryChangeFeed.Batch) resumedWith(waiting);
+        assertThat(batch.getChanges()).isEmpty();
+        assertThat(batch.isReset()).isFalse();
+
+        // answered once, and its connection freed, so a later change neither answers it again nor is refused
+        registry.register(new UiModuleImpl().id("1").name("Home").path("/home"));
+        verify(waiting).resume(any(Object.class));
+        final AsyncResponse next = mock(AsyncResponse.class);
+        resource.poll(1L, next);
+        verify(next, never()).resume(any(Object.class));
+    }
+
+    @Test
+    public void streamEndsWithKeepAliveOnTimeout() {
+        final AsyncResponse async = mock(AsyncResponse.class);
+        resource.stream(null, null, null, async);
+        final ArgumentCaptor<TimeoutHandler> timeout = ArgumentCaptor.forClass(TimeoutHandler.class);
+        verify(async).setTimeoutHandler(timeout.capture());
+        timeout.getValue().handleTimeout(async);
+
+        final Response response = (Response) resumedWith(async);
+        assertThat(response.getHeaderString("Cache-Control")).isEqualTo("no-cache");
+        assertThat(new String((byte[]) response.getEntity(), StandardCharsets.UTF_8)).isEqualTo("retry: 1000\n\n: keep-alive\n\n");
+    }
+
+    private String stream(final Long since, final Long lastEventId) {
+        final AsyncResponse async = mock(AsyncResponse.class);
+        resource.stream(since, lastEventId, null, async);
+        final Response response = (Response) resumedWith(async);
+        assertThat(response.getMediaType().toString()).isEqualTo("text/event-stream");
+        return new String((byte[]) response.getEntity(), StandardCharsets.UTF_8);
+    }
+
+    private static Object resumedWith(final AsyncResponse async) {
+        final ArgumentCaptor<Object> answer = ArgumentCaptor.forClass(Object.class);
+        verify(async).resume(answer.capture());
+        return answer.getValue();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.registry;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.apache.brooklyn.ui.modularity.module.api.internal.UiModuleImpl;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RestUiModuleRegistryTest {
+
+    private UiModuleRegistryImpl registry;
+    private RestUiModuleRegistry resource;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        registry = new UiModuleRegistryImpl(Files.createTempDirectory("ui-module-registry-test").resolve("none.cfg"));
+        registry.register(new UiModuleImpl().id("1").name("Home").bundleId("org.example.home:1.0.0").path("/home")
+                .types(ImmutableSet.of("home-ui-module", "single-page-app")));
+        registry.register(new UiModuleImpl().id("2").name("Catalog").bundleId("org.example.catalog:1.0.0").path("/catalog")
+                .types(ImmutableSet.of("single-page-app")));
+        resource = new RestUiModuleRegistry();
+        resource.setUiModuleRegistry(registry);
+    }
+
+    @Test
+    public void answersUnchangedRegistryWithNotModified() {
+        final Request request = mock(Request.class);
+        final Response ok = resource.getRegisteredWebComponents(request, null, null, null, null, null);
+        assertThat(ok.getStatus()).isEqualTo(200);
+        assertThat(ok.getEntity()).isSameAs(registry.getSnapshot().getJson());
+        assertThat(ok.getEntityTag()).isEqualTo(new EntityTag(registry.getSnapshot().getETag()));
+        assertThat(ok.getHeaderString(RestUiModuleRegistry.VERSION_HEADER)).isEqualTo("2");
+
+        // as the JAX-RS runtime answers a request whose If-None-Match has the tag
+        when(request.evaluatePreconditions(ok.getEntityTag())).thenReturn(Response.notModified());
+        final Response notModified = resource.getRegisteredWebComponents(request, null, null, null, null, null);
+        assertThat(notModified.getStatus()).isEqualTo(304);
+        assertThat(notModified.hasEntity()).isFalse();
+        assertThat(notModified.getEntityTag()).isEqualTo(ok.getEntityTag());
+        assertThat(notModified.getHeaderString(RestUiModuleRegistry.VERSION_HEADER)).isEqualTo("2");
+
+        // a change gives the registry a new tag, which the client's no longer matches
+        registry.register(new UiModuleImpl().id("3").name("Admin").path("/admin"));
+        final Response changed = resource.getRegisteredWebComponents(request, null, null, null, null, null);
+        assertThat(changed.getStatus()).isEqualTo(200);
+        assertThat(changed.getEntityTag()).isNotEqualTo(ok.getEntityTag());
+        assertThat(changed.getHeaderString(RestUiModuleRegistry.VERSION_HEADER)).isEqualTo("3");
+    }
+
+    @Test
+    public void narrowsModulesAndFields() throws IOException {
+        final Request request = mock(Request.class);
+        final JsonNode apps = query(request, "single-page-app", null, null, "name,path");
+        assertThat(apps).hasSize(2);
+        assertThat(ImmutableList.copyOf(apps.get(0).fieldNames())).containsOnly("name", "path");
+        assertThat(apps.get(0).get("name").asText()).isEqualTo("Catalog");
+        assertThat(apps.get(1).get("path").asText()).isEqualTo("/home");
+
+        final JsonNode home = query(request, "single-page-app", "org.example.home", "/home/", null);
+        assertThat(home).hasSize(1);
+        assertThat(home.get(0).get("id").asText()).isEqualTo("1");
+        assertThat(home.get(0).has("types")).isTrue();
+
+        assertThat(query(request, "home-ui-module", "org.example.catalog", null, null)).isEmpty();
+
+        // a query is tagged by what it returns, so its tag differs from the whole registry's
+        final ArgumentCaptor<EntityTag> etag = ArgumentCaptor.forClass(EntityTag.class);
+        verify(request, atLeastOnce()).evaluatePreconditions(etag.capture());
+        assertThat(etag.getAllValues()).doesNotContain(new EntityTag(registry.getSnapshot().getETag()));
+    }
+
+    private JsonNode query(final Request request, final String type, final String bundle, final String path,
+                           final String fields) throws IOException {
+        final Response response = resource.getRegisteredWebComponents(request, null, type, bundle, path, fields);
+        assertThat(response.getStatus()).isEqualTo(200);
+        return RegistrySnapshot.MAPPER.readTree((byte[]) response.getEntity());
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.modularity.module.registry;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.collect.ImmutableSet;
+import org.apache.brooklyn.ui.modularity.module.api.internal.UiModuleImpl;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class UiModuleRegistryImplTest {
+
+    @Test
+    public void reappliesRulesWhenTheyChange() throws IOException {
+        final Path dir = Files.createTempDirectory("ui-module-registry-test");
+        final Path config = dir.resolve("brooklyn-ui.cfg");
+        try {
+            write(config, "exclude_bundle_regex:\n- org\\.example\\.legacy\n");
+            final UiModuleRegistryImpl registry = new UiModuleRegistryImpl(config);
+            final UiModuleImpl legacy = new UiModuleImpl().id("1").name("Legacy").bundleId("org.example.legacy");
+            final UiModuleImpl home = new UiModuleImpl().id("2").name("Home").bundleId("org.example.home");
+            registry.register(legacy);
+            registry.register(home);
+            assertThat(registry.getRegisteredModules()).containsOnly(home);
+
+            write(config, "exclude_bundle_regex:\n- org\\.example\\.home\n");
+            registry.reloadRules();
+            assertThat(registry.getRegisteredModules()).containsOnly(legacy);
+
+            // an unreadable file leaves the rules as they were
+            write(config, "exclude_bundle_regex: [\n");
+            registry.reloadRules();
+            assertThat(registry.getRegisteredModules()).containsOnly(legacy);
+
+            registry.unregister(legacy);
+            Files.delete(config);
+            registry.reloadRules();
+            assertThat(registry.getRegisteredModules()).containsOnly(home);
+        } finally {
+            Files.deleteIfExists(config);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void publishesVersionedSnapshotOnChange() throws IOException {
+        final UiModuleRegistryImpl registry = new UiModuleRegistryImpl(Files.createTempDirectory("ui-module-registry-test").resolve("none.cfg"));
+        assertThat(registry.getSnapshot().getVersion()).isZero();
+        assertThat(new String(registry.getSnapshot().getJson(), StandardCharsets.UTF_8)).isEqualTo("[]");
+
+        final UiModuleImpl zeta = new UiModuleImpl().id("1").name("Zeta").bundleId("org.example.zeta");
+        registry.register(zeta);
+        registry.register(new UiModuleImpl().id("2").name("Alpha").bundleId("org.example.alpha"));
+        final RegistrySnapshot snapshot = registry.getSnapshot();
+        assertThat(snapshot.getVersion()).isEqualTo(2);
+        assertThat(snapshot.getModules()).extracting("name").containsExactly("Alpha", "Zeta");
+        assertThat(snapshot.getJson()).isSameAs(snapshot.getJson());
+        assertThat(new String(snapshot.getJson(), StandardCharsets.UTF_8))
+                .contains("\"name\":\"Alpha\"")
+                .matches("(?s).*Alpha.*Zeta.*");
+
+        registry.unregister(zeta);
+        assertThat(registry.getSnapshot().getVersion()).isEqualTo(3);
+        assertThat(registry.getSnapshot().getETag()).isNotEqualTo(snapshot.getETag());
+        registry.register(zeta);
+        assertThat(registry.getSnapshot().getVersion()).isEqualTo(4);
+        assertThat(registry.getSnapshot().getETag()).isEqualTo(snapshot.getETag());
+    }
+
+    @Test
+    public void encodesSnapshotWithEachMapper() throws IOException {
+        final UiModuleRegistryImpl registry = new UiModuleRegistryImpl(Files.createTempDirectory("ui-module-registry-test").resolve("none.cfg"));
+        registry.register(new UiModuleImpl().id("1").name("Home").bundleId("org.example.home"));
+        final RegistrySnapshot snapshot = registry.getSnapshot();
+        final ObjectMapper indenting = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+        assertThat(snapshot.getJson(indenting)).isSameAs(snapshot.getJson(indenting)).isNotEqualTo(snapshot.getJson());
+        assertThat(new String(snapshot.getJson(indenting), StandardCharsets.UTF_8)).contains("\n");
+        assertThat(snapshot.getETag(indenting)).isNotEqualTo(snapshot.getETag());
+        assertThat(snapshot.getJson(RegistrySnapshot.MAPPER)).isSameAs(snapshot.getJson());
+    }
+
+    @Test
+    public void indexesModulesByTypeBundleAndPath() throws IOException {
+        final UiModuleRegistryImpl registry = new UiModuleRegistryImpl(Files.createTempDirectory("ui-module-registry-test").resolve("none.cfg"));
+        final UiModuleImpl home = new UiModuleImpl().id("1").name("Home").bundleId("org.example.home").path("/home/")
+                .types(ImmutableSet.of("home-ui-module", "single-page-app"));
+        final UiModuleImpl catalog = new UiModuleImpl().id("2").name("Catalog").bundleId("org.example.catalog").path("/catalog")
+                .types(ImmutableSet.of("single-page-app"));
+        registry.register(home);
+        registry.register(catalog);
+        assertThat(registry.getModulesByType("single-page-app")).containsOnly(home, catalog);
+        assertThat(registry.getModulesByType("home-ui-module")).containsOnly(home);
+        assertThat(registry.getModulesByType("external-ui")).isEmpty();
+        assertThat(registry.getModulesByBundle("org.example.catalog")).containsOnly(catalog);
+        assertThat(registry.getModulesByPath("/home")).containsOnly(home);
+        assertThat(registry.getModulesByPath("/catalog/")).containsOnly(catalog);
+        assertThat(registry.getSnapshot().getModulesByType("single-page-app")).extracting("name").containsExactly("Catalog", "Home");
+        assertThat(registry.getSnapshot().getModulesByPath("/home")).extracting("id").containsExactly("1");
+
+        // the same module ID registered again replaces what it was indexed under
+        final UiModuleImpl moved = new UiModuleImpl().id("1").name("Home").bundleId("org.example.home").path("/start");
+        registry.register(moved);
+        assertThat(registry.getModulesByType("home-ui-module")).isEmpty();
+        assertThat(registry.getModulesByPath("/home")).isEmpty();
+        assertThat(registry.getModulesByPath("/start")).containsOnly(moved);
+
+        registry.unregister(catalog);
+        assertThat(registry.getModulesByType("single-page-app")).isEmpty();
+        assertThat(registry.getModulesByBundle("org.example.catalog")).isEmpty();
+    }
+
+    @Test
+    public void findsModulesByBundleNameWithOrWithoutVersion() throws IOException {
+        // as the module listener sets them, the bundle ID is symbolicName:version
+        final UiModuleRegistryImpl registry = new UiModuleRegistryImpl(Files.createTempDirectory("ui-module-registry-test").resolve("none.cfg"));
+        final UiModuleImpl current = new UiModuleImpl().id("1").name("Home").bundleId("org.example.home:1.1.0").path("/home");
+        final UiModuleImpl replaced = new UiModuleImpl().id("2").name("Home").bundleId("org.example.home:1.0.0").path("/home");
+        final UiModuleImpl other = new UiModuleImpl().id("3").name("Catalog").bundleId("org.example.catalog:1.0.0").path("/catalog");
+        registry.register(current);
+        registry.register(replaced);
+        registry.register(other);
+
+        assertThat(registry.getModulesByBundle("org.example.home")).containsOnly(current, replaced);
+        assertThat(registry.getModulesByBundle("org.example.home:1.0.0")).containsOnly(replaced);
+        assertThat(registry.getModulesByBundle("org.example")).isEmpty();
+        assertThat(registry.getSnapshot().getModulesByBundle("org.example.home")).extracting("id").containsOnly("1", "2");
+        assertThat(registry.getSnapshot().getModulesByBundle("org.example.catalog:1.0.0")).extracting("id").containsExactly("3");
+        assertThat(registry.getSnapshot().getModulesByBundle("org.example.catalog:2.0.0")).isEmpty();
+
+        registry.unregister(replaced);
+        assertThat(registry.getModulesByBundle("org.example.home")).containsOnly(current);
+        assertThat(registry.getModulesByBundle("org.example.home:1.0.0")).isEmpty();
+    }
+
+    @Test
+    public void listsModulesFromLastRunUntilTheyRegister() throws Exception {
+        final Path dir = Files.createTempDirectory("ui-module-registry-test");
+        final Path state = dir.resolve("ui-module-registry.json");
+        final UiModuleRegistryImpl before = new UiModuleRegistryImpl(dir.resolve("none.cfg"), state);
+        before.init();
+        try {
+            before.register(new UiModuleImpl().id("1").name("Home").bundleId("org.example.home").path("/home"));
+            before.register(new UiModuleImpl().id("2").name("Catalog").bundleId("org.example.catalog").path("/catalog"));
+            final long deadline = System.currentTimeMillis() + 10_000;
+            while (!Files.exists(state) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+        } finally {
+            before.destroy();
+        }
+
+        final UiModuleRegistryImpl after = new UiModuleRegistryImpl(dir.resolve("none.cfg"), state);
+        after.setProvisionalTimeoutSeconds(1);
+        after.init();
+        try {
+            assertThat(after.getRegisteredModules()).isEmpty();
+            assertThat(after.getSnapshot().getModules()).extracting("name", "provisional")
+                    .containsExactly(tuple("Catalog", true), tuple("Home", true));
+            assertThat(after.getSnapshot().getModulesByPath("/home/")).extracting("name").containsExactly("Home");
+            assertThat(after.getSnapshot().getModulesByBundle("org.example.catalog")).extracting("name").containsExactly("Catalog");
+
+            // registered again with a new ID, which replaces the provisional entry
+            final UiModuleImpl home = new UiModuleImpl().id("3").name("Home").bundleId("org.example.home").path("/home");
+            after.register(home);
+            assertThat(after.getSnapshot().getModules()).extracting("id").containsExactly("2", "3");
+            assertThat(after.getChangeFeed().since(1).getChanges()).extracting("type", "id")
+                    .containsExactly(tuple("removed", "1"), tuple("added", "3"));
+
+            final long deadline = System.currentTimeMillis() + 10_000;
+            while (after.getSnapshot().getModules().size() > 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertThat(after.getSnapshot().getModules()).extracting("id").containsExactly("3");
+        } finally {
+            after.destroy();
+            Files.deleteIfExists(state);
+        }
+    }
+
+    private static void write(final Path file, final String content) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
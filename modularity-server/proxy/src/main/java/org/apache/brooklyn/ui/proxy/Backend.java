@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One target of a {@link BackendPool}, with its live load and health and its cumulative statistics.
+ */
+public class Backend {
+
+    private final String url;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private volatile boolean healthy = true;
+    private volatile long ejectedUntilNanos;
+
+    public Backend(final String url) {
+        this.url = url;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public boolean isAvailable() {
+        return healthy && System.nanoTime() - ejectedUntilNanos >= 0;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    void setHealthy(final boolean healthy) {
+        this.healthy = healthy;
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public double getMeanLatencyMillis() {
+        final long count = requests.sum();
+        return count == 0 ? 0 : (double) TimeUnit.NANOSECONDS.toMicros(latencyNanos.sum()) / count / 1000;
+    }
+
+    void begin() {
+        outstanding.incrementAndGet();
+    }
+
+    void onSuccess(final long nanos) {
+        outstanding.decrementAndGet();
+        requests.increment();
+        latencyNanos.add(nanos);
+        consecutiveFailures.set(0);
+    }
+
+    /**
+     * @return true if this failure ejected the backend
+     */
+    boolean onFailure(final long nanos, final int ejectionThreshold, final long ejectionNanos) {
+        outstanding.decrementAndGet();
+        requests.increment();
+        errors.increment();
+        latencyNanos.add(nanos);
+        if (ejectionThreshold > 0 && consecutiveFailures.incrementAndGet() >= ejectionThreshold) {
+            consecutiveFailures.set(0);
+            ejectedUntilNanos = System.nanoTime() + ejectionNanos;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return url;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.http.HttpMethod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The targets of a proxy, and the choice of which one serves each request.
+ * <p>
+ * Requests go to an available backend by least outstanding requests or by power-of-two-choices. A backend is taken
+ * out of rotation for a while after a run of consecutive failures (passive ejection), and while a background probe
+ * of its health-check path fails (active checks). If no backend is available every backend is considered, so the
+ * pool fails open rather than refusing all traffic.
+ */
+public class BackendPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BackendPool.class);
+
+    public enum Strategy { LEAST_OUTSTANDING, POWER_OF_TWO }
+
+    private final List<Backend> backends;
+    private final Strategy strategy;
+    private final int ejectionThreshold;
+    private final long ejectionNanos;
+    private final String healthCheckPath;
+    private final long healthCheckIntervalMillis;
+    private final long healthCheckTimeoutMillis;
+    private final AtomicInteger next = new AtomicInteger();
+    // the pool's own scheduler, unless its checks run on one shared with other pools
+    private ScheduledExecutorService healthChecker;
+    private ScheduledFuture<?> healthChecks;
+
+    public BackendPool(final List<String> targets, final Strategy strategy, final int ejectionThreshold, final long ejectionMillis,
+                       final String healthCheckPath, final long healthCheckIntervalMillis, final long healthCheckTimeoutMillis) {
+        final ImmutableList.Builder<Backend> builder = ImmutableList.builder();
+        for (final String target : targets) {
+            builder.add(new Backend(target));
+        }
+        this.backends = builder.build();
+        this.strategy = strategy;
+        this.ejectionThreshold = ejectionThreshold;
+        this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(ejectionMillis);
+        this.healthCheckPath = healthCheckPath;
+        this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+        this.healthCheckTimeoutMillis = healthCheckTimeoutMillis;
+    }
+
+    public List<Backend> getBackends() {
+        return backends;
+    }
+
+    /**
+     * @return The first target, which stands for the whole pool wherever a stable URL is needed, e.g. cache keys
+     */
+    public Backend getPrimary() {
+        return backends.get(0);
+    }
+
+    public Backend select() {
+        if (backends.size() == 1) {
+            return backends.get(0);
+        }
+        List<Backend> candidates = new ArrayList<>(backends.size());
+        for (final Backend backend : backends) {
+            if (backend.isAvailable()) {
+                candidates.add(backend);
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates = backends;
+        }
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        if (strategy == Strategy.POWER_OF_TWO) {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final int a = random.nextInt(candidates.size());
+            final int b = (a + 1 + random.nextInt(candidates.size() - 1)) % candidates.size();
+            return candidates.get(a).getOutstanding() <= candidates.get(b).getOutstanding() ? candidates.get(a) : candidates.get(b);
+        }
+        // least outstanding, starting the scan at a rotating offset so ties are spread round-robin
+        final int offset = Math.floorMod(next.getAndIncrement(), candidates.size());
+        Backend best = null;
+        for (int i = 0; i < candidates.size(); i++) {
+            final Backend backend = candidates.get((offset + i) % candidates.size());
+            if (best == null || backend.getOutstanding() < best.getOutstanding()) {
+                best = backend;
+            }
+        }
+        return best;
+    }
+
+    public void onSuccess(final Backend backend, final long nanos) {
+        backend.onSuccess(nanos);
+    }
+
+    public void onFailure(final Backend backend, final long nanos) {
+        if (backend.onFailure(nanos, ejectionThreshold, ejectionNanos)) {
+            LOG.warn("Ejecting proxy backend [{}] for {}ms after {} consecutive failures",
+                    backend, TimeUnit.NANOSECONDS.toMillis(ejectionNanos), ejectionThreshold);
+        }
+    }
+
+    /**
+     * @return Whether a health-check path is configured, so the backends are probed once checks are started
+     */
+    public boolean isHealthChecked() {
+        return StringUtils.isNotBlank(healthCheckPath);
+    }
+
+    /**
+     * Starts probing each backend's health-check path, if one is configured, on a thread of the pool's own.
+     */
+    public synchronized void startHealthChecks(final HttpClient client) {
+        if (!isHealthChecked() || healthChecks != null) {
+            return;
+        }
+        healthChecker = newHealthChecker();
+        startHealthChecks(client, healthChecker);
+    }
+
+    /**
+     * Starts probing each backend's health-check path, if one is configured, on a scheduler shared with other pools,
+     * which is left running when this pool is closed.
+     */
+    public synchronized void startHealthChecks(final HttpClient client, final ScheduledExecutorService scheduler) {
+        if (!isHealthChecked() || healthChecks != null) {
+            return;
+        }
+        healthChecks = scheduler.scheduleWithFixedDelay(() -> {
+            for (final Backend backend : backends) {
+                probe(client, backend);
+            }
+        }, 0, healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return A single daemon thread to run health checks on
+     */
+    static ScheduledExecutorService newHealthChecker() {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("brooklyn-ui-proxy-health-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    private void probe(final HttpClient client, final Backend backend) {
+        try {
+            client.newRequest(StringUtils.removeEnd(backend.getUrl(), "/") + healthCheckPath)
+                    .method(HttpMethod.GET)
+                    .timeout(healthCheckTimeoutMillis, TimeUnit.MILLISECONDS)
+                    .send(result -> {
+                        final boolean healthy = result.isSucceeded() && result.getResponse().getStatus() < 500;
+                        if (healthy != backend.isHealthy()) {
+                            LOG.info("Proxy backend [{}] is now {}", backend, healthy ? "healthy" : "unhealthy");
+                        }
+                        backend.setHealthy(healthy);
+                    });
+        } catch (Exception e) {
+            LOG.debug("Health check of [{}] failed to start: {}", backend, e.toString());
+            backend.setHealthy(false);
+        }
+    }
+
+    public synchronized void close() {
+        if (healthChecks != null) {
+            healthChecks.cancel(false);
+            healthChecks = null;
+        }
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+            healthChecker = null;
+        }
+    }
+
+    public static BackendPool fromProperties(final String targets, final Map<String, String> properties) {
+        // see README for the meaning of each property
+        final List<String> urls = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(targets);
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("No target specified");
+        }
+        return new BackendPool(urls,
+                "p2c".equalsIgnoreCase(properties.get("balancer")) ? Strategy.POWER_OF_TWO : Strategy.LEAST_OUTSTANDING,
+                Integer.parseInt(StringUtils.defaultIfBlank(properties.get("ejection.failures"), "5")),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(StringUtils.defaultIfBlank(properties.get("ejection.duration"), "30"))),
+                properties.get("healthCheck.path"),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(StringUtils.defaultIfBlank(properties.get("healthCheck.interval"), "10"))),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(StringUtils.defaultIfBlank(properties.get("healthCheck.timeout"), "2"))));
+    }
+}
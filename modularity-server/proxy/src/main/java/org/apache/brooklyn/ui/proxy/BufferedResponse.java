@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpHeader;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+/**
+ * An upstream response held entirely in memory (or in a mapped file), so it can be replayed to other clients.
+ */
+public class BufferedResponse {
+
+    /** Headers which describe the upstream connection or body framing rather than the resource, so are never replayed. */
+    static final Set<String> HOP_HEADERS = ImmutableSet.of(
+            "connection", "keep-alive", "proxy-authenticate", "proxy-authorization", "te", "trailer",
+            "transfer-encoding", "upgrade", "content-length");
+    /** Headers the proxy may rewrite on the way to the client, so are replayed as the client was sent them. */
+    static final Set<String> SENT_HEADERS = ImmutableSet.of("etag", "location", "content-location");
+
+    private final int status;
+    private final ListMultimap<String, String> headers;
+    private final ByteBuffer body;
+
+    public BufferedResponse(final int status, final ListMultimap<String, String> headers, final ByteBuffer body) {
+        this.status = status;
+        this.headers = ImmutableListMultimap.copyOf(headers);
+        this.body = body.asReadOnlyBuffer();
+    }
+
+    /**
+     * @param sent The response the proxy sent its own client, whose {@code ETag} and locations replace upstream's, as
+     *             the body given has been through the same rewriting
+     * @param filter Given each other header's name and value, returns the value the proxy sent its client, or null if
+     *               it sent none, so a replayed response carries only the headers a live one would
+     */
+    public static BufferedResponse of(final Response serverResponse, final byte[] body, final HttpServletResponse sent,
+                                      final BiFunction<String, String, String> filter) {
+        final ImmutableListMultimap.Builder<String, String> headers = ImmutableListMultimap.builder();
+        for (final HttpField field : serverResponse.getHeaders()) {
+            final String name = field.getName().toLowerCase(Locale.ROOT);
+            if (SENT_HEADERS.contains(name)) {
+                final String value = sent.getHeader(field.getName());
+                if (value != null) {
+                    headers.put(field.getName(), value);
+                }
+            } else if (!HOP_HEADERS.contains(name)) {
+                final String value = filter.apply(field.getName(), field.getValue());
+                if (value != null) {
+                    headers.put(field.getName(), value);
+                }
+            }
+        }
+        return new BufferedResponse(serverResponse.getStatus(), headers.build(), ByteBuffer.wrap(body));
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public ListMultimap<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return The first value of the header, matched case-insensitively, or null
+     */
+    public String getHeader(final String name) {
+        for (final Map.Entry<String, String> header : headers.entries()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return A read-only view of the body, positioned at its start
+     */
+    public ByteBuffer getBody() {
+        return body.duplicate();
+    }
+
+    public int getBodyLength() {
+        return body.remaining();
+    }
+
+    /**
+     * Writes the status, headers and body to a response which must not yet be committed.
+     */
+    public void writeTo(final HttpServletResponse response) throws IOException {
+        response.setStatus(status);
+        for (final Map.Entry<String, String> header : headers.entries()) {
+            response.addHeader(header.getKey(), header.getValue());
+        }
+        response.setContentLength(getBodyLength());
+        writeBody(response.getOutputStream(), null);
+    }
+
+    /**
+     * Writes the response as {@link #writeTo(HttpServletResponse)} does, but gzipped if there is a compressor and it
+     * would compress the response for this client, just as a response streamed from upstream would be.
+     */
+    public void writeTo(final HttpServletRequest request, final HttpServletResponse response,
+                        final ResponseCompressor compressor) throws IOException {
+        if (compressor == null || !compressor.shouldCompress(request, this)) {
+            writeTo(response);
+            return;
+        }
+        response.setStatus(status);
+        for (final Map.Entry<String, String> header : headers.entries()) {
+            if (HttpHeader.ETAG.is(header.getKey()) && header.getValue().startsWith("\"")) {
+                // the gzipped body is no longer byte-for-byte the entity tagged
+                response.addHeader(header.getKey(), "W/" + header.getValue());
+            } else {
+                response.addHeader(header.getKey(), header.getValue());
+            }
+        }
+        response.setHeader(HttpHeader.CONTENT_ENCODING.asString(), "gzip");
+        response.addHeader(HttpHeader.VARY.asString(), HttpHeader.ACCEPT_ENCODING.asString());
+        final ResponseCompressor.Stream compression = compressor.newStream();
+        try {
+            writeBody(response.getOutputStream(), compression);
+            response.getOutputStream().write(compression.finish());
+        } finally {
+            compression.close();
+        }
+    }
+
+    void writeBody(final ServletOutputStream out, final ResponseCompressor.Stream compression) throws IOException {
+        final ByteBuffer buffer = getBody();
+        final byte[] chunk = new byte[Math.min(8192, Math.max(1, buffer.remaining()))];
+        while (buffer.hasRemaining()) {
+            final int length = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, length);
+            if (compression == null) {
+                out.write(chunk, 0, length);
+            } else {
+                out.write(compression.write(chunk, 0, length));
+            }
+        }
+    }
+
+    /**
+     * Accumulates a response body as it streams through the proxy, giving up once it exceeds a limit.
+     */
+    public static class Capture {
+        private final int maxBytes;
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        public Capture(final int maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public synchronized void write(final byte[] buffer, final int offset, final int length) {
+            if (bytes == null) {
+                return;
+            }
+            if (bytes.size() + length > maxBytes) {
+                bytes = null;
+                return;
+            }
+            bytes.write(buffer, offset, length);
+        }
+
+        /**
+         * @return The captured body, or null if it was too large to capture
+         */
+        public synchronized byte[] toByteArray() {
+            return bytes == null ? null : bytes.toByteArray();
+        }
+    }
+}
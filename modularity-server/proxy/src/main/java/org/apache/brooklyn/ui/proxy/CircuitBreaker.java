@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Circuit breaker over the upstream calls of a proxy.
+ * <p>
+ * While CLOSED, outcomes are counted in a sliding window of one-second buckets. Once the window holds enough calls
+ * and either the error rate or the slow-call rate reaches its threshold, the circuit OPENs and calls are refused
+ * until the open duration has passed. It is then HALF_OPEN: a few trial calls are let through, and the circuit
+ * closes if they all succeed, or opens again on the first failure.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final double failureRateThreshold;
+    private final double slowRateThreshold;
+    private final long slowCallNanos;
+    private final int minimumCalls;
+    private final long openNanos;
+    private final int halfOpenCalls;
+
+    private final long[] bucketSecond;
+    private final int[] bucketCalls;
+    private final int[] bucketFailures;
+    private final int[] bucketSlow;
+    private final LongAdder rejected = new LongAdder();
+
+    private State state = State.CLOSED;
+    private long openedAtNanos;
+    private int halfOpenPermits;
+    private int halfOpenSuccesses;
+
+    public CircuitBreaker(final String name, final double failureRateThreshold, final double slowRateThreshold,
+                          final long slowCallMillis, final int minimumCalls, final int windowSeconds,
+                          final long openMillis, final int halfOpenCalls) {
+        this.name = name;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowRateThreshold = slowRateThreshold;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+        this.minimumCalls = minimumCalls;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.halfOpenCalls = halfOpenCalls;
+        this.bucketSecond = new long[windowSeconds];
+        this.bucketCalls = new int[windowSeconds];
+        this.bucketFailures = new int[windowSeconds];
+        this.bucketSlow = new int[windowSeconds];
+    }
+
+    /**
+     * @return Whether a call may go upstream; every permitted call must be followed by {@link #onResult}
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAtNanos < openNanos) {
+                rejected.increment();
+                return false;
+            }
+            transition(State.HALF_OPEN);
+            halfOpenPermits = halfOpenCalls;
+            halfOpenSuccesses = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (halfOpenPermits <= 0) {
+                rejected.increment();
+                return false;
+            }
+            halfOpenPermits--;
+        }
+        return true;
+    }
+
+    public synchronized void onResult(final long nanos, final boolean failed) {
+        if (state == State.HALF_OPEN) {
+            if (failed) {
+                open();
+            } else if (++halfOpenSuccesses >= halfOpenCalls) {
+                clearWindow();
+                transition(State.CLOSED);
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // a call permitted before the circuit opened
+            return;
+        }
+        final int i = bucket(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime()));
+        bucketCalls[i]++;
+        if (failed) {
+            bucketFailures[i]++;
+        }
+        if (nanos >= slowCallNanos) {
+            bucketSlow[i]++;
+        }
+        int calls = 0, failures = 0, slow = 0;
+        for (int b = 0; b < bucketCalls.length; b++) {
+            calls += bucketCalls[b];
+            failures += bucketFailures[b];
+            slow += bucketSlow[b];
+        }
+        if (calls >= minimumCalls
+                && ((double) failures / calls >= failureRateThreshold || (double) slow / calls >= slowRateThreshold)) {
+            LOG.warn("Opening circuit for proxy [{}]: {} calls, {} failed, {} slow in the last {}s",
+                    name, calls, failures, slow, bucketCalls.length);
+            open();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return Milliseconds until an open circuit lets trial calls through, or 0
+     */
+    public synchronized long getRetryAfterMillis() {
+        return state == State.OPEN ? Math.max(0, TimeUnit.NANOSECONDS.toMillis(openNanos - (System.nanoTime() - openedAtNanos))) : 0;
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    private void open() {
+        openedAtNanos = System.nanoTime();
+        transition(State.OPEN);
+    }
+
+    private void transition(final State newState) {
+        if (state != newState) {
+            LOG.info("Circuit for proxy [{}] is now {}", name, newState);
+            state = newState;
+        }
+    }
+
+    /**
+     * @return The index of the bucket for the given second, reset if it last held an older second
+     */
+    private int bucket(final long second) {
+        final int i = (int) Math.floorMod(second, (long) bucketSecond.length);
+        if (bucketSecond[i] != second) {
+            bucketSecond[i] = second;
+            bucketCalls[i] = 0;
+            bucketFailures[i] = 0;
+            bucketSlow[i] = 0;
+        }
+        return i;
+    }
+
+    private void clearWindow() {
+        for (int b = 0; b < bucketCalls.length; b++) {
+            bucketCalls[b] = 0;
+            bucketFailures[b] = 0;
+            bucketSlow[b] = 0;
+        }
+    }
+
+    public static CircuitBreaker fromProperties(final String name, final Map<String, String> properties) {
+        // see README for the meaning of each property
+        if (!Boolean.parseBoolean(properties.get("circuit.enabled"))) {
+            return null;
+        }
+        return new CircuitBreaker(name,
+                Double.parseDouble(StringUtils.defaultIfBlank(properties.get("circuit.failureRate"), "0.5")),
+                Double.parseDouble(StringUtils.defaultIfBlank(properties.get("circuit.slowRate"), "0.8")),
+                Long.parseLong(StringUtils.defaultIfBlank(properties.get("circuit.slowCallMillis"), "10000")),
+                Integer.parseInt(StringUtils.defaultIfBlank(properties.get("circuit.minimumCalls"), "20")),
+                Integer.parseInt(StringUtils.defaultIfBlank(properties.get("circuit.window"), "10")),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(StringUtils.defaultIfBlank(properties.get("circuit.openDuration"), "30"))),
+                Integer.parseInt(StringUtils.defaultIfBlank(properties.get("circuit.halfOpenCalls"), "5")));
+    }
+}
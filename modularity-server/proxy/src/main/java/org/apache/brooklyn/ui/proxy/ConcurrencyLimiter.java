@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bulkhead for one proxy: a cap on its concurrent upstream calls, so that a slow target cannot hold every container
+ * thread.
+ * <p>
+ * The cap adapts by AIMD: it grows by about one for each cap's worth of fast calls while it is being used, and is cut
+ * by the backoff factor on each call that fails or is slower than the latency threshold. Requests over the cap wait
+ * in a short queue, without holding a thread, and are re-dispatched with {@link #ADMISSION} set to {@code true} when
+ * a permit is handed to them, or to {@code false} when they time out.
+ */
+public class ConcurrencyLimiter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+    /** Request attribute on a re-dispatched queued request, telling whether it was admitted. */
+    static final String ADMISSION = ConcurrencyLimiter.class.getName() + ".admission";
+
+    public enum Acquire { ACQUIRED, QUEUED, REJECTED }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoff;
+    private final long latencyThresholdNanos;
+    private final int maxQueued;
+    private final long queueTimeoutMillis;
+    private final ArrayDeque<AsyncContext> queue = new ArrayDeque<>();
+    private final LongAdder rejected = new LongAdder();
+
+    private double limit;
+    private int inflight;
+
+    public ConcurrencyLimiter(final int initialLimit, final int minLimit, final int maxLimit, final double backoff,
+                              final long latencyThresholdMillis, final int maxQueued, final long queueTimeoutMillis) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoff = backoff;
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+        this.maxQueued = maxQueued;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Takes a permit if one is free, otherwise parks the request in the queue if there is room.
+     * <p>
+     * An {@link Acquire#ACQUIRED} permit must be given back with {@link #release} or {@link #cancel}; a
+     * {@link Acquire#QUEUED} request must not be responded to, as it will be re-dispatched.
+     */
+    public Acquire acquire(final HttpServletRequest request) {
+        synchronized (this) {
+            if (inflight < (int) limit) {
+                inflight++;
+                return Acquire.ACQUIRED;
+            }
+            if (queueTimeoutMillis > 0 && queue.size() < maxQueued) {
+                final AsyncContext waiter = request.startAsync();
+                waiter.setTimeout(queueTimeoutMillis);
+                waiter.addListener(new QueueTimeout(waiter));
+                queue.add(waiter);
+                return Acquire.QUEUED;
+            }
+        }
+        rejected.increment();
+        return Acquire.REJECTED;
+    }
+
+    /**
+     * Gives back a permit, adjusting the limit by the outcome of the call made with it.
+     */
+    public void release(final long nanos, final boolean failed) {
+        synchronized (this) {
+            if (failed || nanos > latencyThresholdNanos) {
+                limit = Math.max(minLimit, limit * backoff);
+            } else if (inflight >= (int) limit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        }
+        handOff();
+    }
+
+    /**
+     * Gives back a permit which was not used for an upstream call.
+     */
+    public void cancel() {
+        handOff();
+    }
+
+    private void handOff() {
+        while (true) {
+            final AsyncContext next;
+            synchronized (this) {
+                next = inflight <= (int) limit ? queue.poll() : null;
+                if (next == null) {
+                    inflight--;
+                    return;
+                }
+            }
+            try {
+                next.getRequest().setAttribute(ADMISSION, Boolean.TRUE);
+                next.dispatch();
+                return;
+            } catch (IllegalStateException e) {
+                // timed out at the same moment; offer the permit to the next in line
+                LOG.debug("Queued request could not be admitted: {}", e.toString());
+            }
+        }
+    }
+
+    public synchronized int getInflight() {
+        return inflight;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    private class QueueTimeout implements AsyncListener {
+        private final AsyncContext waiter;
+
+        QueueTimeout(final AsyncContext waiter) {
+            this.waiter = waiter;
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) {
+            final boolean removed;
+            synchronized (ConcurrencyLimiter.this) {
+                removed = queue.remove(waiter);
+            }
+            if (removed) {
+                rejected.increment();
+                waiter.getRequest().setAttribute(ADMISSION, Boolean.FALSE);
+                waiter.dispatch();
+            }
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) {
+            synchronized (ConcurrencyLimiter.this) {
+                queue.remove(waiter);
+            }
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) {
+        }
+    }
+
+    public static ConcurrencyLimiter fromProperties(final Map<String, String> properties) {
+        // see README for the meaning of each property
+        if (!Boolean.parseBoolean(properties.get("concurrency.enabled"))) {
+            return null;
+        }
+        return new ConcurrencyLimiter(
+                Integer.parseInt(StringUtils.defaultIfBlank(properties.get("concurrency.initial"), "20")),
+                Integer.parseInt(StringUtils.defaultIfBlank(properties.get("concurrency.min"), "2")),
+                Integer.parseInt(StringUtils.defaultIfBlank(properties.get("concurrency.max"), "200")),
+                Double.parseDouble(StringUtils.defaultIfBlank(properties.get("concurrency.backoff"), "0.9")),
+                Long.parseLong(StringUtils.defaultIfBlank(properties.get("concurrency.latencyThreshold"), "2000")),
+                Integer.parseInt(StringUtils.defaultIfBlank(properties.get("concurrency.queue.size"), "50")),
+                Long.parseLong(StringUtils.defaultIfBlank(properties.get("concurrency.queue.timeout"), "500")));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import javax.security.auth.Subject;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of recent JAAS login results, so that a proxied request with credentials seen recently does not
+ * need a {@code LoginContext.login()} against the realm.
+ * <p>
+ * Successful logins are keyed on a salted SHA-256 of the username and password; the salt is random per instance, so
+ * neither the credentials nor a reusable hash of them are ever held. They keep their read-only {@link Subject}, and
+ * expire after write, so a revoked password keeps working for at most the success TTL.
+ * <p>
+ * Failed logins are counted per username and client address, whatever password was tried, so guessing is slowed
+ * however many passwords are tried. Once a client has failed the maximum number of times for a user, its further
+ * attempts are refused without a login until no failure has been added for the failure TTL. Other clients, and
+ * credentials which already succeeded, are unaffected.
+ */
+public class CredentialCache {
+
+    private final byte[] salt = new byte[32];
+    private final Cache<String, Subject> successes;
+    private final Cache<String, Integer> failures;
+    private final int maxFailures;
+
+    public CredentialCache(final long maxEntries, final long successTtlSeconds, final long failureTtlSeconds, final int maxFailures) {
+        this.maxFailures = maxFailures;
+        new SecureRandom().nextBytes(salt);
+        successes = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(successTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        failures = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(failureTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    public String key(final String username, final String password) {
+        return DigestUtils.sha256Hex(concat(salt, (username + ":" + password).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @param client The address the login comes from
+     */
+    public String failureKey(final String username, final String client) {
+        return DigestUtils.sha256Hex(concat(salt, (username + "\n" + client).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return The subject of a recent successful login with the same credentials, or null
+     */
+    public Subject getSuccess(final String key) {
+        return successes.getIfPresent(key);
+    }
+
+    /**
+     * @return Whether the client has failed too often for the user to be allowed another login attempt yet
+     */
+    public boolean isLockedOut(final String failureKey) {
+        final Integer count = failures.getIfPresent(failureKey);
+        return count != null && count >= maxFailures;
+    }
+
+    public void putSuccess(final String key, final String failureKey, final Subject subject) {
+        failures.invalidate(failureKey);
+        successes.put(key, subject);
+    }
+
+    /**
+     * Counts a failed login, restarting the time until the client's failures for the user are forgotten.
+     */
+    public void putFailure(final String failureKey) {
+        failures.asMap().merge(failureKey, 1, Integer::sum);
+    }
+
+    public void clear() {
+        successes.invalidateAll();
+        failures.invalidateAll();
+    }
+
+    /**
+     * @return Hit, miss and eviction counts and sizes for the success and failure tiers, since the cache was created
+     */
+    public Map<String, Long> getStats() {
+        final CacheStats success = successes.stats();
+        final CacheStats failure = failures.stats();
+        return ImmutableMap.<String, Long>builder()
+                .put("success.hits", success.hitCount())
+                .put("success.misses", success.missCount())
+                .put("success.evictions", success.evictionCount())
+                .put("success.size", successes.size())
+                .put("failure.hits", failure.hitCount())
+                .put("failure.misses", failure.missCount())
+                .put("failure.evictions", failure.evictionCount())
+                .put("failure.size", failures.size())
+                .build();
+    }
+
+    private static byte[] concat(final byte[] a, final byte[] b) {
+        final byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
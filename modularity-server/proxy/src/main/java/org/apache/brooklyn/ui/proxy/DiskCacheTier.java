@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Size-bounded, least-recently-used on-disk tier of the {@link ResponseCache}. Bodies are stored one file per entry
+ * and served from a read-only memory mapping; headers and freshness stay in the in-heap index, which is not
+ * persisted.
+ * <p>
+ * Each tier writes to a subdirectory of its own under the configured directory, so a tier replaced on reconfiguration
+ * and closed later never touches the files of the one replacing it. Subdirectories left behind by tiers no longer
+ * open in this JVM, as after a restart, are removed when a tier is created.
+ */
+public class DiskCacheTier {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DiskCacheTier.class);
+    private static final Pattern CACHE_FILE = Pattern.compile("[0-9a-f]{64}|spill.*\\.tmp");
+    private static final String TIER_PREFIX = "tier-";
+    // the directories of the tiers open in this JVM, which no other tier may remove
+    private static final Set<Path> OPEN = ConcurrentHashMap.newKeySet();
+
+    private final Path dir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, DiskEntry> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeBytes;
+    private boolean closed;
+
+    /**
+     * @param parent The directory under which the tier makes its own
+     */
+    public DiskCacheTier(final Path parent, final long maxBytes) {
+        this.dir = parent.resolve(TIER_PREFIX + UUID.randomUUID()).toAbsolutePath().normalize();
+        this.maxBytes = maxBytes;
+        OPEN.add(dir);
+        removeAbandoned(parent);
+    }
+
+    /**
+     * Removes what tiers no longer open left in the directory, as the indexes of their files are gone.
+     */
+    private static void removeAbandoned(final Path parent) {
+        if (!Files.isDirectory(parent)) {
+            return;
+        }
+        try (Stream<Path> children = Files.list(parent)) {
+            children.forEach(child -> {
+                final String name = child.getFileName().toString();
+                if (name.startsWith(TIER_PREFIX) && Files.isDirectory(child) && !OPEN.contains(child.toAbsolutePath().normalize())) {
+                    try (Stream<Path> files = Files.list(child)) {
+                        files.filter(file -> CACHE_FILE.matcher(file.getFileName().toString()).matches()).forEach(DiskCacheTier::delete);
+                    } catch (IOException e) {
+                        LOG.debug("Could not clear abandoned cache directory [{}]: {}", child, e.toString());
+                    }
+                    delete(child);
+                } else if (CACHE_FILE.matcher(name).matches()) {
+                    // written straight to the directory before tiers had their own
+                    delete(child);
+                }
+            });
+        } catch (IOException e) {
+            LOG.debug("Could not clear cache directory [{}]: {}", parent, e.toString());
+        }
+    }
+
+    public void put(final String key, final ResponseCache.Entry entry) {
+        final BufferedResponse response = entry.getResponse();
+        final long length = response.getBodyLength();
+        if (length > maxBytes) {
+            return;
+        }
+        final Path file = dir.resolve(DigestUtils.sha256Hex(key.getBytes(StandardCharsets.UTF_8)));
+        try {
+            Files.createDirectories(dir);
+            final Path tmp = Files.createTempFile(dir, "spill", ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    final ByteBuffer body = response.getBody();
+                    while (body.hasRemaining()) {
+                        channel.write(body);
+                    }
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                // left behind only if the move failed
+                delete(tmp);
+            }
+        } catch (IOException e) {
+            LOG.debug("Could not spill cached response to [{}]: {}", file, e.toString());
+            return;
+        }
+        // keep only the headers and freshness in heap
+        final ResponseCache.Entry metadata = new ResponseCache.Entry(
+                new BufferedResponse(response.getStatus(), response.getHeaders(), ByteBuffer.allocate(0)),
+                entry.getStoredAt(), entry.getExpiresAt());
+        synchronized (this) {
+            if (closed) {
+                // spilled while the tier was closing
+                delete(file);
+                delete(dir);
+                return;
+            }
+            final DiskEntry previous = index.put(key, new DiskEntry(metadata, file, length));
+            if (previous != null) {
+                sizeBytes -= previous.length;
+            }
+            sizeBytes += length;
+            evictToFit();
+        }
+    }
+
+    /**
+     * @return The entry with its body mapped from disk, or null
+     */
+    public ResponseCache.Entry get(final String key) {
+        final DiskEntry diskEntry;
+        synchronized (this) {
+            diskEntry = index.get(key);
+        }
+        if (diskEntry == null) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(diskEntry.file, StandardOpenOption.READ)) {
+            final ByteBuffer body = channel.map(FileChannel.MapMode.READ_ONLY, 0, diskEntry.length);
+            final BufferedResponse metadata = diskEntry.entry.getResponse();
+            return new ResponseCache.Entry(new BufferedResponse(metadata.getStatus(), metadata.getHeaders(), body),
+                    diskEntry.entry.getStoredAt(), diskEntry.entry.getExpiresAt());
+        } catch (IOException e) {
+            LOG.debug("Could not read spilled response [{}]: {}", diskEntry.file, e.toString());
+            remove(key);
+            return null;
+        }
+    }
+
+    public synchronized void remove(final String key) {
+        final DiskEntry removed = index.remove(key);
+        if (removed != null) {
+            sizeBytes -= removed.length;
+            delete(removed.file);
+        }
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    /**
+     * Deletes the files of the entries in this tier's index, and no others.
+     */
+    public synchronized void clear() {
+        for (final DiskEntry entry : index.values()) {
+            delete(entry.file);
+        }
+        index.clear();
+        sizeBytes = 0;
+    }
+
+    /**
+     * Clears the tier and removes its directory.
+     */
+    public synchronized void close() {
+        closed = true;
+        clear();
+        delete(dir);
+        OPEN.remove(dir);
+    }
+
+    Path getDir() {
+        return dir;
+    }
+
+    private void evictToFit() {
+        final Iterator<Map.Entry<String, DiskEntry>> eldest = index.entrySet().iterator();
+        while (sizeBytes > maxBytes && eldest.hasNext()) {
+            final DiskEntry evicted = eldest.next().getValue();
+            eldest.remove();
+            sizeBytes -= evicted.length;
+            delete(evicted.file);
+        }
+    }
+
+    private static void delete(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.trace("Could not delete [{}]: {}", file, e.toString());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return dir + " (max " + maxBytes + " bytes)";
+    }
+
+    private static class DiskEntry {
+        /** Headers and freshness of the entry, with an empty body; the body is read from the file. */
+        private final ResponseCache.Entry entry;
+        private final Path file;
+        private final long length;
+
+        DiskEntry(final ResponseCache.Entry entry, final Path file, final long length) {
+            this.entry = entry;
+            this.file = file;
+            this.length = length;
+        }
+    }
+}
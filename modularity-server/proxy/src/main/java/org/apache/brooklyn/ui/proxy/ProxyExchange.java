@@ -0,0 +1,314 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.http.HttpStatus;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * State of a single proxied request, carried as a request attribute from {@link UiProxy#service} (or
+ * {@link UiRoutingProxy#service}) to the asynchronous response callbacks.
+ */
+class ProxyExchange {
+
+    private static final String ATTRIBUTE = ProxyExchange.class.getName();
+
+    private final long startNanos = System.nanoTime();
+    private final AtomicBoolean completed = new AtomicBoolean();
+    private final RequestTiming timing = new RequestTiming(startNanos);
+    private final UiProxyConfig config;
+    private final UiRoutingProxy.Routing routing;
+    private String correlationId;
+    private String captureUrl;
+    private BufferedResponse.Capture capture;
+    private UploadSpool.Body upload;
+    private UrlRewriter.Stream rewrite;
+    private ResponseCompressor.Stream compression;
+    private ProxyStreams.Stream stream;
+    private RequestCoalescer.Flight flight;
+    private BackendPool backendPool;
+    private Backend backend;
+    private CircuitBreaker circuitBreaker;
+    private int retries;
+    private ConcurrencyLimiter limiter;
+    private long admittedNanos;
+
+    private ProxyExchange(final UiProxyConfig config, final UiRoutingProxy.Routing routing) {
+        this.config = config;
+        this.routing = routing;
+    }
+
+    static ProxyExchange begin(final HttpServletRequest request) {
+        return begin(request, (UiProxyConfig) null);
+    }
+
+    /**
+     * @param config The configuration the request keeps to the end, however the proxy is reconfigured meanwhile
+     */
+    static ProxyExchange begin(final HttpServletRequest request, final UiProxyConfig config) {
+        final ProxyExchange exchange = new ProxyExchange(config, null);
+        if (config != null) {
+            config.enter();
+        }
+        request.setAttribute(ATTRIBUTE, exchange);
+        return exchange;
+    }
+
+    /**
+     * @param routing The routes the request keeps to the end, however the router is reconfigured meanwhile
+     */
+    static ProxyExchange begin(final HttpServletRequest request, final UiRoutingProxy.Routing routing) {
+        final ProxyExchange exchange = new ProxyExchange(null, routing);
+        routing.enter();
+        request.setAttribute(ATTRIBUTE, exchange);
+        return exchange;
+    }
+
+    /**
+     * @return The exchange for the request, or null if the request did not go through {@link UiProxy#service}
+     */
+    static ProxyExchange of(final HttpServletRequest request) {
+        return (ProxyExchange) request.getAttribute(ATTRIBUTE);
+    }
+
+    UiProxyConfig getConfig() {
+        return config;
+    }
+
+    UiRoutingProxy.Routing getRouting() {
+        return routing;
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    long elapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    RequestTiming getTiming() {
+        return timing;
+    }
+
+    /**
+     * Tags the exchange with the ID sent to the target and back to the client, to tie their logs together.
+     */
+    void correlate(final String correlationId) {
+        this.correlationId = correlationId;
+    }
+
+    String getCorrelationId() {
+        return correlationId;
+    }
+
+    /**
+     * Tees the upstream response body into a capture, for storing or sharing once the response is complete.
+     *
+     * @param url The cache URL, if the response should be offered to the cache
+     */
+    void capture(final String url, final BufferedResponse.Capture capture) {
+        this.captureUrl = url;
+        this.capture = capture;
+    }
+
+    String getCaptureUrl() {
+        return captureUrl;
+    }
+
+    BufferedResponse.Capture getCapture() {
+        return capture;
+    }
+
+    /**
+     * Sends the spooled body upstream in place of the client's stream. It is deleted when the exchange completes.
+     */
+    void upload(final UploadSpool.Body upload) {
+        this.upload = upload;
+    }
+
+    UploadSpool.Body getUpload() {
+        return upload;
+    }
+
+    /**
+     * Rewrites the target's URLs in the response body on its way to the client, before any compression.
+     */
+    void rewrite(final UrlRewriter.Stream rewrite) {
+        this.rewrite = rewrite;
+    }
+
+    UrlRewriter.Stream getRewrite() {
+        return rewrite;
+    }
+
+    /**
+     * Gzips the response body on its way to the client.
+     */
+    void compress(final ResponseCompressor.Stream compression) {
+        this.compression = compression;
+    }
+
+    ResponseCompressor.Stream getCompression() {
+        return compression;
+    }
+
+    /**
+     * Marks the exchange as a long-lived stream, which holds its place under the stream cap until it completes.
+     */
+    void stream(final ProxyStreams.Stream stream) {
+        this.stream = stream;
+    }
+
+    ProxyStreams.Stream getStream() {
+        return stream;
+    }
+
+    void closeStream() {
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    /**
+     * Records the backend chosen for the request, which is charged with it until the exchange completes.
+     */
+    void route(final BackendPool pool, final Backend backend) {
+        this.backendPool = pool;
+        this.backend = backend;
+        backend.begin();
+    }
+
+    BackendPool getBackendPool() {
+        return backendPool;
+    }
+
+    Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Tells the pool how the call to the chosen backend went, if one was chosen; a 5xx counts as a failure.
+     */
+    void reportToBackend(final int status, final long nanos) {
+        if (backend == null) {
+            return;
+        }
+        if (status >= HttpStatus.INTERNAL_SERVER_ERROR_500) {
+            backendPool.onFailure(backend, nanos);
+        } else {
+            backendPool.onSuccess(backend, nanos);
+        }
+    }
+
+    /**
+     * @return The status of a failed upstream call: the target's, if it was already passed on to the client,
+     * otherwise 504 for a timeout and 502 for anything else
+     */
+    static int failureStatus(final HttpServletResponse proxyResponse, final Response serverResponse, final Throwable failure) {
+        return proxyResponse.isCommitted() && serverResponse != null ? serverResponse.getStatus()
+                : failure instanceof TimeoutException ? HttpStatus.GATEWAY_TIMEOUT_504 : HttpStatus.BAD_GATEWAY_502;
+    }
+
+    /**
+     * Records that the circuit breaker permitted the upstream call, so it is told the outcome.
+     */
+    void guard(final CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Records the concurrency permit held for the upstream call, from now.
+     */
+    void admit(final ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+        this.admittedNanos = System.nanoTime();
+    }
+
+    /**
+     * @return The concurrency limiter to give the permit back to, at most once
+     */
+    ConcurrencyLimiter takeLimiter() {
+        final ConcurrencyLimiter result = limiter;
+        limiter = null;
+        return result;
+    }
+
+    long admittedNanos() {
+        return System.nanoTime() - admittedNanos;
+    }
+
+    /**
+     * Settles the backend of a failed attempt before the request is sent again.
+     *
+     * @return The number of retries made so far, including this one
+     */
+    int retry() {
+        if (backend != null) {
+            backendPool.onFailure(backend, elapsedNanos());
+            backend = null;
+        }
+        return ++retries;
+    }
+
+    int getRetries() {
+        return retries;
+    }
+
+    void lead(final RequestCoalescer.Flight flight) {
+        this.flight = flight;
+    }
+
+    /**
+     * @return The flight led by this exchange, released at most once
+     */
+    RequestCoalescer.Flight takeFlight() {
+        final RequestCoalescer.Flight result = flight;
+        flight = null;
+        return result;
+    }
+
+    /**
+     * @return true only for the first caller, so completion is accounted exactly once
+     */
+    boolean complete() {
+        if (!completed.compareAndSet(false, true)) {
+            return false;
+        }
+        if (upload != null) {
+            upload.close();
+        }
+        if (config != null) {
+            config.exit();
+        }
+        if (routing != null) {
+            routing.exit();
+        }
+        return true;
+    }
+}
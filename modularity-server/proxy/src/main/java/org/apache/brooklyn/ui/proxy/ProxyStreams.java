@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The long-lived streams of a proxy, WebSockets and server-sent events, with a cap on how many may be open at once.
+ */
+public class ProxyStreams {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProxyStreams.class);
+
+    private final int maxStreams;
+    private final long idleTimeoutMillis;
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    public ProxyStreams(final int maxStreams, final long idleTimeoutMillis) {
+        this.maxStreams = maxStreams;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * @return A newly opened stream, which must be closed, or null if the cap is reached
+     */
+    public Stream tryOpen(final String kind, final String target) {
+        while (true) {
+            final int current = active.get();
+            if (current >= maxStreams) {
+                rejected.increment();
+                return null;
+            }
+            if (active.compareAndSet(current, current + 1)) {
+                opened.increment();
+                return new Stream(kind, target);
+            }
+        }
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public int getActive() {
+        return active.get();
+    }
+
+    public long getOpened() {
+        return opened.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * One open stream, counting the bytes relayed each way.
+     */
+    public class Stream {
+        private final String kind;
+        private final String target;
+        private final long openedNanos = System.nanoTime();
+        private final AtomicLong in = new AtomicLong();
+        private final AtomicLong out = new AtomicLong();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Stream(final String kind, final String target) {
+            this.kind = kind;
+            this.target = target;
+        }
+
+        /**
+         * Counts bytes from the client to the target.
+         */
+        public void addIn(final long bytes) {
+            in.addAndGet(bytes);
+            bytesIn.add(bytes);
+        }
+
+        /**
+         * Counts bytes from the target to the client.
+         */
+        public void addOut(final long bytes) {
+            out.addAndGet(bytes);
+            bytesOut.add(bytes);
+        }
+
+        public long getIn() {
+            return in.get();
+        }
+
+        public long getOut() {
+            return out.get();
+        }
+
+        /**
+         * Frees the stream's place under the cap; safe to call more than once.
+         */
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                active.decrementAndGet();
+                LOG.debug("Closed {} stream to [{}] after {}ms: {} bytes in, {} bytes out", kind, target,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - openedNanos), in.get(), out.get());
+            }
+        }
+    }
+
+    public static ProxyStreams fromProperties(final Map<String, String> properties) {
+        // see README for the meaning of each property
+        return new ProxyStreams(
+                Integer.parseInt(StringUtils.defaultIfBlank(properties.get("streams.max"), "100")),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(StringUtils.defaultIfBlank(properties.get("streams.idleTimeout"), "300"))));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.apache.commons.lang3.StringUtils;
+import org.osgi.service.http.HttpContext;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-user rate limiting, with a token bucket for each authenticated user, or for each client address when the
+ * request is anonymous.
+ * <p>
+ * Each bucket is a single {@link AtomicLong} holding its theoretical arrival time (the generic cell rate algorithm),
+ * so taking a token is one compare-and-set. Buckets live in a cache striped by key, and are dropped once idle.
+ */
+public class RateLimiter {
+
+    private final long intervalNanos;
+    private final int burst;
+    private final long toleranceNanos;
+    private final LoadingCache<String, AtomicLong> buckets;
+    private final LongAdder limited = new LongAdder();
+
+    public RateLimiter(final double ratePerSecond, final int burst, final int maxKeys) {
+        this.intervalNanos = Math.max(1, Math.round(TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+        this.burst = burst;
+        this.toleranceNanos = intervalNanos * burst;
+        this.buckets = CacheBuilder.newBuilder()
+                .maximumSize(maxKeys)
+                // an idle bucket has refilled after the tolerance, and behaves like a new one
+                .expireAfterAccess(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(toleranceNanos)) + 1, TimeUnit.SECONDS)
+                .build(new CacheLoader<String, AtomicLong>() {
+                    @Override
+                    public AtomicLong load(final String key) {
+                        return new AtomicLong(System.nanoTime());
+                    }
+                });
+    }
+
+    public static String key(final HttpServletRequest request) {
+        final Object user = request.getAttribute(HttpContext.REMOTE_USER);
+        return user != null ? "user:" + user : "addr:" + request.getRemoteAddr();
+    }
+
+    /**
+     * Takes a token from the bucket for the key.
+     */
+    public Decision acquire(final String key) {
+        final AtomicLong tat = buckets.getUnchecked(key);
+        while (true) {
+            final long now = System.nanoTime();
+            final long current = tat.get();
+            final long next = Math.max(current - now, 0) + now + intervalNanos;
+            final long backlog = next - now;
+            if (backlog > toleranceNanos) {
+                limited.increment();
+                return new Decision(false, 0, backlog - toleranceNanos, current - now);
+            }
+            if (tat.compareAndSet(current, next)) {
+                return new Decision(true, (int) ((toleranceNanos - backlog) / intervalNanos), 0, backlog);
+            }
+        }
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public long getLimited() {
+        return limited.sum();
+    }
+
+    public long getKeys() {
+        return buckets.size();
+    }
+
+    /**
+     * The outcome of taking a token, with what is needed for the {@code RateLimit-*} response headers.
+     */
+    public static class Decision {
+        private final boolean allowed;
+        private final int remaining;
+        private final long retryAfterNanos;
+        private final long resetNanos;
+
+        Decision(final boolean allowed, final int remaining, final long retryAfterNanos, final long resetNanos) {
+            this.allowed = allowed;
+            this.remaining = remaining;
+            this.retryAfterNanos = retryAfterNanos;
+            this.resetNanos = resetNanos;
+        }
+
+        public boolean isAllowed() {
+            return allowed;
+        }
+
+        public int getRemaining() {
+            return remaining;
+        }
+
+        /**
+         * @return Whole seconds until a token is available, at least 1
+         */
+        public long getRetryAfterSeconds() {
+            return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(retryAfterNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+        }
+
+        /**
+         * @return Whole seconds until the bucket is full again
+         */
+        public long getResetSeconds() {
+            return TimeUnit.NANOSECONDS.toSeconds(Math.max(0, resetNanos) + TimeUnit.SECONDS.toNanos(1) - 1);
+        }
+    }
+
+    public static RateLimiter fromProperties(final Map<String, String> properties) {
+        // see README for the meaning of each property
+        if (!Boolean.parseBoolean(properties.get("ratelimit.enabled"))) {
+            return null;
+        }
+        return new RateLimiter(
+                Double.parseDouble(StringUtils.defaultIfBlank(properties.get("ratelimit.rate"), "20")),
+                Integer.parseInt(StringUtils.defaultIfBlank(properties.get("ratelimit.burst"), "40")),
+                Integer.parseInt(StringUtils.defaultIfBlank(properties.get("ratelimit.maxKeys"), "10000")));
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpMethod;
+import org.osgi.service.http.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Single-flight coalescing of identical concurrent GETs: the first request for a key goes upstream, and identical
+ * requests arriving while it is in flight wait for its response instead of making their own upstream call.
+ * <p>
+ * Requests are identical when they have the same rewritten target, the same credentials and cookies, and the same
+ * values for the configured headers. Waiters are capped per flight; beyond the cap requests go upstream as normal.
+ * If the leading request fails, or its body is too large to buffer, each waiter is re-dispatched to make its own call.
+ */
+public class RequestCoalescer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestCoalescer.class);
+    /** Request attribute marking a re-dispatched waiter, which must not join a flight again. */
+    static final String BYPASS = RequestCoalescer.class.getName() + ".bypass";
+
+    private final int maxWaiters;
+    private final int maxBytes;
+    private final List<String> varyHeaders;
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private final LongAdder saved = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+
+    public RequestCoalescer(final int maxWaiters, final int maxBytes, final List<String> varyHeaders) {
+        this.maxWaiters = maxWaiters;
+        this.maxBytes = maxBytes;
+        this.varyHeaders = ImmutableList.copyOf(varyHeaders);
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public boolean isCoalescable(final HttpServletRequest request) {
+        return HttpMethod.GET.is(request.getMethod())
+                && request.getHeader(HttpHeader.RANGE.asString()) == null
+                && request.getAttribute(BYPASS) == null;
+    }
+
+    /**
+     * @return A new flight which this request leads and must {@link Flight#complete}, or null if the request has been
+     * parked to wait for an existing flight, in which case the caller must not respond to it nor complete its exchange
+     */
+    public Flight join(final String url, final HttpServletRequest request) {
+        final String key = key(url, request);
+        while (true) {
+            final Flight created = new Flight(key);
+            final Flight existing = flights.putIfAbsent(key, created);
+            if (existing == null) {
+                return created;
+            }
+            switch (existing.addWaiter(request)) {
+                case ADDED:
+                    return null;
+                case FULL:
+                    overflows.increment();
+                    return new Flight(null);
+                case DONE:
+                    // completed between lookup and join; remove it if still mapped, and retry
+                    flights.remove(key, existing);
+            }
+        }
+    }
+
+    public long getSaved() {
+        return saved.sum();
+    }
+
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    public long getOverflows() {
+        return overflows.sum();
+    }
+
+    public int getInFlight() {
+        return flights.size();
+    }
+
+    private String key(final String url, final HttpServletRequest request) {
+        final StringBuilder sb = new StringBuilder(url)
+                .append('\n').append(Objects.toString(request.getAttribute(HttpContext.REMOTE_USER), ""))
+                .append('\n').append(DigestUtils.sha256Hex(StringUtils.defaultString(request.getHeader(HttpHeader.AUTHORIZATION.asString()))
+                        + '\n' + StringUtils.defaultString(request.getHeader(HttpHeader.COOKIE.asString()))));
+        for (final String header : varyHeaders) {
+            sb.append('\n').append(StringUtils.defaultString(request.getHeader(header)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * One upstream call and the requests waiting for its response. A flight with a null key was refused coalescing
+     * and has no waiters.
+     */
+    public class Flight {
+        private final String key;
+        private final List<AsyncContext> waiters = new ArrayList<>();
+        private boolean done;
+
+        Flight(final String key) {
+            this.key = key;
+        }
+
+        private synchronized Join addWaiter(final HttpServletRequest request) {
+            if (done) {
+                return Join.DONE;
+            }
+            if (waiters.size() >= maxWaiters) {
+                return Join.FULL;
+            }
+            final AsyncContext waiter = request.startAsync();
+            // the leader always completes, by success or failure, so waiters need no timeout of their own
+            waiter.setTimeout(0);
+            waiters.add(waiter);
+            return Join.ADDED;
+        }
+
+        private synchronized List<AsyncContext> close() {
+            done = true;
+            return new ArrayList<>(waiters);
+        }
+
+        /**
+         * Releases the waiters with the leader's response, or re-dispatches them to go upstream if response is null.
+         *
+         * @param response The response as the leader's client was sent it, before any compression
+         */
+        public void complete(final BufferedResponse response) {
+            if (key != null) {
+                flights.remove(key, this);
+            }
+            final List<AsyncContext> released = close();
+            if (response == null) {
+                fallbacks.add(released.size());
+            } else {
+                saved.add(released.size());
+            }
+            for (final AsyncContext waiter : released) {
+                if (response == null) {
+                    waiter.getRequest().setAttribute(BYPASS, Boolean.TRUE);
+                    waiter.dispatch();
+                } else {
+                    waiter.start(() -> {
+                        final HttpServletRequest request = (HttpServletRequest) waiter.getRequest();
+                        final ProxyExchange exchange = ProxyExchange.of(request);
+                        try {
+                            // as the leader's client was sent it, compressed if this client accepts gzip
+                            response.writeTo(request, (HttpServletResponse) waiter.getResponse(),
+                                    exchange == null || exchange.getConfig() == null ? null : exchange.getConfig().getResponseCompressor());
+                        } catch (Exception e) {
+                            LOG.debug("Failed to write coalesced response: {}", e.toString());
+                        } finally {
+                            // the waiter's exchange stayed open while it was parked, so a drain waits for it
+                            if (exchange != null) {
+                                exchange.complete();
+                            }
+                            waiter.complete();
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    private enum Join { ADDED, FULL, DONE }
+
+    public static RequestCoalescer fromProperties(final Map<String, String> properties) {
+        if (!Boolean.parseBoolean(properties.get("coalesce.enabled"))) {
+            return null;
+        }
+        return new RequestCoalescer(
+                Integer.parseInt(StringUtils.defaultIfBlank(properties.get("coalesce.maxWaiters"), "100")),
+                Integer.parseInt(StringUtils.defaultIfBlank(properties.get("coalesce.maxBytes"), String.valueOf(8 << 20))),
+                Splitter.on(',').trimResults().omitEmptyStrings().splitToList(
+                        StringUtils.defaultIfBlank(properties.get("coalesce.varyHeaders"), "Accept,Accept-Encoding,Accept-Language").toLowerCase(Locale.ROOT)));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import org.eclipse.jetty.client.api.Request;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the time of one proxied request went, split into the phases which point at different culprits:
+ * <ul>
+ *     <li>{@code proxy}: from arrival until the request is handed to the HTTP client, waiting on the proxy's own
+ *     limits, queues and coalescing</li>
+ *     <li>{@code connect}: waiting in the HTTP client for a connection to the target, including opening one</li>
+ *     <li>{@code ttfb}: from sending the request until the target's first byte, the target's think time plus
+ *     the network round trip</li>
+ *     <li>{@code transfer}: receiving the body</li>
+ * </ul>
+ * Marks are set by the container and HTTP client threads, so a phase which has not happened reads as zero.
+ */
+class RequestTiming {
+
+    private final long startNanos;
+    private volatile long sentNanos;
+    private volatile long attemptNanos;
+    private volatile long beginNanos;
+    private volatile long firstByteNanos;
+    private volatile long endNanos;
+
+    RequestTiming(final long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Marks the request as handed to the HTTP client, and listens for it being sent and answered. Called again for
+     * a retry, which then replaces the earlier attempt's client-side phases.
+     */
+    void sent(final Request proxyRequest) {
+        final long now = System.nanoTime();
+        if (sentNanos == 0) {
+            sentNanos = now;
+        }
+        attemptNanos = now;
+        beginNanos = 0;
+        firstByteNanos = 0;
+        proxyRequest.onRequestBegin(request -> beginNanos = System.nanoTime());
+        proxyRequest.onResponseBegin(response -> firstByteNanos = System.nanoTime());
+    }
+
+    /**
+     * @return Whether the request went to the target, rather than being answered by the proxy itself
+     */
+    boolean wasSent() {
+        return sentNanos != 0;
+    }
+
+    void end() {
+        endNanos = System.nanoTime();
+    }
+
+    long getProxyNanos() {
+        return between(startNanos, sentNanos);
+    }
+
+    long getConnectNanos() {
+        return between(attemptNanos, beginNanos);
+    }
+
+    long getFirstByteNanos() {
+        return between(beginNanos, firstByteNanos);
+    }
+
+    long getTransferNanos() {
+        return between(firstByteNanos, endNanos);
+    }
+
+    /**
+     * @return The phases known once the response headers arrive, as a {@code Server-Timing} header value
+     */
+    String toServerTiming() {
+        return "proxy;dur=" + millis(getProxyNanos()) + ", connect;dur=" + millis(getConnectNanos())
+                + ", ttfb;dur=" + millis(getFirstByteNanos());
+    }
+
+    private static long between(final long from, final long to) {
+        return from == 0 || to == 0 ? 0 : Math.max(0, to - from);
+    }
+
+    private static String millis(final long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListeners;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jetty.http.DateParser;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpMethod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared HTTP cache for the GET responses of a single proxy, honouring the upstream {@code Cache-Control},
+ * {@code Expires}, {@code Vary} and {@code ETag} headers.
+ * <p>
+ * Entries live in a size-bounded heap tier; entries pushed out of it while still fresh can spill to an optional
+ * {@link DiskCacheTier}. Only responses with an explicit freshness lifetime are stored, there is no heuristic
+ * caching, and stale entries are discarded rather than revalidated.
+ */
+public class ResponseCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResponseCache.class);
+    private static final Splitter COMMA = Splitter.on(',').trimResults().omitEmptyStrings();
+    /** Overhead charged to each heap entry on top of its body, for headers and bookkeeping. */
+    private static final int ENTRY_OVERHEAD = 512;
+
+    private final int maxEntryBytes;
+    private final Cache<String, Entry> memory;
+    private final DiskCacheTier disk;
+    private final ExecutorService spillExecutor;
+    /** Header names each URL varies on, learned from its most recent cacheable response. */
+    private final Cache<String, List<String>> varyByUrl = CacheBuilder.newBuilder().maximumSize(10_000).build();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+
+    public ResponseCache(final long memoryMaxBytes, final int maxEntryBytes, final DiskCacheTier disk) {
+        this.maxEntryBytes = maxEntryBytes;
+        this.disk = disk;
+        final CacheBuilder<String, Entry> builder = CacheBuilder.newBuilder()
+                .maximumWeight(memoryMaxBytes)
+                .weigher((String key, Entry entry) -> entry.response.getBodyLength() + ENTRY_OVERHEAD);
+        if (disk != null) {
+            spillExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("brooklyn-ui-proxy-cache-spill-%d")
+                    .setDaemon(true)
+                    .build());
+            memory = builder.removalListener(RemovalListeners.<String, Entry>asynchronous(notification -> {
+                if (notification.getCause() == RemovalCause.SIZE && notification.getValue().isFresh()) {
+                    disk.put(notification.getKey(), notification.getValue());
+                }
+            }, spillExecutor)).build();
+        } else {
+            spillExecutor = null;
+            memory = builder.build();
+        }
+    }
+
+    public int getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * @return Whether the response to this request may come from, or be stored in, the cache
+     */
+    public boolean isCacheable(final HttpServletRequest request) {
+        return HttpMethod.GET.is(request.getMethod()) && request.getHeader(HttpHeader.RANGE.asString()) == null;
+    }
+
+    /**
+     * @return A fresh entry for the request, or null; counts the hit or miss
+     */
+    public Entry get(final String url, final HttpServletRequest request) {
+        if (hasNoCache(request)) {
+            misses.increment();
+            return null;
+        }
+        final String key = key(url, varyByUrl.getIfPresent(url), request);
+        Entry entry = memory.getIfPresent(key);
+        if (entry == null && disk != null) {
+            entry = disk.get(key);
+        }
+        if (entry == null || !entry.isFresh()) {
+            if (entry != null) {
+                memory.invalidate(key);
+                if (disk != null) {
+                    disk.remove(key);
+                }
+            }
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry;
+    }
+
+    /**
+     * Stores the response if upstream allows it to be shared.
+     *
+     * @param forwardsClientCredentials Whether the upstream request carried the client's own credentials,
+     *                                  in which case the response is only stored if marked {@code public}
+     */
+    public void put(final String url, final HttpServletRequest request, final BufferedResponse response,
+                    final boolean forwardsClientCredentials) {
+        if (response.getStatus() != HttpServletResponse.SC_OK || response.getBodyLength() > maxEntryBytes
+                || response.getHeader(HttpHeader.SET_COOKIE.asString()) != null) {
+            return;
+        }
+        final Map<String, String> directives = parseCacheControl(response.getHeader(HttpHeader.CACHE_CONTROL.asString()));
+        if (directives.containsKey("no-store") || directives.containsKey("private") || directives.containsKey("no-cache")) {
+            return;
+        }
+        final boolean authorized = forwardsClientCredentials && request.getHeader(HttpHeader.AUTHORIZATION.asString()) != null;
+        if (authorized && !directives.containsKey("public") && !directives.containsKey("s-maxage")) {
+            return;
+        }
+        final long ttlMillis = freshnessLifetimeMillis(directives, response);
+        if (ttlMillis <= 0) {
+            return;
+        }
+        final String varyHeader = response.getHeader(HttpHeader.VARY.asString());
+        final List<String> vary = varyHeader == null ? ImmutableList.of() : ImmutableList.copyOf(COMMA.split(varyHeader.toLowerCase(Locale.ROOT)));
+        if (vary.contains("*")) {
+            return;
+        }
+        varyByUrl.put(url, vary);
+        final long now = System.currentTimeMillis();
+        memory.put(key(url, vary, request), new Entry(response, now, now + ttlMillis));
+    }
+
+    /**
+     * Writes a cached entry to the client, as a 304 if the client already holds the same {@code ETag}.
+     *
+     * @param compressor Compresses the entry for clients accepting gzip, as it would a response from upstream, or null
+     */
+    public void write(final Entry entry, final HttpServletRequest request, final HttpServletResponse response,
+                      final ResponseCompressor compressor) throws IOException {
+        final long ageSeconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - entry.storedAt);
+        final String etag = entry.response.getHeader(HttpHeader.ETAG.asString());
+        if (etag != null && matchesIfNoneMatch(etag, request.getHeader(HttpHeader.IF_NONE_MATCH.asString()))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            response.setHeader(HttpHeader.ETAG.asString(), etag);
+            copyHeaderIfPresent(entry, response, HttpHeader.CACHE_CONTROL.asString());
+            copyHeaderIfPresent(entry, response, HttpHeader.EXPIRES.asString());
+            copyHeaderIfPresent(entry, response, HttpHeader.VARY.asString());
+            response.setHeader(HttpHeader.AGE.asString(), String.valueOf(ageSeconds));
+            bytesSaved.add(entry.response.getBodyLength());
+            return;
+        }
+        response.setHeader(HttpHeader.AGE.asString(), String.valueOf(ageSeconds));
+        entry.response.writeTo(request, response, compressor);
+        bytesSaved.add(entry.response.getBodyLength());
+    }
+
+    /**
+     * @return Whether the {@code If-None-Match} header lists the entity tag, by the weak comparison RFC 7232 requires,
+     * as the client may hold the tag weakened for a compressed or rewritten copy
+     */
+    static boolean matchesIfNoneMatch(final String etag, final String ifNoneMatch) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        if (ifNoneMatch.trim().equals("*")) {
+            return true;
+        }
+        final String opaque = StringUtils.removeStart(etag, "W/");
+        for (final String candidate : COMMA.split(ifNoneMatch)) {
+            if (StringUtils.removeStart(candidate, "W/").equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRatio() {
+        final long h = hits.sum();
+        final long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public long getBytesSaved() {
+        return bytesSaved.sum();
+    }
+
+    public long getMemoryEntries() {
+        return memory.size();
+    }
+
+    public long getDiskBytes() {
+        return disk == null ? 0 : disk.getSizeBytes();
+    }
+
+    public void close() {
+        memory.invalidateAll();
+        if (spillExecutor != null) {
+            spillExecutor.shutdownNow();
+        }
+        if (disk != null) {
+            disk.close();
+        }
+    }
+
+    private static void copyHeaderIfPresent(final Entry entry, final HttpServletResponse response, final String name) {
+        final String value = entry.response.getHeader(name);
+        if (value != null) {
+            response.setHeader(name, value);
+        }
+    }
+
+    private static boolean hasNoCache(final HttpServletRequest request) {
+        final Map<String, String> directives = parseCacheControl(request.getHeader(HttpHeader.CACHE_CONTROL.asString()));
+        return directives.containsKey("no-cache") || directives.containsKey("no-store")
+                || StringUtils.containsIgnoreCase(request.getHeader(HttpHeader.PRAGMA.asString()), "no-cache");
+    }
+
+    private static String key(final String url, final List<String> vary, final HttpServletRequest request) {
+        if (vary == null || vary.isEmpty()) {
+            return url;
+        }
+        final StringBuilder sb = new StringBuilder(url);
+        for (final String header : vary) {
+            sb.append('\n').append(header).append(':').append(StringUtils.defaultString(request.getHeader(header)));
+        }
+        return sb.toString();
+    }
+
+    static Map<String, String> parseCacheControl(final String header) {
+        final Map<String, String> directives = new HashMap<>();
+        if (header != null) {
+            for (final String directive : COMMA.split(header.toLowerCase(Locale.ROOT))) {
+                final int eq = directive.indexOf('=');
+                if (eq < 0) {
+                    directives.put(directive, "");
+                } else {
+                    directives.put(directive.substring(0, eq).trim(), StringUtils.strip(directive.substring(eq + 1).trim(), "\""));
+                }
+            }
+        }
+        return directives;
+    }
+
+    static long freshnessLifetimeMillis(final Map<String, String> directives, final BufferedResponse response) {
+        try {
+            if (directives.containsKey("s-maxage")) {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(directives.get("s-maxage")));
+            }
+            if (directives.containsKey("max-age")) {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(directives.get("max-age")));
+            }
+        } catch (NumberFormatException e) {
+            LOG.trace("Ignoring invalid Cache-Control max-age: {}", directives);
+            return 0;
+        }
+        final String expires = response.getHeader(HttpHeader.EXPIRES.asString());
+        if (expires != null) {
+            final long expiresAt = DateParser.parseDate(expires);
+            final String date = response.getHeader(HttpHeader.DATE.asString());
+            final long dateAt = date == null ? System.currentTimeMillis() : DateParser.parseDate(date);
+            return expiresAt < 0 || dateAt < 0 ? 0 : expiresAt - dateAt;
+        }
+        return 0;
+    }
+
+    /**
+     * A cached response and its freshness lifetime.
+     */
+    public static class Entry {
+        private final BufferedResponse response;
+        private final long storedAt;
+        private final long expiresAt;
+
+        Entry(final BufferedResponse response, final long storedAt, final long expiresAt) {
+            this.response = response;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        public BufferedResponse getResponse() {
+            return response;
+        }
+
+        public long getStoredAt() {
+            return storedAt;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+    }
+
+    public static ResponseCache fromProperties(final String proxyId, final Map<String, String> properties, final Path defaultDiskDir) {
+        // see README for the meaning of each property
+        if (!Boolean.parseBoolean(properties.get("cache.enabled"))) {
+            return null;
+        }
+        final long memoryMaxBytes = Long.parseLong(StringUtils.defaultIfBlank(properties.get("cache.memory.maxBytes"), String.valueOf(64L << 20)));
+        final int maxEntryBytes = Integer.parseInt(StringUtils.defaultIfBlank(properties.get("cache.maxEntryBytes"), String.valueOf(8 << 20)));
+        DiskCacheTier disk = null;
+        if (Boolean.parseBoolean(properties.get("cache.disk.enabled"))) {
+            final long diskMaxBytes = Long.parseLong(StringUtils.defaultIfBlank(properties.get("cache.disk.maxBytes"), String.valueOf(512L << 20)));
+            final String dir = properties.get("cache.disk.dir");
+            disk = new DiskCacheTier(dir == null ? defaultDiskDir.resolve(proxyId) : defaultDiskDir.getFileSystem().getPath(dir), diskMaxBytes);
+        }
+        LOG.debug("Response cache for proxy [{}] :: memory [{}] bytes, max entry [{}] bytes, disk [{}]", proxyId, memoryMaxBytes, maxEntryBytes, disk);
+        return new ResponseCache(memoryMaxBytes, maxEntryBytes, disk);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http.HttpStatus;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayOutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * On-the-fly gzip of upstream response bodies, for clients which accept it.
+ * <p>
+ * Each chunk from upstream is deflated as it arrives and the output passed on, so only the compressor's window is
+ * held in memory. Responses are left alone when the upstream already encoded them, when they are known to be smaller
+ * than the minimum size, or when their content type is not in the allowlist.
+ */
+public class ResponseCompressor {
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final int minSize;
+    private final Set<String> types;
+    private final int level;
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder responses = new LongAdder();
+
+    public ResponseCompressor(final int minSize, final Set<String> types, final int level) {
+        this.minSize = minSize;
+        this.types = ImmutableSet.copyOf(types);
+        this.level = level;
+    }
+
+    /**
+     * @return Whether the upstream response should be compressed for this client
+     */
+    public boolean shouldCompress(final HttpServletRequest clientRequest, final Response serverResponse) {
+        return shouldCompress(clientRequest, serverResponse.getStatus(),
+                serverResponse.getHeaders().containsKey(HttpHeader.CONTENT_ENCODING.asString())
+                        || serverResponse.getHeaders().containsKey(HttpHeader.CONTENT_RANGE.asString()),
+                serverResponse.getHeaders().getLongField(HttpHeader.CONTENT_LENGTH.asString()),
+                serverResponse.getHeaders().get(HttpHeader.CONTENT_TYPE));
+    }
+
+    /**
+     * @return Whether the buffered response, replayed from the cache or to a coalesced request, should be
+     * compressed for this client
+     */
+    public boolean shouldCompress(final HttpServletRequest clientRequest, final BufferedResponse response) {
+        return shouldCompress(clientRequest, response.getStatus(),
+                response.getHeader(HttpHeader.CONTENT_ENCODING.asString()) != null
+                        || response.getHeader(HttpHeader.CONTENT_RANGE.asString()) != null,
+                response.getBodyLength(),
+                response.getHeader(HttpHeader.CONTENT_TYPE.asString()));
+    }
+
+    private boolean shouldCompress(final HttpServletRequest clientRequest, final int status, final boolean encoded,
+                                   final long length, final String contentType) {
+        if (HttpMethod.HEAD.is(clientRequest.getMethod()) || status != HttpStatus.OK_200 || encoded
+                || !acceptsGzip(clientRequest.getHeader(HttpHeader.ACCEPT_ENCODING.asString()))) {
+            return false;
+        }
+        if (length >= 0 && length < minSize) {
+            return false;
+        }
+        final String type = StringUtils.substringBefore(StringUtils.defaultString(contentType), ";").trim().toLowerCase(Locale.ROOT);
+        return types.contains(type);
+    }
+
+    static boolean acceptsGzip(final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (final String coding : Splitter.on(',').trimResults().omitEmptyStrings().split(acceptEncoding.toLowerCase(Locale.ROOT))) {
+            final String name = StringUtils.substringBefore(coding, ";").trim();
+            if (("gzip".equals(name) || "*".equals(name)) && !coding.replace(" ", "").matches(".*;q=0(\\.0*)?$")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Stream newStream() {
+        responses.increment();
+        return new Stream();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getResponses() {
+        return responses.sum();
+    }
+
+    /**
+     * @return The fraction of bytes saved over all compressed responses
+     */
+    public double getSavedRatio() {
+        final long in = bytesIn.sum();
+        return in == 0 ? 0 : 1 - (double) bytesOut.sum() / in;
+    }
+
+    /**
+     * The gzip encoding of one response body. Not thread-safe: the proxy delivers a response's content in order.
+     */
+    public class Stream {
+        private final Deflater deflater = new Deflater(level, true);
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[8192];
+        private boolean headerWritten;
+        private boolean finished;
+
+        /**
+         * @return The compressed bytes for this chunk, possibly none
+         */
+        public byte[] write(final byte[] bytes, final int offset, final int length) {
+            crc.update(bytes, offset, length);
+            bytesIn.add(length);
+            deflater.setInput(bytes, offset, length);
+            final ByteArrayOutputStream out = start(length);
+            while (!deflater.needsInput()) {
+                drain(out);
+            }
+            return count(out);
+        }
+
+        /**
+         * @return The remaining compressed bytes and the gzip trailer
+         */
+        public byte[] finish() {
+            final ByteArrayOutputStream out = start(64);
+            deflater.finish();
+            while (!deflater.finished()) {
+                drain(out);
+            }
+            final long crcValue = crc.getValue();
+            final long size = deflater.getBytesRead();
+            for (int i = 0; i < 4; i++) {
+                out.write((int) (crcValue >> (8 * i)));
+            }
+            for (int i = 0; i < 4; i++) {
+                out.write((int) (size >> (8 * i)));
+            }
+            close();
+            return count(out);
+        }
+
+        /**
+         * Frees the native compressor; safe to call more than once.
+         */
+        public void close() {
+            if (!finished) {
+                finished = true;
+                deflater.end();
+            }
+        }
+
+        private ByteArrayOutputStream start(final int sizeHint) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, sizeHint / 2));
+            if (!headerWritten) {
+                headerWritten = true;
+                out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            }
+            return out;
+        }
+
+        private void drain(final ByteArrayOutputStream out) {
+            final int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+
+        private byte[] count(final ByteArrayOutputStream out) {
+            bytesOut.add(out.size());
+            return out.toByteArray();
+        }
+    }
+
+    public static ResponseCompressor fromProperties(final Map<String, String> properties) {
+        // see README for the meaning of each property
+        if (!Boolean.parseBoolean(properties.get("compression.enabled"))) {
+            return null;
+        }
+        return new ResponseCompressor(
+                Integer.parseInt(StringUtils.defaultIfBlank(properties.get("compression.minSize"), "1024")),
+                ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(StringUtils.defaultIfBlank(
+                        properties.get("compression.types"),
+                        "text/html,text/css,text/plain,text/javascript,application/javascript,application/json,application/xml,image/svg+xml")
+                        .toLowerCase(Locale.ROOT))),
+                Integer.parseInt(StringUtils.defaultIfBlank(properties.get("compression.level"), "6")));
+    }
+}
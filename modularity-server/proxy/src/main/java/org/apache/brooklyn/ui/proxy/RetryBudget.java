@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits retries to a fraction of the requests sent upstream, so that retrying cannot multiply the load on a
+ * target that is already failing.
+ * <p>
+ * Every request deposits {@code ratio} of a token, up to {@code maxTokens}, and every retry withdraws a whole one.
+ * Only requests with one of the configured methods are retried.
+ */
+public class RetryBudget {
+
+    private static final long SCALE = 1000;
+
+    private final long deposit;
+    private final long capacity;
+    private final int maxRetries;
+    private final Set<String> methods;
+    private final AtomicLong balance;
+    private final LongAdder exhausted = new LongAdder();
+
+    public RetryBudget(final double ratio, final int maxTokens, final int maxRetries, final Set<String> methods) {
+        this.deposit = Math.round(ratio * SCALE);
+        this.capacity = maxTokens * SCALE;
+        this.maxRetries = maxRetries;
+        this.methods = ImmutableSet.copyOf(methods);
+        this.balance = new AtomicLong(capacity);
+    }
+
+    /**
+     * @return How many times a single request may be retried
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public boolean isRetryable(final String method) {
+        return methods.contains(method);
+    }
+
+    public void onRequest() {
+        long current;
+        do {
+            current = balance.get();
+            if (current >= capacity) {
+                return;
+            }
+        } while (!balance.compareAndSet(current, Math.min(capacity, current + deposit)));
+    }
+
+    /**
+     * @return true if a retry may be made, having paid for it
+     */
+    public boolean tryWithdraw() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < SCALE) {
+                exhausted.increment();
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - SCALE));
+        return true;
+    }
+
+    public double getTokens() {
+        return (double) balance.get() / SCALE;
+    }
+
+    public long getExhausted() {
+        return exhausted.sum();
+    }
+
+    public static RetryBudget fromProperties(final Map<String, String> properties) {
+        // see README for the meaning of each property; retries are off unless asked for
+        final int maxRetries = Integer.parseInt(StringUtils.defaultIfBlank(properties.get("retry.max"), "0"));
+        if (maxRetries <= 0) {
+            return null;
+        }
+        return new RetryBudget(
+                Double.parseDouble(StringUtils.defaultIfBlank(properties.get("retry.ratio"), "0.1")),
+                Integer.parseInt(StringUtils.defaultIfBlank(properties.get("retry.maxTokens"), "10")),
+                maxRetries,
+                ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(
+                        StringUtils.defaultIfBlank(properties.get("retry.methods"), "GET,HEAD,OPTIONS").toUpperCase(Locale.ROOT))));
+    }
+}
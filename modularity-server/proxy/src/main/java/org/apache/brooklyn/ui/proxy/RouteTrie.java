@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Path prefixes mapped to values, matched by longest prefix on whole path segments, so {@code /app} matches
+ * {@code /app} and {@code /app/x} but not {@code /application}.
+ * <p>
+ * Lookups walk one node per segment of the path, however many prefixes there are. A trie is filled once and then
+ * only read; to change it, build a new one and publish it in its place.
+ *
+ * @param <V> The type of value routed to
+ */
+public class RouteTrie<V> {
+
+    private final Node<V> root = new Node<>();
+    private final List<V> values = new ArrayList<>();
+
+    /**
+     * @throws IllegalArgumentException if the prefix is already mapped
+     */
+    public void put(final String prefix, final V value) {
+        Node<V> node = root;
+        int start = skipSlashes(prefix, 0);
+        while (start < prefix.length()) {
+            final int end = segmentEnd(prefix, start);
+            node = node.children.computeIfAbsent(prefix.substring(start, end), k -> new Node<>());
+            start = skipSlashes(prefix, end);
+        }
+        if (node.value != null) {
+            throw new IllegalArgumentException("Duplicate route prefix [" + prefix + "]");
+        }
+        node.value = value;
+        values.add(value);
+    }
+
+    /**
+     * @return The value of the longest prefix of the path, and the length of the path it matched, or null
+     */
+    public Match<V> match(final String path) {
+        Node<V> node = root;
+        Match<V> best = root.value == null ? null : new Match<>(root.value, 0);
+        int start = skipSlashes(path, 0);
+        while (start < path.length()) {
+            final int end = segmentEnd(path, start);
+            node = node.children.get(path.substring(start, end));
+            if (node == null) {
+                break;
+            }
+            if (node.value != null) {
+                best = new Match<>(node.value, end);
+            }
+            start = skipSlashes(path, end);
+        }
+        return best;
+    }
+
+    /**
+     * @return The values, in the order they were put
+     */
+    public List<V> values() {
+        return Collections.unmodifiableList(values);
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    private static int skipSlashes(final String path, int index) {
+        while (index < path.length() && path.charAt(index) == '/') {
+            index++;
+        }
+        return index;
+    }
+
+    private static int segmentEnd(final String path, final int start) {
+        final int slash = path.indexOf('/', start);
+        return slash < 0 ? path.length() : slash;
+    }
+
+    private static class Node<V> {
+        private final Map<String, Node<V>> children = new HashMap<>();
+        private V value;
+    }
+
+    public static class Match<V> {
+        private final V value;
+        private final int length;
+
+        Match(final V value, final int length) {
+            this.value = value;
+            this.length = length;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        /**
+         * @return The number of characters of the path taken by the matched prefix
+         */
+        public int getLength() {
+            return length;
+        }
+    }
+}
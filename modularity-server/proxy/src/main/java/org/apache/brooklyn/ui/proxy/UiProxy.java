@@ -18,17 +18,27 @@
  */
 package org.apache.brooklyn.ui.proxy;
 
-import com.google.common.base.Optional;
-import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import org.apache.commons.codec.binary.Base64;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
 import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jetty.client.api.ContentProvider;
 import org.eclipse.jetty.client.api.Request;
 import org.eclipse.jetty.client.api.Response;
 import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.http.HttpVersion;
 import org.eclipse.jetty.proxy.ProxyServlet;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
 import org.osgi.service.component.annotations.*;
-import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,9 +48,19 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.List;
 import java.util.Map;
 import java.util.MissingResourceException;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 
 @Component(
         name = "UiProxy",
@@ -52,41 +72,399 @@ import java.util.concurrent.TimeUnit;
 public class UiProxy extends ProxyServlet {
 
     private static final Logger LOG = LoggerFactory.getLogger(UiProxy.class);
-    private static final String SERVICE_PID = "service.pid";
-    private static final String ALIAS = "alias";
-    private static final String TARGET = "target";
-    private static final String USERNAME = "username";
-    private static final String PASSWORD = "password";
-    private static final String METRICS_TOPIC = "decanter/collect/brooklyn-ui/ui-proxy";
+    private static final String METRICS_INTERVAL = "metrics.interval";
+    private static final String DEFAULT_METRICS_INTERVAL = "60";
+    private static final List<HttpHeader> WEBSOCKET_HEADERS = ImmutableList.of(
+            HttpHeader.AUTHORIZATION, HttpHeader.COOKIE, HttpHeader.ORIGIN, HttpHeader.USER_AGENT, HttpHeader.ACCEPT_LANGUAGE);
+    private static final String RATELIMIT_LIMIT = "RateLimit-Limit";
+    private static final String RATELIMIT_REMAINING = "RateLimit-Remaining";
+    private static final String RATELIMIT_RESET = "RateLimit-Reset";
+    private static final String CORRELATION_ID = "X-Correlation-ID";
+    private static final String SERVER_TIMING = "Server-Timing";
+    private static final Pattern VALID_CORRELATION_ID = Pattern.compile("[A-Za-z0-9._:-]{1,128}");
 
     @Reference
     private EventAdmin eventAdmin;
 
-    private String alias;
-    private String target;
-    private Boolean useAuthentication = Boolean.FALSE;
-    private String authHeader;
-    private String proxyId;
+    private final AtomicReference<UiProxyConfig> config = new AtomicReference<>();
+    private final Set<UiProxyConfig> retired = Sets.newConcurrentHashSet();
+    private volatile boolean draining;
+    private UiProxyMetrics metrics;
+    private volatile WebSocketServletFactory webSocketFactory;
+    private volatile WebSocketClient webSocketClient;
 
     @Override
     protected void service(final HttpServletRequest request,
                            final HttpServletResponse response) throws ServletException, IOException {
-        final Stopwatch sw = Stopwatch.createStarted();
-        super.service(request, response);
-        sw.stop();
-        eventAdmin.postEvent(new Event(METRICS_TOPIC, ImmutableMap.of(
-                "id", proxyId,
-                "type", "ui-proxy::remote-latency",
-                "alias", alias,
-                "target", target,
-                "remote-latency", sw.toString()
-        )));
+        final Boolean admitted = (Boolean) request.getAttribute(ConcurrencyLimiter.ADMISSION);
+        if (admitted != null) {
+            // a queued request, re-dispatched by the concurrency limiter
+            request.removeAttribute(ConcurrencyLimiter.ADMISSION);
+            final ProxyExchange exchange = ProxyExchange.of(request);
+            final ConcurrencyLimiter limiter = exchange.takeLimiter();
+            if (admitted) {
+                exchange.admit(limiter);
+                forward(request, response, exchange);
+            } else {
+                reject(response, exchange, 1);
+            }
+            return;
+        }
+        // a waiter re-dispatched by its flight carries the exchange it was parked with
+        final ProxyExchange parked = request.getAttribute(RequestCoalescer.BYPASS) == null ? null : ProxyExchange.of(request);
+        if (draining) {
+            if (parked != null) {
+                parked.complete();
+            }
+            response.setHeader(HttpHeader.RETRY_AFTER.asString(), "1");
+            response.sendError(HttpStatus.SERVICE_UNAVAILABLE_503, "Proxy is shutting down");
+            metrics.increment("status." + HttpStatus.SERVICE_UNAVAILABLE_503);
+            return;
+        }
+        // the configuration is read once, here, and every feature below comes from the same snapshot
+        final ProxyExchange exchange = ProxyExchange.begin(request, parked == null ? config.get() : parked.getConfig());
+        final UiProxyConfig current = exchange.getConfig();
+        if (parked != null) {
+            exchange.correlate(parked.getCorrelationId());
+            parked.complete();
+        } else {
+            exchange.correlate(correlationId(request));
+        }
+        response.setHeader(CORRELATION_ID, exchange.getCorrelationId());
+        if (parked == null) {
+            metrics.increment("requests");
+            if (request.getContentLengthLong() > 0) {
+                metrics.add("bytes.in", request.getContentLengthLong());
+            }
+            final RateLimiter limiter = current.getRateLimiter();
+            if (limiter != null && !rateLimit(limiter, request, response, exchange)) {
+                return;
+            }
+        }
+        final WebSocketServletFactory factory = webSocketFactory;
+        if (factory != null && factory.isUpgradeRequest(request, response)) {
+            if (factory.acceptWebSocket(request, response)) {
+                // the relay completes the exchange when the WebSocket closes
+                return;
+            }
+            if (response.isCommitted()) {
+                // refused, for the stream cap or in the handshake
+                exchange.closeStream();
+                exchange.complete();
+                return;
+            }
+            exchange.closeStream();
+            exchange.stream(null);
+        }
+        if (isEventStream(request)) {
+            // never cached, shared or queued, as it stays open for as long as the target keeps sending
+            final ProxyStreams.Stream stream = current.getStreams().tryOpen("event-stream", request.getRequestURI());
+            if (stream == null) {
+                reject(response, exchange, 1);
+                return;
+            }
+            exchange.stream(stream);
+            forward(request, response, exchange);
+            return;
+        }
+        String cacheUrl = null;
+        int captureBytes = 0;
+        final ResponseCache cache = current.getResponseCache();
+        if (cache != null && cache.isCacheable(request)) {
+            final String url = targetUrl(current, current.getBackendPool().getPrimary(), request);
+            final ResponseCache.Entry entry = cache.get(url, request);
+            if (entry != null) {
+                cache.write(entry, request, response, current.getResponseCompressor());
+                exchange.complete();
+                metrics.increment("status." + response.getStatus());
+                return;
+            }
+            cacheUrl = url;
+            captureBytes = cache.getMaxEntryBytes();
+        }
+        final RequestCoalescer coalescer = current.getCoalescer();
+        if (coalescer != null && coalescer.isCoalescable(request)) {
+            final RequestCoalescer.Flight flight = coalescer.join(
+                    targetUrl(current, current.getBackendPool().getPrimary(), request), request);
+            if (flight == null) {
+                // parked until the identical request in flight completes, which completes the exchange with it
+                return;
+            }
+            exchange.lead(flight);
+            captureBytes = Math.max(captureBytes, coalescer.getMaxBytes());
+        }
+        if (captureBytes > 0) {
+            exchange.capture(cacheUrl, new BufferedResponse.Capture(captureBytes));
+        }
+        final UploadSpool spool = current.getUploadSpool();
+        if (spool != null && spool.accepts(request) && !spool(spool, request, response, exchange)) {
+            return;
+        }
+        final ConcurrencyLimiter limiter = current.getConcurrencyLimiter();
+        if (limiter != null) {
+            switch (limiter.acquire(request)) {
+                case QUEUED:
+                    // the permit is stamped when the limiter re-dispatches the request
+                    exchange.admit(limiter);
+                    return;
+                case REJECTED:
+                    reject(response, exchange, 1);
+                    return;
+                default:
+                    exchange.admit(limiter);
+            }
+        }
+        forward(request, response, exchange);
+    }
+
+    /**
+     * Takes a token for the user, setting the {@code RateLimit-*} headers, and answers 429 if there was none.
+     *
+     * @return true if the request may proceed
+     */
+    private boolean rateLimit(final RateLimiter limiter, final HttpServletRequest request,
+                              final HttpServletResponse response, final ProxyExchange exchange) {
+        final RateLimiter.Decision decision = limiter.acquire(RateLimiter.key(request));
+        response.setHeader(RATELIMIT_LIMIT, String.valueOf(limiter.getBurst()));
+        response.setHeader(RATELIMIT_REMAINING, String.valueOf(decision.getRemaining()));
+        response.setHeader(RATELIMIT_RESET, String.valueOf(decision.getResetSeconds()));
+        if (decision.isAllowed()) {
+            return true;
+        }
+        exchange.complete();
+        response.setHeader(HttpHeader.RETRY_AFTER.asString(), String.valueOf(decision.getRetryAfterSeconds()));
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS_429);
+        metrics.increment("status." + HttpStatus.TOO_MANY_REQUESTS_429);
+        return false;
+    }
+
+    /**
+     * Receives the whole request body before any permit is taken or connection opened for it, answering 413 if it
+     * is over the maximum size.
+     *
+     * @return true if the request may proceed
+     */
+    private boolean spool(final UploadSpool spool, final HttpServletRequest request,
+                          final HttpServletResponse response, final ProxyExchange exchange) throws IOException {
+        if (spool.isTooLarge(request.getContentLengthLong())) {
+            exchange.complete();
+            tooLarge(response, spool);
+            return false;
+        }
+        final long start = System.nanoTime();
+        try {
+            final UploadSpool.Body body = spool.spool(request.getInputStream(), request.getContentType());
+            exchange.upload(body);
+            metrics.recordLatency(body.isOnDisk() ? "upload.spool.disk" : "upload.spool.memory", System.nanoTime() - start);
+            return true;
+        } catch (UploadSpool.TooLargeException e) {
+            exchange.complete();
+            tooLarge(response, spool);
+            return false;
+        } catch (IOException e) {
+            exchange.complete();
+            metrics.increment("upload.failures");
+            throw e;
+        }
+    }
+
+    private void tooLarge(final HttpServletResponse response, final UploadSpool spool) throws IOException {
+        // the rest of the body is not read, so the connection is closed rather than reused
+        response.setHeader(HttpHeader.CONNECTION.asString(), "close");
+        response.sendError(HttpStatus.PAYLOAD_TOO_LARGE_413, "Request body is over " + spool.getMaxBytes() + " bytes");
+        metrics.increment("status." + HttpStatus.PAYLOAD_TOO_LARGE_413);
+    }
+
+    @Override
+    protected ContentProvider proxyRequestContent(final HttpServletRequest request, final HttpServletResponse response,
+                                                  final Request proxyRequest) throws IOException {
+        final ProxyExchange exchange = ProxyExchange.of(request);
+        if (exchange != null && exchange.getUpload() != null) {
+            return exchange.getUpload().newContent();
+        }
+        return super.proxyRequestContent(request, response, proxyRequest);
+    }
+
+    /**
+     * Sends an admitted request upstream, unless the circuit is open.
+     */
+    private void forward(final HttpServletRequest request, final HttpServletResponse response,
+                         final ProxyExchange exchange) throws ServletException, IOException {
+        final UiProxyConfig current = exchange.getConfig();
+        final CircuitBreaker breaker = current.getCircuitBreaker();
+        if (breaker != null) {
+            if (!breaker.tryAcquire()) {
+                reject(response, exchange, TimeUnit.MILLISECONDS.toSeconds(breaker.getRetryAfterMillis() + 999));
+                return;
+            }
+            exchange.guard(breaker);
+        }
+        if (current.getRetryBudget() != null) {
+            current.getRetryBudget().onRequest();
+        }
+        // the exchange completes asynchronously, in onProxyResponseSuccess or onProxyResponseFailure
+        try {
+            super.service(request, response);
+        } catch (ServletException | IOException | RuntimeException e) {
+            releaseFlight(exchange, null);
+            onExchangeComplete(exchange, HttpStatus.INTERNAL_SERVER_ERROR_500);
+            throw e;
+        }
+    }
+
+    /**
+     * Refuses a request with 503 without calling upstream. Waiters on its flight are re-dispatched, and each
+     * refused in turn while the proxy stays overloaded.
+     */
+    private void reject(final HttpServletResponse response, final ProxyExchange exchange, final long retryAfterSeconds) {
+        releaseFlight(exchange, null);
+        final ConcurrencyLimiter limiter = exchange.takeLimiter();
+        if (limiter != null) {
+            limiter.cancel();
+        }
+        exchange.closeStream();
+        exchange.complete();
+        response.setHeader(HttpHeader.RETRY_AFTER.asString(), String.valueOf(Math.max(1, retryAfterSeconds)));
+        response.setStatus(HttpStatus.SERVICE_UNAVAILABLE_503);
+        metrics.increment("status." + HttpStatus.SERVICE_UNAVAILABLE_503);
+    }
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        final UiProxyConfig current = config.get();
+        current.getBackendPool().startHealthChecks(getHttpClient());
+        try {
+            final WebSocketServletFactory factory = WebSocketServletFactory.Loader.load(getServletContext(), WebSocketPolicy.newServerPolicy());
+            factory.setCreator(this::createRelay);
+            factory.start();
+            final WebSocketClient client = new WebSocketClient(getHttpClient());
+            client.start();
+            webSocketClient = client;
+            webSocketFactory = factory;
+        } catch (Exception e) {
+            LOG.warn("WebSockets will not be proxied by [{}]: {}", current.getProxyId(), e.toString());
+        }
+    }
+
+    @Override
+    public void destroy() {
+        try {
+            if (webSocketFactory != null) {
+                webSocketFactory.stop();
+            }
+            if (webSocketClient != null) {
+                webSocketClient.stop();
+            }
+        } catch (Exception e) {
+            LOG.debug("Failed to stop WebSocket support of [{}]: {}", config.get().getProxyId(), e.toString());
+        }
+        webSocketFactory = null;
+        webSocketClient = null;
+        super.destroy();
+    }
+
+    /**
+     * Creates the relay for an accepted WebSocket upgrade, opening the same path on the target with the same
+     * credentials the proxy would send over HTTP.
+     */
+    private Object createRelay(final ServletUpgradeRequest req, final ServletUpgradeResponse resp) {
+        final HttpServletRequest request = req.getHttpServletRequest();
+        final UiProxyConfig current = configOf(request);
+        final String url = targetUrl(current, current.getBackendPool().select(), request).replaceFirst("^http", "ws");
+        final ProxyStreams streams = current.getStreams();
+        final ProxyStreams.Stream stream = streams.tryOpen("websocket", url);
+        if (stream == null) {
+            try {
+                resp.sendError(HttpStatus.SERVICE_UNAVAILABLE_503, "Too many open streams");
+            } catch (IOException e) {
+                LOG.debug("Failed to refuse WebSocket: {}", e.toString());
+            }
+            metrics.increment("status." + HttpStatus.SERVICE_UNAVAILABLE_503);
+            return null;
+        }
+        final ClientUpgradeRequest upgrade = new ClientUpgradeRequest();
+        for (final HttpHeader header : WEBSOCKET_HEADERS) {
+            final String value = request.getHeader(header.asString());
+            if (value != null) {
+                upgrade.setHeader(header.asString(), value);
+            }
+        }
+        if (current.isAuthenticated()) {
+            upgrade.setHeader(HttpHeader.AUTHORIZATION.asString(), current.getAuthHeader());
+        }
+        upgrade.setHeader(HttpHeader.X_FORWARDED_FOR.asString(), request.getRemoteAddr());
+        upgrade.setHeader(HttpHeader.X_FORWARDED_PROTO.asString(), request.getScheme());
+        upgrade.setHeader(HttpHeader.X_FORWARDED_HOST.asString(), request.getHeader(HttpHeader.HOST.asString()));
+        final ProxyExchange exchange = ProxyExchange.of(request);
+        if (exchange != null) {
+            upgrade.setHeader(CORRELATION_ID, exchange.getCorrelationId());
+        }
+        if (!req.getSubProtocols().isEmpty()) {
+            // the client needs an answer before the target has been asked, so the client's first choice is assumed
+            upgrade.setSubProtocols(req.getSubProtocols());
+            resp.setAcceptedSubProtocol(req.getSubProtocols().get(0));
+        }
+        metrics.increment("websocket.opened");
+        if (exchange == null) {
+            return new WebSocketRelay(webSocketClient, URI.create(url), upgrade, stream, streams.getIdleTimeoutMillis(), () -> { });
+        }
+        // the exchange stays in flight, and counts towards a drain, for as long as the WebSocket is open
+        exchange.stream(stream);
+        return new WebSocketRelay(webSocketClient, URI.create(url), upgrade, stream, streams.getIdleTimeoutMillis(), exchange::complete);
+    }
+
+    /**
+     * @return The client's correlation ID, if it sent a usable one, otherwise a new one
+     */
+    private static String correlationId(final HttpServletRequest request) {
+        final String id = request.getHeader(CORRELATION_ID);
+        return id != null && VALID_CORRELATION_ID.matcher(id).matches() ? id : UUID.randomUUID().toString();
+    }
+
+    private static boolean isEventStream(final HttpServletRequest request) {
+        return HttpMethod.GET.is(request.getMethod())
+                && StringUtils.contains(request.getHeader(HttpHeader.ACCEPT.asString()), "text/event-stream");
+    }
+
+    @Override
+    protected void sendProxyRequest(final HttpServletRequest clientRequest, final HttpServletResponse proxyResponse,
+                                    final Request proxyRequest) {
+        final ProxyExchange exchange = ProxyExchange.of(clientRequest);
+        if (exchange != null) {
+            exchange.getTiming().sent(proxyRequest);
+        }
+        if (exchange != null && exchange.getStream() != null) {
+            // a stream ends when either side closes it or it goes idle, never for having lasted too long
+            proxyRequest.timeout(0, TimeUnit.MILLISECONDS);
+            proxyRequest.idleTimeout(exchange.getConfig().getStreams().getIdleTimeoutMillis(), TimeUnit.MILLISECONDS);
+        }
+        super.sendProxyRequest(clientRequest, proxyResponse, proxyRequest);
     }
 
     @Override
     protected String rewriteTarget(final HttpServletRequest clientRequest) {
-        final StringBuffer sb = new StringBuffer(target);
-        sb.append(StringUtils.removeStart(clientRequest.getRequestURI(), alias));
+        final UiProxyConfig current = configOf(clientRequest);
+        final BackendPool pool = current.getBackendPool();
+        final Backend backend = pool.select();
+        final ProxyExchange exchange = ProxyExchange.of(clientRequest);
+        if (exchange != null) {
+            exchange.route(pool, backend);
+        }
+        return targetUrl(current, backend, clientRequest);
+    }
+
+    /**
+     * @return The configuration the request started with, or the current one if it has not been through {@link #service}
+     */
+    private UiProxyConfig configOf(final HttpServletRequest clientRequest) {
+        final ProxyExchange exchange = ProxyExchange.of(clientRequest);
+        return exchange == null || exchange.getConfig() == null ? config.get() : exchange.getConfig();
+    }
+
+    private String targetUrl(final UiProxyConfig current, final Backend backend, final HttpServletRequest clientRequest) {
+        final StringBuffer sb = new StringBuffer(backend.getUrl());
+        sb.append(StringUtils.removeStart(clientRequest.getRequestURI(), current.getAlias()));
         if (StringUtils.isNotEmpty(clientRequest.getQueryString())) {
             sb.append("?").append(clientRequest.getQueryString());
         }
@@ -96,63 +474,429 @@ public class UiProxy extends ProxyServlet {
     @Override
     protected void addProxyHeaders(HttpServletRequest clientRequest, Request proxyRequest) {
         super.addProxyHeaders(clientRequest, proxyRequest);
-        if (useAuthentication) {
+        final UiProxyConfig current = configOf(clientRequest);
+        if (current.isAuthenticated()) {
             proxyRequest.getHeaders().remove(HttpHeader.AUTHORIZATION);
-            proxyRequest.header(HttpHeader.AUTHORIZATION, authHeader);
+            proxyRequest.header(HttpHeader.AUTHORIZATION, current.getAuthHeader());
+        }
+        final ProxyExchange exchange = ProxyExchange.of(clientRequest);
+        if (exchange != null) {
+            proxyRequest.getHeaders().remove(CORRELATION_ID);
+            proxyRequest.header(CORRELATION_ID, exchange.getCorrelationId());
         }
     }
 
+    // the client request and response may be recycled once super completes them, so anything needing them is done first
+
     @Override
     protected void onProxyResponseSuccess(final HttpServletRequest clientRequest,
                                           final HttpServletResponse proxyResponse, final Response serverResponse) {
+        final ProxyExchange exchange = ProxyExchange.of(clientRequest);
+        final byte[] tail = exchange == null || exchange.getRewrite() == null ? null : exchange.getRewrite().finish();
+        if (tail != null && exchange.getCapture() != null) {
+            exchange.getCapture().write(tail, 0, tail.length);
+        }
+        final byte[] body = exchange == null || exchange.getCapture() == null ? null : exchange.getCapture().toByteArray();
+        final BufferedResponse buffered = body == null ? null : BufferedResponse.of(serverResponse, body, proxyResponse,
+                (name, value) -> filterServerResponseHeader(clientRequest, serverResponse, name, value));
+        final UiProxyConfig current = configOf(clientRequest);
+        final ResponseCache cache = current.getResponseCache();
+        if (buffered != null && exchange.getCaptureUrl() != null && cache != null) {
+            cache.put(exchange.getCaptureUrl(), clientRequest, buffered, !current.isAuthenticated());
+        }
+        releaseFlight(exchange, buffered);
+        final ResponseCompressor.Stream compression = exchange == null ? null : exchange.getCompression();
+        if (tail != null || compression != null) {
+            try {
+                // the rewriter's held-back bytes go through the compressor ahead of its trailer
+                if (tail != null) {
+                    proxyResponse.getOutputStream().write(compression == null ? tail : compression.write(tail, 0, tail.length));
+                }
+                if (compression != null) {
+                    proxyResponse.getOutputStream().write(compression.finish());
+                }
+            } catch (IOException e) {
+                LOG.debug("Failed to write end of response: {}", e.toString());
+            }
+        }
         super.onProxyResponseSuccess(clientRequest, proxyResponse, serverResponse);
-        eventAdmin.postEvent(new Event(METRICS_TOPIC, ImmutableMap.of(
-                "id", proxyId,
-                "type", "ui-proxy::response",
-                "alias", alias,
-                "target", target,
-                "status", serverResponse.getStatus()
-        )));
+        onExchangeComplete(exchange, serverResponse.getStatus());
+    }
+
+    @Override
+    protected void onProxyResponseFailure(final HttpServletRequest clientRequest, final HttpServletResponse proxyResponse,
+                                          final Response serverResponse, final Throwable failure) {
+        final ProxyExchange exchange = ProxyExchange.of(clientRequest);
+        if (retry(clientRequest, proxyResponse, failure, exchange)) {
+            return;
+        }
+        releaseFlight(exchange, null);
+        if (exchange != null && exchange.getCompression() != null) {
+            exchange.getCompression().close();
+        }
+        final int status = ProxyExchange.failureStatus(proxyResponse, serverResponse, failure);
+        super.onProxyResponseFailure(clientRequest, proxyResponse, serverResponse, failure);
+        metrics.increment("failures");
+        onExchangeComplete(exchange, status);
+    }
+
+    /**
+     * Sends the request again, to a fresh choice of backend, if its method is one retried, it has no body or a
+     * spooled one to replay, it never reached the target, and the retry budget and circuit breaker allow.
+     *
+     * @return true if the request was re-sent and this failure must not be answered
+     */
+    private boolean retry(final HttpServletRequest clientRequest, final HttpServletResponse proxyResponse,
+                          final Throwable failure, final ProxyExchange exchange) {
+        final RetryBudget budget = exchange == null ? null : exchange.getConfig().getRetryBudget();
+        if (budget == null || exchange == null || exchange.getRetries() >= budget.getMaxRetries()
+                || proxyResponse.isCommitted() || !budget.isRetryable(clientRequest.getMethod())
+                || (hasContent(clientRequest) && exchange.getUpload() == null) || !isConnectFailure(failure) || !budget.tryWithdraw()) {
+            return false;
+        }
+        // every failed attempt counts against the target, and each new one needs the breaker's permission
+        final CircuitBreaker breaker = exchange.getCircuitBreaker();
+        if (breaker != null) {
+            breaker.onResult(exchange.elapsedNanos(), true);
+            if (!breaker.tryAcquire()) {
+                exchange.guard(null);
+                return false;
+            }
+        }
+        final int attempt = exchange.retry();
+        metrics.increment("retries");
+        LOG.debug("Retrying {} {} [{}] after connect failure (attempt {}): {}", clientRequest.getMethod(),
+                clientRequest.getRequestURI(), exchange.getCorrelationId(), attempt, failure.toString());
+        try {
+            final Request proxyRequest = getHttpClient().newRequest(rewriteTarget(clientRequest))
+                    .method(clientRequest.getMethod())
+                    .version(HttpVersion.fromString(clientRequest.getProtocol()));
+            copyRequestHeaders(clientRequest, proxyRequest);
+            addProxyHeaders(clientRequest, proxyRequest);
+            if (exchange.getUpload() != null) {
+                proxyRequest.content(exchange.getUpload().newContent());
+            }
+            proxyRequest.timeout(getTimeout(), TimeUnit.MILLISECONDS);
+            sendProxyRequest(clientRequest, proxyResponse, proxyRequest);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Retry of {} failed to start: {}", clientRequest.getRequestURI(), e.toString());
+            return false;
+        }
+    }
+
+    private static boolean isConnectFailure(final Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            // the Jetty client reports a connect timeout as SocketTimeoutException, and an idle timeout as TimeoutException
+            if (t instanceof ConnectException || t instanceof NoRouteToHostException
+                    || t instanceof UnknownHostException || t instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected void onResponseContent(final HttpServletRequest request, final HttpServletResponse response,
+                                     final Response proxyResponse, final byte[] buffer, final int offset,
+                                     final int length, final Callback callback) {
+        metrics.add("bytes.out", length);
+        final ProxyExchange exchange = ProxyExchange.of(request);
+        if (exchange == null) {
+            super.onResponseContent(request, response, proxyResponse, buffer, offset, length, callback);
+            return;
+        }
+        byte[] data = buffer;
+        int dataOffset = offset;
+        int dataLength = length;
+        if (exchange.getRewrite() != null) {
+            data = exchange.getRewrite().write(data, dataOffset, dataLength);
+            dataOffset = 0;
+            dataLength = data.length;
+        }
+        if (exchange.getCapture() != null) {
+            exchange.getCapture().write(data, dataOffset, dataLength);
+        }
+        if (exchange.getCompression() != null) {
+            data = exchange.getCompression().write(data, dataOffset, dataLength);
+            dataOffset = 0;
+            dataLength = data.length;
+        }
+        if (exchange.getStream() != null) {
+            exchange.getStream().addOut(length);
+            // each event is flushed as it arrives, rather than waiting for the output buffer to fill
+            try {
+                response.getOutputStream().write(data, dataOffset, dataLength);
+                response.flushBuffer();
+                callback.succeeded();
+            } catch (Throwable x) {
+                callback.failed(x);
+            }
+            return;
+        }
+        super.onResponseContent(request, response, proxyResponse, data, dataOffset, dataLength, callback);
+    }
+
+    @Override
+    protected void onServerResponseHeaders(final HttpServletRequest clientRequest, final HttpServletResponse proxyResponse,
+                                           final Response serverResponse) {
+        super.onServerResponseHeaders(clientRequest, proxyResponse, serverResponse);
+        final ProxyExchange exchange = ProxyExchange.of(clientRequest);
+        if (exchange == null) {
+            return;
+        }
+        final UiProxyConfig current = exchange.getConfig();
+        if (current.isServerTiming()) {
+            // the body is still to come, so its transfer time is only in the metrics
+            proxyResponse.addHeader(SERVER_TIMING, exchange.getTiming().toServerTiming());
+        }
+        final UrlRewriter rewriter = current.getUrlRewriter();
+        if (rewriter != null && rewriter.shouldRewrite(serverResponse)) {
+            proxyResponse.setHeader(HttpHeader.CONTENT_LENGTH.asString(), null);
+            weakenETag(proxyResponse);
+            exchange.rewrite(rewriter.newStream());
+        }
+        final ResponseCompressor compressor = current.getResponseCompressor();
+        if (compressor == null || !compressor.shouldCompress(clientRequest, serverResponse)) {
+            return;
+        }
+        proxyResponse.setHeader(HttpHeader.CONTENT_LENGTH.asString(), null);
+        proxyResponse.setHeader(HttpHeader.CONTENT_ENCODING.asString(), "gzip");
+        proxyResponse.addHeader(HttpHeader.VARY.asString(), HttpHeader.ACCEPT_ENCODING.asString());
+        weakenETag(proxyResponse);
+        exchange.compress(compressor.newStream());
+    }
+
+    /**
+     * Marks the entity tag weak, as the body sent is no longer byte-for-byte the entity upstream tagged.
+     */
+    private static void weakenETag(final HttpServletResponse proxyResponse) {
+        final String etag = proxyResponse.getHeader(HttpHeader.ETAG.asString());
+        if (etag != null && etag.startsWith("\"")) {
+            proxyResponse.setHeader(HttpHeader.ETAG.asString(), "W/" + etag);
+        }
+    }
+
+    @Override
+    protected String filterServerResponseHeader(final HttpServletRequest clientRequest, final Response serverResponse,
+                                                final String headerName, final String headerValue) {
+        if (CORRELATION_ID.equalsIgnoreCase(headerName)) {
+            // the client already has the proxy's, which the target was sent
+            return null;
+        }
+        final UrlRewriter rewriter = configOf(clientRequest).getUrlRewriter();
+        if (rewriter != null && headerValue != null && (HttpHeader.LOCATION.is(headerName) || HttpHeader.CONTENT_LOCATION.is(headerName))) {
+            return super.filterServerResponseHeader(clientRequest, serverResponse, headerName, rewriter.rewriteHeader(headerValue));
+        }
+        return super.filterServerResponseHeader(clientRequest, serverResponse, headerName, headerValue);
+    }
+
+    @Override
+    protected void onProxyRewriteFailed(final HttpServletRequest clientRequest, final HttpServletResponse proxyResponse) {
+        final ProxyExchange exchange = ProxyExchange.of(clientRequest);
+        releaseFlight(exchange, null);
+        super.onProxyRewriteFailed(clientRequest, proxyResponse);
+        onExchangeComplete(exchange, HttpStatus.FORBIDDEN_403);
+    }
+
+    private void releaseFlight(final ProxyExchange exchange, final BufferedResponse response) {
+        final RequestCoalescer.Flight flight = exchange == null ? null : exchange.takeFlight();
+        if (flight != null) {
+            flight.complete(response);
+        }
+    }
+
+    private void onExchangeComplete(final ProxyExchange exchange, final int status) {
+        if (exchange == null || !exchange.complete()) {
+            return;
+        }
+        exchange.closeStream();
+        // a stream's duration says nothing about the target's health, so it only counts for success or failure
+        final long nanos = exchange.getStream() == null ? exchange.elapsedNanos() : 0;
+        if (exchange.getCircuitBreaker() != null) {
+            exchange.getCircuitBreaker().onResult(nanos, status >= HttpStatus.INTERNAL_SERVER_ERROR_500);
+        }
+        final ConcurrencyLimiter limiter = exchange.takeLimiter();
+        if (limiter != null) {
+            limiter.release(exchange.admittedNanos(), status >= HttpStatus.INTERNAL_SERVER_ERROR_500);
+        }
+        metrics.increment("status." + status);
+        if (exchange.getStream() == null) {
+            metrics.recordLatency("remote-latency", nanos);
+            recordTiming(exchange.getTiming());
+        }
+        exchange.reportToBackend(status, nanos);
+    }
+
+    private void recordTiming(final RequestTiming timing) {
+        if (!timing.wasSent()) {
+            return;
+        }
+        timing.end();
+        metrics.recordLatency("timing.proxy", timing.getProxyNanos());
+        metrics.recordLatency("timing.connect", timing.getConnectNanos());
+        metrics.recordLatency("timing.ttfb", timing.getFirstByteNanos());
+        metrics.recordLatency("timing.transfer", timing.getTransferNanos());
     }
 
     @Activate
     public void activate(final Map<String, String> properties) {
-        LOG.info("Creating new proxy instance :: [{}]", properties.get(SERVICE_PID));
+        LOG.info("Creating new proxy instance :: [{}]", properties.get(UiProxyConfig.SERVICE_PID));
+        if (metrics == null) {
+            metrics = new UiProxyMetrics(UiProxyConfig.getFromProperties(properties, UiProxyConfig.SERVICE_PID, false, ""));
+        }
+        draining = false;
+        metrics.setEventAdmin(eventAdmin);
         modified(properties);
     }
 
     @Modified
     public void modified(final Map<String, String> properties) {
-        proxyId = getFromProperties(properties, SERVICE_PID, false, "");
-        alias = getFromProperties(properties, ALIAS, true, "");
-        target = getFromProperties(properties, TARGET, true, "");
-
-        if (properties.containsKey(USERNAME) && properties.containsKey(PASSWORD)) {
-            useAuthentication = Boolean.TRUE;
-            authHeader = generateAuthHeader(properties.get(USERNAME), properties.get(PASSWORD));
-        } else {
-            useAuthentication = Boolean.FALSE;
+        final UiProxyConfig next = UiProxyConfig.fromProperties(properties, config.get());
+        metrics.setTags(ImmutableMap.of("id", next.getProxyId(), "alias", next.getAlias(), "target", next.getTarget()));
+        if (getHttpClient() != null) {
+            next.getBackendPool().startHealthChecks(getHttpClient());
+        }
+        // requests already in flight finish with the configuration they started with
+        final UiProxyConfig previous = config.getAndSet(next);
+        if (previous != null) {
+            previous.retire();
+            retired.add(previous);
         }
-        LOG.info("Updating proxy [{}] :: Proxy [{}] -> [{}], Authenticated [{}]", proxyId, alias, target, useAuthentication);
+        retired.removeIf(UiProxyConfig::isReleased);
+        registerGauges(next);
+        metrics.schedule(TimeUnit.SECONDS.toMillis(Long.parseLong(UiProxyConfig.getFromProperties(properties, METRICS_INTERVAL, false, DEFAULT_METRICS_INTERVAL))));
+        LOG.info("Updating proxy [{}] :: {}", next.getProxyId(), next);
     }
 
+    /**
+     * Points the gauges at the features of the configuration now current, dropping those of features now off.
+     */
+    private void registerGauges(final UiProxyConfig current) {
+        metrics.removeGauges("backend.");
+        final List<Backend> backends = current.getBackendPool().getBackends();
+        for (int i = 0; i < backends.size(); i++) {
+            final Backend backend = backends.get(i);
+            metrics.gauge("backend." + i + ".available", () -> backend.isAvailable() ? 1 : 0);
+            metrics.gauge("backend." + i + ".outstanding", backend::getOutstanding);
+            metrics.gauge("backend." + i + ".requests", backend::getRequests);
+            metrics.gauge("backend." + i + ".errors", backend::getErrors);
+            metrics.gauge("backend." + i + ".meanLatency", backend::getMeanLatencyMillis);
+        }
 
-    @Deactivate
-    public void deactivate() {
-        LOG.info("Destroying proxy [{}] :: Proxy [{}] -> [{}], Authenticated [{}]", proxyId, alias, target, useAuthentication);
-        destroy();
-    }
+        metrics.removeGauges("cache.");
+        final ResponseCache cache = current.getResponseCache();
+        if (cache != null) {
+            metrics.gauge("cache.hits", cache::getHits);
+            metrics.gauge("cache.misses", cache::getMisses);
+            metrics.gauge("cache.hitRatio", cache::getHitRatio);
+            metrics.gauge("cache.bytesSaved", cache::getBytesSaved);
+            metrics.gauge("cache.memory.entries", cache::getMemoryEntries);
+            metrics.gauge("cache.disk.bytes", cache::getDiskBytes);
+        }
+
+        metrics.removeGauges("coalesce.");
+        final RequestCoalescer coalescer = current.getCoalescer();
+        if (coalescer != null) {
+            metrics.gauge("coalesce.saved", coalescer::getSaved);
+            metrics.gauge("coalesce.fallbacks", coalescer::getFallbacks);
+            metrics.gauge("coalesce.overflows", coalescer::getOverflows);
+            metrics.gauge("coalesce.inFlight", coalescer::getInFlight);
+        }
+
+        metrics.removeGauges("streams.");
+        final ProxyStreams streams = current.getStreams();
+        metrics.gauge("streams.active", streams::getActive);
+        metrics.gauge("streams.opened", streams::getOpened);
+        metrics.gauge("streams.rejected", streams::getRejected);
+        metrics.gauge("streams.bytesIn", streams::getBytesIn);
+        metrics.gauge("streams.bytesOut", streams::getBytesOut);
 
-    private String getFromProperties(final Map<String, String> properties, final String key, final Boolean required, final String defaultValue) {
-        Optional<String> result = Optional.fromNullable(properties.get(key));
-        if (required && !result.isPresent()) {
-            throw new MissingResourceException("The field [" + key + "] is marked as required", UiProxy.class.getName(), key);
+        metrics.removeGauges("compression.");
+        final ResponseCompressor compressor = current.getResponseCompressor();
+        if (compressor != null) {
+            metrics.gauge("compression.responses", compressor::getResponses);
+            metrics.gauge("compression.bytesIn", compressor::getBytesIn);
+            metrics.gauge("compression.bytesOut", compressor::getBytesOut);
+            metrics.gauge("compression.savedRatio", compressor::getSavedRatio);
+        }
+
+        metrics.removeGauges("rewrite.");
+        final UrlRewriter rewriter = current.getUrlRewriter();
+        if (rewriter != null) {
+            metrics.gauge("rewrite.responses", rewriter::getResponses);
+            metrics.gauge("rewrite.count", rewriter::getRewrites);
+        }
+
+        metrics.removeGauges("upload.");
+        final UploadSpool spool = current.getUploadSpool();
+        if (spool != null) {
+            metrics.gauge("upload.spooledBytes", spool::getSpooledBytes);
+            metrics.gauge("upload.files", spool::getFilesCreated);
+            metrics.gauge("upload.diskBytes", spool::getDiskBytes);
+            metrics.gauge("upload.rejected", spool::getRejected);
+        }
+
+        metrics.removeGauges("ratelimit.");
+        final RateLimiter rateLimiter = current.getRateLimiter();
+        if (rateLimiter != null) {
+            metrics.gauge("ratelimit.limited", rateLimiter::getLimited);
+            metrics.gauge("ratelimit.keys", rateLimiter::getKeys);
+        }
+
+        metrics.removeGauges("concurrency.");
+        final ConcurrencyLimiter concurrencyLimiter = current.getConcurrencyLimiter();
+        if (concurrencyLimiter != null) {
+            metrics.gauge("concurrency.inflight", concurrencyLimiter::getInflight);
+            metrics.gauge("concurrency.limit", concurrencyLimiter::getLimit);
+            metrics.gauge("concurrency.queued", concurrencyLimiter::getQueued);
+            metrics.gauge("concurrency.rejected", concurrencyLimiter::getRejected);
+        }
+
+        metrics.removeGauges("circuit.");
+        final CircuitBreaker breaker = current.getCircuitBreaker();
+        if (breaker != null) {
+            metrics.gauge("circuit.state", () -> breaker.getState().ordinal());
+            metrics.gauge("circuit.rejected", breaker::getRejected);
+        }
+
+        metrics.removeGauges("retry.");
+        final RetryBudget budget = current.getRetryBudget();
+        if (budget != null) {
+            metrics.gauge("retry.tokens", budget::getTokens);
+            metrics.gauge("retry.exhausted", budget::getExhausted);
         }
-        return result.or(defaultValue);
     }
 
-    private String generateAuthHeader(final String username, final String password) {
-        return "Basic " + new String(Base64.encodeBase64((username + ":" + password).getBytes()));
+    /**
+     * Stops taking new requests and waits, up to {@code drain.timeout}, for those in flight to finish before
+     * shutting down.
+     */
+    @Deactivate
+    public void deactivate() {
+        final UiProxyConfig current = config.get();
+        LOG.info("Destroying proxy [{}] :: {}", current.getProxyId(), current);
+        draining = true;
+        final long drainTimeoutMillis = current.getDrainTimeoutMillis();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+        try {
+            for (final UiProxyConfig version : Iterables.concat(retired, ImmutableList.of(current))) {
+                if (!version.awaitDrained(deadline)) {
+                    LOG.warn("Proxy [{}] still has {} requests in flight after {}ms; stopping anyway",
+                            current.getProxyId(), version.getInflight(), drainTimeoutMillis);
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        destroy();
+        metrics.close();
+        current.close();
+        for (final UiProxyConfig version : retired) {
+            version.close();
+        }
+        retired.clear();
     }
 
     private String clean(final String path) {
@@ -169,5 +913,8 @@ public class UiProxy extends ProxyServlet {
 
     public void setEventAdmin(EventAdmin eventAdmin) {
         this.eventAdmin = eventAdmin;
+        if (metrics != null) {
+            metrics.setEventAdmin(eventAdmin);
+        }
     }
 }
@@ -0,0 +1,347 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang3.StringUtils;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * One version of a proxy's configuration: where requests go, the credentials they carry, and the optional features
+ * applied on the way, each built for this version's targets and alias.
+ * <p>
+ * A snapshot never changes. A reconfiguration publishes a new one, and each request reads the snapshot once, when it
+ * starts, and keeps it to the end, so it never sees a mix of old and new. A snapshot counts the requests still using
+ * it; once it has been replaced and the last of them finishes, its backend health checks are stopped, and its response
+ * cache is closed unless a later snapshot kept it.
+ * <p>
+ * Features which keep state across requests, the cache, stream count, limiters, circuit breaker and retry budget, are
+ * carried over from the snapshot replaced whenever their own properties are unchanged, so reconfiguring something else
+ * does not refill a bucket, close an open circuit or forget the streams already open.
+ */
+public class UiProxyConfig {
+
+    static final String SERVICE_PID = "service.pid";
+    static final String ALIAS = "alias";
+    static final String TARGET = "target";
+    static final String USERNAME = "username";
+    static final String PASSWORD = "password";
+    static final String CACHE_PREFIX = "cache.";
+    static final String STREAMS_PREFIX = "streams.";
+    static final String RATE_LIMIT_PREFIX = "ratelimit.";
+    static final String CONCURRENCY_PREFIX = "concurrency.";
+    static final String CIRCUIT_PREFIX = "circuit.";
+    static final String RETRY_PREFIX = "retry.";
+    static final Path CACHE_DIR = Paths.get(System.getProperty("karaf.data", System.getProperty("java.io.tmpdir")), "brooklyn-ui-proxy-cache");
+    static final Path UPLOAD_DIR = Paths.get(System.getProperty("karaf.data", System.getProperty("java.io.tmpdir")), "brooklyn-ui-proxy-uploads");
+
+    private final String proxyId;
+    private final String alias;
+    private final String target;
+    private final String authHeader;
+    private final BackendPool backendPool;
+    private final Features features;
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final AtomicBoolean released = new AtomicBoolean();
+    private volatile boolean retired;
+
+    public UiProxyConfig(final String proxyId, final String alias, final String target, final String authHeader,
+                         final BackendPool backendPool) {
+        this(proxyId, alias, target, authHeader, backendPool, new Features());
+    }
+
+    UiProxyConfig(final String proxyId, final String alias, final String target, final String authHeader,
+                  final BackendPool backendPool, final Features features) {
+        this.proxyId = proxyId;
+        this.alias = alias;
+        this.target = target;
+        this.authHeader = authHeader;
+        this.backendPool = backendPool;
+        this.features = features;
+    }
+
+    public String getProxyId() {
+        return proxyId;
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public boolean isAuthenticated() {
+        return authHeader != null;
+    }
+
+    /**
+     * @return The {@code Authorization} header sent to the target, or null if the proxy does not authenticate
+     */
+    public String getAuthHeader() {
+        return authHeader;
+    }
+
+    public BackendPool getBackendPool() {
+        return backendPool;
+    }
+
+    /**
+     * @return The response cache, or null if caching is off
+     */
+    public ResponseCache getResponseCache() {
+        return features.responseCache;
+    }
+
+    public RequestCoalescer getCoalescer() {
+        return features.coalescer;
+    }
+
+    public ProxyStreams getStreams() {
+        return features.streams;
+    }
+
+    public ResponseCompressor getResponseCompressor() {
+        return features.responseCompressor;
+    }
+
+    public UrlRewriter getUrlRewriter() {
+        return features.urlRewriter;
+    }
+
+    public UploadSpool getUploadSpool() {
+        return features.uploadSpool;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return features.rateLimiter;
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return features.concurrencyLimiter;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return features.circuitBreaker;
+    }
+
+    public RetryBudget getRetryBudget() {
+        return features.retryBudget;
+    }
+
+    /**
+     * @return The {@code cache.*} properties the response cache was built from
+     */
+    Map<String, String> getCacheProperties() {
+        return getProperties(CACHE_PREFIX);
+    }
+
+    /**
+     * @return The properties of the snapshot whose names start with the prefix
+     */
+    Map<String, String> getProperties(final String prefix) {
+        return ImmutableMap.copyOf(Maps.filterKeys(features.properties, key -> key.startsWith(prefix)));
+    }
+
+    public boolean isServerTiming() {
+        return features.serverTiming;
+    }
+
+    public long getDrainTimeoutMillis() {
+        return features.drainTimeoutMillis;
+    }
+
+    void enter() {
+        inflight.incrementAndGet();
+    }
+
+    void exit() {
+        if (inflight.decrementAndGet() <= 0 && retired) {
+            release();
+        }
+    }
+
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    /**
+     * Marks the snapshot as replaced, releasing it now if no request is using it, or else when the last one finishes.
+     */
+    void retire() {
+        retired = true;
+        if (inflight.get() <= 0) {
+            release();
+        }
+    }
+
+    boolean isReleased() {
+        return released.get();
+    }
+
+    /**
+     * Waits for the requests using this snapshot to finish.
+     *
+     * @return Whether they all finished before the deadline
+     */
+    boolean awaitDrained(final long deadlineNanos) throws InterruptedException {
+        while (inflight.get() > 0) {
+            if (System.nanoTime() - deadlineNanos >= 0) {
+                return false;
+            }
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        return true;
+    }
+
+    /**
+     * Releases the snapshot whether or not requests are still using it, when the proxy is shutting down.
+     */
+    void close() {
+        retired = true;
+        release();
+    }
+
+    private void release() {
+        if (released.compareAndSet(false, true)) {
+            backendPool.close();
+            if (features.responseCache != null && features.cacheUsers.decrementAndGet() == 0) {
+                features.responseCache.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Proxy [" + alias + "] -> [" + target + "], Authenticated [" + isAuthenticated() + "]";
+    }
+
+    public static UiProxyConfig fromProperties(final Map<String, String> properties) {
+        return fromProperties(properties, null);
+    }
+
+    /**
+     * @param previous The snapshot being replaced, if any, whose response cache, stream count, limiters, circuit breaker
+     *                 and retry budget are kept, state and all, unless one of their own properties changed
+     */
+    public static UiProxyConfig fromProperties(final Map<String, String> properties, final UiProxyConfig previous) {
+        final String proxyId = getFromProperties(properties, SERVICE_PID, false, "");
+        final String alias = getFromProperties(properties, ALIAS, true, "");
+        final String target = getFromProperties(properties, TARGET, true, "");
+        final String authHeader = properties.containsKey(USERNAME) && properties.containsKey(PASSWORD)
+                ? generateAuthHeader(properties.get(USERNAME), properties.get(PASSWORD)) : null;
+        final BackendPool backendPool = BackendPool.fromProperties(target, properties);
+
+        final Features features = new Features();
+        features.properties = ImmutableMap.copyOf(Maps.filterValues(properties, Objects::nonNull));
+        if (unchanged(features, previous, CACHE_PREFIX)) {
+            features.responseCache = previous.getResponseCache();
+            features.cacheUsers = previous.features.cacheUsers;
+            features.cacheUsers.incrementAndGet();
+        } else {
+            features.responseCache = ResponseCache.fromProperties(proxyId, properties, CACHE_DIR);
+        }
+        features.coalescer = RequestCoalescer.fromProperties(properties);
+        features.streams = reuse(features, previous, STREAMS_PREFIX, UiProxyConfig::getStreams,
+                () -> ProxyStreams.fromProperties(properties));
+        features.responseCompressor = ResponseCompressor.fromProperties(properties);
+        final List<String> targets = new ArrayList<>();
+        for (final Backend backend : backendPool.getBackends()) {
+            targets.add(backend.getUrl());
+        }
+        features.urlRewriter = UrlRewriter.fromProperties(targets, alias, properties);
+        features.uploadSpool = UploadSpool.fromProperties(proxyId, properties, UPLOAD_DIR);
+        features.rateLimiter = reuse(features, previous, RATE_LIMIT_PREFIX, UiProxyConfig::getRateLimiter,
+                () -> RateLimiter.fromProperties(properties));
+        features.concurrencyLimiter = reuse(features, previous, CONCURRENCY_PREFIX, UiProxyConfig::getConcurrencyLimiter,
+                () -> ConcurrencyLimiter.fromProperties(properties));
+        // the breaker is named for the proxy, so is only kept by the same one
+        features.circuitBreaker = reuse(features, previous != null && previous.getProxyId().equals(proxyId) ? previous : null,
+                CIRCUIT_PREFIX, UiProxyConfig::getCircuitBreaker, () -> CircuitBreaker.fromProperties(proxyId, properties));
+        features.retryBudget = reuse(features, previous, RETRY_PREFIX, UiProxyConfig::getRetryBudget,
+                () -> RetryBudget.fromProperties(properties));
+        features.serverTiming = Boolean.parseBoolean(StringUtils.defaultIfBlank(properties.get("timing.header"), "true"));
+        features.drainTimeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(StringUtils.defaultIfBlank(properties.get("drain.timeout"), "30")));
+        return new UiProxyConfig(proxyId, alias, target, authHeader, backendPool, features);
+    }
+
+    private static boolean unchanged(final Features features, final UiProxyConfig previous, final String prefix) {
+        return previous != null && previous.getProperties(prefix).equals(
+                ImmutableMap.copyOf(Maps.filterKeys(features.properties, key -> key.startsWith(prefix))));
+    }
+
+    /**
+     * @return The previous snapshot's feature if none of the properties it was built from have changed, otherwise a
+     *         new one
+     */
+    private static <T> T reuse(final Features features, final UiProxyConfig previous, final String prefix,
+                               final Function<UiProxyConfig, T> feature, final Supplier<T> build) {
+        return unchanged(features, previous, prefix) ? feature.apply(previous) : build.get();
+    }
+
+    static String getFromProperties(final Map<String, String> properties, final String key, final Boolean required, final String defaultValue) {
+        Optional<String> result = Optional.fromNullable(properties.get(key));
+        if (required && !result.isPresent()) {
+            throw new MissingResourceException("The field [" + key + "] is marked as required", UiProxy.class.getName(), key);
+        }
+        return result.or(defaultValue);
+    }
+
+    static String generateAuthHeader(final String username, final String password) {
+        return "Basic " + new String(Base64.encodeBase64((username + ":" + password).getBytes()));
+    }
+
+    /**
+     * The optional features of a snapshot, each null when it is off; only written while the snapshot is built.
+     */
+    static class Features {
+        // everything the snapshot was built from, to tell which features a later one can keep
+        private Map<String, String> properties = ImmutableMap.of();
+        private ResponseCache responseCache;
+        // the snapshots not yet released which share the response cache, the last of which closes it
+        private AtomicInteger cacheUsers = new AtomicInteger(1);
+        private RequestCoalescer coalescer;
+        private ProxyStreams streams = ProxyStreams.fromProperties(ImmutableMap.of());
+        private ResponseCompressor responseCompressor;
+        private UrlRewriter urlRewriter;
+        private UploadSpool uploadSpool;
+        private RateLimiter rateLimiter;
+        private ConcurrencyLimiter concurrencyLimiter;
+        private CircuitBreaker circuitBreaker;
+        private RetryBudget retryBudget;
+        private boolean serverTiming = true;
+        private long drainTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+    }
+}
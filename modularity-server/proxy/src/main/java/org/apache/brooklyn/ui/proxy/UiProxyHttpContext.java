@@ -19,12 +19,19 @@
 package org.apache.brooklyn.ui.proxy;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang3.StringUtils;
 import org.eclipse.jetty.http.HttpHeader;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.event.EventAdmin;
 import org.osgi.service.http.HttpContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,6 +46,7 @@ import javax.servlet.http.HttpSession;
 import java.io.IOException;
 import java.net.URL;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 @Component(
         name = "UiProxyHttpContext",
@@ -49,25 +57,34 @@ import java.util.Map;
 )
 public class UiProxyHttpContext implements HttpContext {
     private static final Logger LOG = LoggerFactory.getLogger(UiProxyHttpContext.class);
+    private static final String SUBJECT_ATTRIBUTE = "javax.security.auth.subject";
+    private static final String CACHE_SIZE = "ui.proxy.security.cache.size";
+    private static final String CACHE_TTL = "ui.proxy.security.cache.ttl";
+    private static final String CACHE_FAILURE_TTL = "ui.proxy.security.cache.failure.ttl";
+    private static final String CACHE_FAILURE_MAX = "ui.proxy.security.cache.failure.max";
+    private static final String METRICS_INTERVAL = "metrics.interval";
+
     private String realm = "webconsole";
+    private volatile CredentialCache credentialCache = new CredentialCache(1000, 60, 60, 5);
+    private volatile EventAdmin eventAdmin;
+    private volatile UiProxyMetrics metrics;
 
     @Override
     public boolean handleSecurity(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
-        final HttpSession session = request.getSession(true);
-        LOG.info("Handling security for session [{}] in realm [{}]", session.getId(), realm);
+        LOG.trace("Handling security for request [{}] in realm [{}]", request.getRequestURI(), realm);
         final Optional<String[]> credentials = readCredentials(request.getHeader(HttpHeader.AUTHORIZATION.name()));
         if (credentials.isPresent()) {
-            try {
-                final LoginContext login = new LoginContext(realm, new UsernamePasswordCallbackHandler(credentials.get()[0], credentials.get()[1]));
-                login.login();
+            final Subject subject = authenticate(credentials.get()[0], credentials.get()[1], request.getRemoteAddr());
+            if (subject != null) {
                 request.setAttribute(HttpContext.AUTHENTICATION_TYPE, "Basic");
                 request.setAttribute(HttpContext.REMOTE_USER, credentials.get()[0]);
-                final Subject subject = login.getSubject();
-                subject.setReadOnly();
-                session.setAttribute("javax.security.auth.subject", subject);
+                request.setAttribute(SUBJECT_ATTRIBUTE, subject);
+                // Basic clients authenticate every request, so a session is never created just to hold the subject
+                final HttpSession session = request.getSession(false);
+                if (session != null && session.getAttribute(SUBJECT_ATTRIBUTE) != subject) {
+                    session.setAttribute(SUBJECT_ATTRIBUTE, subject);
+                }
                 return true;
-            } catch (LoginException e) {
-                LOG.warn("Login attempt failed for user [{}] on session [{}]", credentials.get()[0], session.getId());
             }
         }
         response.setHeader("WWW-Authenticate", "Basic realm=\"" + realm + "\"");
@@ -76,6 +93,39 @@ public class UiProxyHttpContext implements HttpContext {
         return false;
     }
 
+    /**
+     * @return The read-only subject for the credentials, from the cache or a fresh login, or null if login failed
+     */
+    private Subject authenticate(final String username, final String password, final String client) {
+        final CredentialCache cache = credentialCache;
+        final String key = cache.key(username, password);
+        final Subject cached = cache.getSuccess(key);
+        if (cached != null) {
+            return cached;
+        }
+        final String failureKey = cache.failureKey(username, client);
+        if (cache.isLockedOut(failureKey)) {
+            LOG.debug("Rejecting login for user [{}] from [{}] without an attempt, after repeated failures", username, client);
+            return null;
+        }
+        try {
+            final LoginContext login = new LoginContext(realm, new UsernamePasswordCallbackHandler(username, password));
+            login.login();
+            final Subject subject = login.getSubject();
+            subject.setReadOnly();
+            cache.putSuccess(key, failureKey, subject);
+            return subject;
+        } catch (LoginException e) {
+            LOG.warn("Login attempt failed for user [{}] from [{}] in realm [{}]", username, client, realm);
+            cache.putFailure(failureKey);
+            return null;
+        }
+    }
+
+    public Map<String, Long> getCredentialCacheStats() {
+        return credentialCache.getStats();
+    }
+
     private Optional<String[]> readCredentials(String header) {
         if (StringUtils.startsWith(header, "Basic")) {
             final String credentials = new String(Base64.decodeBase64(StringUtils.substringAfter(header, "Basic").trim()));
@@ -97,14 +147,58 @@ public class UiProxyHttpContext implements HttpContext {
 
     @Activate
     public void activate(final Map<String, String> properties) {
+        if (metrics == null) {
+            metrics = new UiProxyMetrics("security");
+        }
+        metrics.setEventAdmin(eventAdmin);
         modified(properties);
     }
 
+    @Modified
     public void modified(final Map<String, String> properties) {
         final String realmFromProperties = properties.get("ui.proxy.security.realm");
         if (StringUtils.isNotEmpty(realmFromProperties)) {
             realm = realmFromProperties;
         }
+        // a new cache also drops any results from the previous realm or settings
+        credentialCache = new CredentialCache(
+                getLong(properties, CACHE_SIZE, 1000),
+                getLong(properties, CACHE_TTL, 60),
+                getLong(properties, CACHE_FAILURE_TTL, 60),
+                (int) getLong(properties, CACHE_FAILURE_MAX, 5));
+        metrics.setTags(ImmutableMap.of("id", "security", "realm", realm));
+        metrics.removeGauges("credentials.");
+        for (final String stat : credentialCache.getStats().keySet()) {
+            metrics.gauge("credentials." + stat, () -> credentialCache.getStats().get(stat));
+        }
+        metrics.schedule(TimeUnit.SECONDS.toMillis(getLong(properties, METRICS_INTERVAL, 60)));
+    }
+
+    @Deactivate
+    public void deactivate() {
+        LOG.debug("Credential cache for realm [{}] :: {}", realm, credentialCache.getStats());
+        metrics.close();
+        metrics = null;
+        credentialCache.clear();
+    }
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC, unbind = "unsetEventAdmin")
+    public void setEventAdmin(final EventAdmin eventAdmin) {
+        this.eventAdmin = eventAdmin;
+        if (metrics != null) {
+            metrics.setEventAdmin(eventAdmin);
+        }
+    }
+
+    public void unsetEventAdmin(final EventAdmin eventAdmin) {
+        if (this.eventAdmin == eventAdmin) {
+            setEventAdmin(null);
+        }
+    }
+
+    private long getLong(final Map<String, String> properties, final String key, final long defaultValue) {
+        final Object value = properties.get(key);
+        return value == null ? defaultValue : Long.parseLong(value.toString());
     }
 
 
@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Per-proxy metrics aggregator. Request threads only ever update {@link LongAdder}s and {@link LatencyHistogram}s;
+ * once per interval everything recorded since the previous flush is summarised into a single event and published
+ * to {@link #TOPIC}.
+ * <p>
+ * Every instance flushes and publishes on one daemon thread shared by all of them, so a proxy costs no threads of
+ * its own for metrics. Summaries are handed to the {@link EventAdmin} through a small bounded queue, and posted
+ * asynchronously, so an absent EventAdmin never holds up a flush. When that queue is full the summary is dropped and
+ * counted, so metrics can never hold up the proxy.
+ */
+public class UiProxyMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UiProxyMetrics.class);
+    static final String TOPIC = "decanter/collect/brooklyn-ui/ui-proxy";
+    static final String TYPE = "ui-proxy::summary";
+    private static final int QUEUE_CAPACITY = 16;
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("brooklyn-ui-proxy-metrics-%d")
+            .setDaemon(true)
+            .build());
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+    private final BlockingQueue<Event> pending = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder dropped = new LongAdder();
+    private final String proxyId;
+
+    private volatile EventAdmin eventAdmin;
+    private volatile Map<String, Object> tags = ImmutableMap.of();
+    private volatile long intervalMillis;
+    private ScheduledFuture<?> flushTask;
+    private boolean closed;
+
+    public UiProxyMetrics(final String proxyId) {
+        this.proxyId = proxyId;
+    }
+
+    public void increment(final String name) {
+        add(name, 1);
+    }
+
+    public void add(final String name, final long value) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(value);
+    }
+
+    public void recordLatency(final String name, final long nanos) {
+        histograms.computeIfAbsent(name, k -> new LatencyHistogram()).record(nanos);
+    }
+
+    /**
+     * Registers (or replaces) a gauge, sampled at each flush.
+     */
+    public void gauge(final String name, final Supplier<? extends Number> supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public void removeGauges(final String prefix) {
+        gauges.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    public void setEventAdmin(final EventAdmin eventAdmin) {
+        this.eventAdmin = eventAdmin;
+        if (eventAdmin != null && !pending.isEmpty()) {
+            publishLater();
+        }
+    }
+
+    /**
+     * @param tags Properties added to every published summary, e.g. the proxy id, alias and target
+     */
+    public void setTags(final Map<String, Object> tags) {
+        this.tags = ImmutableMap.copyOf(tags);
+    }
+
+    public synchronized void schedule(final long intervalMillis) {
+        if (closed || flushTask != null && this.intervalMillis == intervalMillis) {
+            return;
+        }
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        this.intervalMillis = intervalMillis;
+        flushTask = SCHEDULER.scheduleAtFixedRate(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the periodic flush, after one last summary of what was recorded since the previous one.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        SCHEDULER.execute(this::flush);
+    }
+
+    void flush() {
+        try {
+            final Map<String, Object> summary = snapshotAndReset();
+            // summaries dropped since the last one queued, like every other count; only flush changes it
+            final long droppedSince = dropped.sum();
+            summary.put("metrics.dropped", droppedSince);
+            if (pending.offer(new Event(TOPIC, summary))) {
+                dropped.add(-droppedSince);
+                publishLater();
+            } else {
+                dropped.increment();
+            }
+        } catch (Exception e) {
+            LOG.warn("Failed to summarise ui-proxy metrics for [{}]: {}", proxyId, e.toString());
+            LOG.debug("Trace for failure summarising ui-proxy metrics", e);
+        }
+    }
+
+    private void publishLater() {
+        SCHEDULER.execute(this::publishPending);
+    }
+
+    /**
+     * Posts the queued summaries in order, leaving them queued while there is no EventAdmin.
+     */
+    void publishPending() {
+        final EventAdmin admin = eventAdmin;
+        if (admin == null) {
+            return;
+        }
+        try {
+            Event event;
+            while ((event = pending.peek()) != null) {
+                admin.postEvent(event);
+                pending.poll();
+            }
+        } catch (Exception e) {
+            LOG.warn("Failed to publish ui-proxy metrics for [{}]: {}", proxyId, e.toString());
+            LOG.debug("Trace for failure publishing ui-proxy metrics", e);
+        }
+    }
+
+    Map<String, Object> snapshotAndReset() {
+        final Map<String, Object> summary = new LinkedHashMap<>(tags);
+        summary.put("type", TYPE);
+        summary.put("interval", intervalMillis);
+        counters.forEach((name, adder) -> summary.put(name, adder.sumThenReset()));
+        histograms.forEach((name, histogram) -> {
+            final LatencyHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+            summary.put(name + ".count", snapshot.getCount());
+            summary.put(name + ".mean", snapshot.getMeanMillis());
+            summary.put(name + ".p50", snapshot.getPercentileMillis(0.50));
+            summary.put(name + ".p95", snapshot.getPercentileMillis(0.95));
+            summary.put(name + ".p99", snapshot.getPercentileMillis(0.99));
+            summary.put(name + ".max", snapshot.getMaxMillis());
+        });
+        gauges.forEach((name, supplier) -> {
+            try {
+                final Number value = supplier.get();
+                if (value != null) {
+                    summary.put(name, value);
+                }
+            } catch (Exception e) {
+                LOG.trace("Gauge [{}] failed: {}", name, e.toString());
+            }
+        });
+        return summary;
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.http.HttpClientTransportOverHTTP;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.proxy.ProxyServlet;
+import org.osgi.service.component.annotations.*;
+import org.osgi.service.event.EventAdmin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One proxy servlet serving many routes, as an alternative to a {@link UiProxy} per target.
+ * <p>
+ * Routes are declared on a single PID as {@code route.<name>.prefix}, {@code route.<name>.target} and optionally
+ * {@code route.<name>.username} and {@code route.<name>.password}, with prefixes relative to the servlet's
+ * {@code alias}. The route for each request is the longest matching prefix. All routes share one {@link HttpClient},
+ * created as {@link ProxyServlet} creates it and then tuned with the {@code client.*} properties, and one thread for
+ * all their health checks.
+ * <p>
+ * Each request keeps the routes it started with. Routes replaced by a reconfiguration stop their health checks once
+ * the last request using them finishes.
+ */
+@Component(
+        name = "UiRoutingProxy",
+        configurationPid = "org.apache.brooklyn.ui.proxy.router",
+        configurationPolicy = ConfigurationPolicy.REQUIRE,
+        service = Servlet.class,
+        property = {"httpContext.id:String=proxy-context"}
+)
+public class UiRoutingProxy extends ProxyServlet {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UiRoutingProxy.class);
+    private static final String ROUTE_PREFIX = "route.";
+    private static final String METRICS_INTERVAL = "metrics.interval";
+    private static final String DEFAULT_METRICS_INTERVAL = "60";
+
+    @Reference
+    private EventAdmin eventAdmin;
+
+    private Map<String, String> clientProperties = ImmutableMap.of();
+    private UiProxyMetrics metrics;
+    private volatile Routing routing = new Routing("", "", new RouteTrie<>());
+    private final Set<Routing> retired = Sets.newConcurrentHashSet();
+    private ScheduledExecutorService healthChecker;
+
+    @Override
+    protected void service(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        ProxyExchange.begin(request, routing);
+        metrics.increment("requests");
+        super.service(request, response);
+    }
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        startHealthChecks(routing.routes);
+    }
+
+    @Override
+    protected HttpClient newHttpClient() {
+        return new HttpClient(new HttpClientTransportOverHTTP(intProperty(clientProperties, "client.selectors", 1)), null);
+    }
+
+    @Override
+    protected HttpClient createHttpClient() throws ServletException {
+        final HttpClient client = super.createHttpClient();
+        // only settings read when a destination or connection is created, so they still apply to the started client
+        final Map<String, String> properties = clientProperties;
+        client.setMaxConnectionsPerDestination(intProperty(properties, "client.maxConnectionsPerDestination", 64));
+        client.setMaxRequestsQueuedPerDestination(intProperty(properties, "client.maxRequestsQueuedPerDestination", 1024));
+        client.setIdleTimeout(intProperty(properties, "client.idleTimeout", 30000));
+        client.setConnectTimeout(intProperty(properties, "client.connectTimeout", 5000));
+        setTimeout(intProperty(properties, "client.timeout", 60000));
+        return client;
+    }
+
+    @Override
+    protected String rewriteTarget(final HttpServletRequest clientRequest) {
+        // the alias and routes are read together, so a reconfiguration never pairs one version's alias with another's routes
+        final ProxyExchange exchange = ProxyExchange.of(clientRequest);
+        final Routing current = exchange == null || exchange.getRouting() == null ? routing : exchange.getRouting();
+        final RouteTrie.Match<Route> match = current.match(clientRequest);
+        if (match == null) {
+            return null;
+        }
+        final Route route = match.getValue();
+        final Backend backend = route.backendPool.select();
+        if (exchange != null) {
+            exchange.route(route.backendPool, backend);
+        }
+        clientRequest.setAttribute(Route.class.getName(), route);
+        metrics.increment("route." + route.name + ".requests");
+        return current.targetUrl(clientRequest, match, backend);
+    }
+
+    @Override
+    protected void onProxyRewriteFailed(final HttpServletRequest clientRequest, final HttpServletResponse proxyResponse) {
+        final ProxyExchange exchange = ProxyExchange.of(clientRequest);
+        sendProxyResponseError(clientRequest, proxyResponse, HttpStatus.NOT_FOUND_404);
+        onExchangeComplete(exchange, HttpStatus.NOT_FOUND_404);
+    }
+
+    @Override
+    protected void addProxyHeaders(final HttpServletRequest clientRequest, final Request proxyRequest) {
+        super.addProxyHeaders(clientRequest, proxyRequest);
+        final Route route = (Route) clientRequest.getAttribute(Route.class.getName());
+        if (route != null && route.authHeader != null) {
+            proxyRequest.getHeaders().remove(HttpHeader.AUTHORIZATION);
+            proxyRequest.header(HttpHeader.AUTHORIZATION, route.authHeader);
+        }
+    }
+
+    @Override
+    protected void onProxyResponseSuccess(final HttpServletRequest clientRequest, final HttpServletResponse proxyResponse,
+                                          final Response serverResponse) {
+        final ProxyExchange exchange = ProxyExchange.of(clientRequest);
+        super.onProxyResponseSuccess(clientRequest, proxyResponse, serverResponse);
+        onExchangeComplete(exchange, serverResponse.getStatus());
+    }
+
+    @Override
+    protected void onProxyResponseFailure(final HttpServletRequest clientRequest, final HttpServletResponse proxyResponse,
+                                          final Response serverResponse, final Throwable failure) {
+        final ProxyExchange exchange = ProxyExchange.of(clientRequest);
+        final int status = ProxyExchange.failureStatus(proxyResponse, serverResponse, failure);
+        super.onProxyResponseFailure(clientRequest, proxyResponse, serverResponse, failure);
+        metrics.increment("failures");
+        onExchangeComplete(exchange, status);
+    }
+
+    private void onExchangeComplete(final ProxyExchange exchange, final int status) {
+        if (exchange == null || !exchange.complete()) {
+            return;
+        }
+        final long nanos = exchange.elapsedNanos();
+        metrics.increment("status." + status);
+        metrics.recordLatency("remote-latency", nanos);
+        exchange.reportToBackend(status, nanos);
+    }
+
+    @Activate
+    public void activate(final Map<String, String> properties) {
+        LOG.info("Creating new routing proxy instance :: [{}]", properties.get(UiProxyConfig.SERVICE_PID));
+        if (metrics == null) {
+            metrics = new UiProxyMetrics(UiProxyConfig.getFromProperties(properties, UiProxyConfig.SERVICE_PID, false, ""));
+        }
+        metrics.setEventAdmin(eventAdmin);
+        // the shared client is created once, in init, so changes to client.* apply when the component is restarted
+        clientProperties = ImmutableMap.copyOf(properties);
+        modified(properties);
+    }
+
+    @Modified
+    public void modified(final Map<String, String> properties) {
+        final Routing next = Routing.fromProperties(properties);
+        if (getHttpClient() != null) {
+            startHealthChecks(next.routes);
+        }
+        // requests already in flight finish with the routes they started with
+        final Routing previous = routing;
+        routing = next;
+        previous.retire();
+        retired.add(previous);
+        retired.removeIf(Routing::isReleased);
+        for (final Route route : next.routes.values()) {
+            LOG.info("Routing proxy [{}] :: [{}{}] -> [{}], Authenticated [{}]", next.proxyId, next.alias, route.prefix, route.target, route.authHeader != null);
+        }
+        metrics.setTags(ImmutableMap.of("id", next.proxyId, "alias", next.alias, "routes", String.valueOf(next.routes.size())));
+        metrics.schedule(TimeUnit.SECONDS.toMillis(Long.parseLong(UiProxyConfig.getFromProperties(properties, METRICS_INTERVAL, false, DEFAULT_METRICS_INTERVAL))));
+    }
+
+    @Deactivate
+    public void deactivate() {
+        final Routing current = routing;
+        LOG.info("Destroying routing proxy [{}] :: [{}]", current.proxyId, current.alias);
+        destroy();
+        metrics.close();
+        current.close();
+        for (final Routing version : retired) {
+            version.close();
+        }
+        retired.clear();
+        synchronized (this) {
+            if (healthChecker != null) {
+                healthChecker.shutdownNow();
+                healthChecker = null;
+            }
+        }
+    }
+
+    private synchronized void startHealthChecks(final RouteTrie<Route> trie) {
+        for (final Route route : trie.values()) {
+            if (route.backendPool.isHealthChecked()) {
+                if (healthChecker == null) {
+                    healthChecker = BackendPool.newHealthChecker();
+                }
+                route.backendPool.startHealthChecks(getHttpClient(), healthChecker);
+            }
+        }
+    }
+
+    /**
+     * @return The {@code route.<name>.*} properties, grouped by route name
+     */
+    static Map<String, Map<String, String>> routeProperties(final Map<String, ?> properties) {
+        final Map<String, Map<String, String>> result = new TreeMap<>();
+        for (final Map.Entry<String, ?> entry : properties.entrySet()) {
+            final String key = entry.getKey();
+            final int dot = key.indexOf('.', ROUTE_PREFIX.length());
+            if (key.startsWith(ROUTE_PREFIX) && dot > ROUTE_PREFIX.length()) {
+                result.computeIfAbsent(key.substring(ROUTE_PREFIX.length(), dot), k -> new TreeMap<>())
+                        .put(key.substring(dot + 1), String.valueOf(entry.getValue()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The routes new requests are given
+     */
+    Routing getRouting() {
+        return routing;
+    }
+
+    private static int intProperty(final Map<String, String> properties, final String key, final int defaultValue) {
+        final String value = properties.get(key);
+        return StringUtils.isBlank(value) ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public void setEventAdmin(final EventAdmin eventAdmin) {
+        this.eventAdmin = eventAdmin;
+        if (metrics != null) {
+            metrics.setEventAdmin(eventAdmin);
+        }
+    }
+
+    /**
+     * One version of the router's configuration: its alias and the routes under it. Never changes once built, but
+     * counts the requests using it, so its routes' health checks stop only once it is replaced and they have finished.
+     */
+    static class Routing {
+        private final String proxyId;
+        private final String alias;
+        private final RouteTrie<Route> routes;
+        private final AtomicInteger inflight = new AtomicInteger();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile boolean retired;
+
+        Routing(final String proxyId, final String alias, final RouteTrie<Route> routes) {
+            this.proxyId = proxyId;
+            this.alias = alias;
+            this.routes = routes;
+        }
+
+        String getAlias() {
+            return alias;
+        }
+
+        RouteTrie<Route> getRoutes() {
+            return routes;
+        }
+
+        void enter() {
+            inflight.incrementAndGet();
+        }
+
+        void exit() {
+            if (inflight.decrementAndGet() <= 0 && retired) {
+                release();
+            }
+        }
+
+        int getInflight() {
+            return inflight.get();
+        }
+
+        /**
+         * Marks the routes as replaced, releasing them now if no request is using them, or else when the last one
+         * finishes.
+         */
+        void retire() {
+            retired = true;
+            if (inflight.get() <= 0) {
+                release();
+            }
+        }
+
+        boolean isReleased() {
+            return released.get();
+        }
+
+        /**
+         * Releases the routes whether or not requests are still using them, when the router is stopping.
+         */
+        void close() {
+            retired = true;
+            release();
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                for (final Route route : routes.values()) {
+                    route.backendPool.close();
+                }
+            }
+        }
+
+        /**
+         * @return The route with the longest prefix of the request's path below the alias, or null if none matches
+         */
+        RouteTrie.Match<Route> match(final HttpServletRequest clientRequest) {
+            return routes.match(StringUtils.removeStart(clientRequest.getRequestURI(), alias));
+        }
+
+        /**
+         * @return The URL on the backend of the request, with the alias and the route's prefix removed
+         */
+        String targetUrl(final HttpServletRequest clientRequest, final RouteTrie.Match<Route> match, final Backend backend) {
+            final String path = StringUtils.removeStart(clientRequest.getRequestURI(), alias);
+            final StringBuilder sb = new StringBuilder(StringUtils.removeEnd(backend.getUrl(), "/"));
+            sb.append(path.substring(match.getLength()));
+            if (StringUtils.isNotEmpty(clientRequest.getQueryString())) {
+                sb.append('?').append(clientRequest.getQueryString());
+            }
+            return sb.toString();
+        }
+
+        static Routing fromProperties(final Map<String, String> properties) {
+            final RouteTrie<Route> routes = new RouteTrie<>();
+            for (final Map.Entry<String, Map<String, String>> entry : routeProperties(properties).entrySet()) {
+                final Route route = Route.of(entry.getKey(), entry.getValue());
+                routes.put(route.prefix, route);
+            }
+            return new Routing(
+                    UiProxyConfig.getFromProperties(properties, UiProxyConfig.SERVICE_PID, false, ""),
+                    UiProxyConfig.getFromProperties(properties, UiProxyConfig.ALIAS, true, ""),
+                    routes);
+        }
+    }
+
+    /**
+     * A prefix and where its requests go.
+     */
+    static class Route {
+        private final String name;
+        private final String prefix;
+        private final String target;
+        private final BackendPool backendPool;
+        private final String authHeader;
+
+        private Route(final String name, final String prefix, final String target, final BackendPool backendPool, final String authHeader) {
+            this.name = name;
+            this.prefix = prefix;
+            this.target = target;
+            this.backendPool = backendPool;
+            this.authHeader = authHeader;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        BackendPool getBackendPool() {
+            return backendPool;
+        }
+
+        String getAuthHeader() {
+            return authHeader;
+        }
+
+        static Route of(final String name, final Map<String, String> properties) {
+            final String prefix = properties.get("prefix");
+            final String target = properties.get("target");
+            if (StringUtils.isBlank(prefix) || StringUtils.isBlank(target)) {
+                throw new MissingResourceException("Route [" + name + "] needs a prefix and a target", UiRoutingProxy.class.getName(), ROUTE_PREFIX + name);
+            }
+            final String authHeader = properties.containsKey(UiProxyConfig.USERNAME) && properties.containsKey(UiProxyConfig.PASSWORD)
+                    ? UiProxyConfig.generateAuthHeader(properties.get(UiProxyConfig.USERNAME), properties.get(UiProxyConfig.PASSWORD))
+                    : null;
+            return new Route(name, prefix, target, BackendPool.fromProperties(target, properties), authHeader);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jetty.client.api.ContentProvider;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.client.util.PathContentProvider;
+import org.eclipse.jetty.http.HttpHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Receives request bodies in full before they are sent upstream, so a slow client never ties up a connection to the
+ * target, and the target receives the body as fast as it can read it.
+ * <p>
+ * A body is held in memory up to a threshold, then moved to a temporary file, so memory use per upload is bounded
+ * whatever its size. Bodies over the maximum size are refused, by their {@code Content-Length} before any of them
+ * is read, or as soon as they overrun it if they are chunked.
+ */
+public class UploadSpool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UploadSpool.class);
+    private static final Set<String> METHODS = ImmutableSet.of("POST", "PUT", "PATCH");
+
+    private final Path dir;
+    private final long maxBytes;
+    private final int memoryBytes;
+    private final LongAdder spooledBytes = new LongAdder();
+    private final LongAdder filesCreated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicLong diskBytes = new AtomicLong();
+
+    public UploadSpool(final Path dir, final long maxBytes, final int memoryBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.memoryBytes = memoryBytes;
+    }
+
+    /**
+     * @return Whether the request has a body this spool should take
+     */
+    public boolean accepts(final HttpServletRequest request) {
+        return METHODS.contains(request.getMethod().toUpperCase(Locale.ROOT))
+                && (request.getContentLengthLong() > 0 || request.getHeader(HttpHeader.TRANSFER_ENCODING.asString()) != null);
+    }
+
+    /**
+     * @return Whether the declared length is over the maximum, so the body should be refused unread
+     */
+    public boolean isTooLarge(final long contentLength) {
+        if (contentLength > maxBytes) {
+            rejected.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads the whole body.
+     *
+     * @throws TooLargeException if the body turns out to be over the maximum size
+     */
+    public Body spool(final InputStream in, final String contentType) throws IOException {
+        final ByteArrayOutputStream memory = new ByteArrayOutputStream(Math.min(memoryBytes, 8192));
+        final byte[] buffer = new byte[8192];
+        Path file = null;
+        OutputStream out = memory;
+        long length = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                length += read;
+                if (length > maxBytes) {
+                    rejected.increment();
+                    throw new TooLargeException(maxBytes);
+                }
+                if (file == null && length > memoryBytes) {
+                    Files.createDirectories(dir);
+                    file = Files.createTempFile(dir, "upload", ".tmp");
+                    filesCreated.increment();
+                    out = Files.newOutputStream(file);
+                    memory.writeTo(out);
+                }
+                out.write(buffer, 0, read);
+            }
+            out.close();
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+            throw e;
+        }
+        spooledBytes.add(length);
+        if (file == null) {
+            return new Body(contentType, memory.toByteArray(), null, length);
+        }
+        diskBytes.addAndGet(length);
+        return new Body(contentType, null, file, length);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getSpooledBytes() {
+        return spooledBytes.sum();
+    }
+
+    public long getFilesCreated() {
+        return filesCreated.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return The bytes of the bodies currently spooled to disk
+     */
+    public long getDiskBytes() {
+        return diskBytes.get();
+    }
+
+    /**
+     * A received body, which can be sent upstream any number of times until it is closed.
+     */
+    public class Body implements Closeable {
+        private final String contentType;
+        private final byte[] bytes;
+        private final Path file;
+        private final long length;
+        private boolean closed;
+
+        private Body(final String contentType, final byte[] bytes, final Path file, final long length) {
+            this.contentType = contentType;
+            this.bytes = bytes;
+            this.file = file;
+            this.length = length;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public boolean isOnDisk() {
+            return file != null;
+        }
+
+        public ContentProvider newContent() throws IOException {
+            return file == null ? new BytesContentProvider(contentType, bytes) : new PathContentProvider(contentType, file);
+        }
+
+        /**
+         * Deletes the body's file, if it has one. An upload still reading it keeps its open handle.
+         */
+        @Override
+        public synchronized void close() {
+            if (closed || file == null) {
+                return;
+            }
+            closed = true;
+            diskBytes.addAndGet(-length);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOG.debug("Could not delete spooled upload [{}]: {}", file, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Thrown when a body is over the maximum size.
+     */
+    public static class TooLargeException extends IOException {
+        public TooLargeException(final long maxBytes) {
+            super("Request body is over the maximum of " + maxBytes + " bytes");
+        }
+    }
+
+    public static UploadSpool fromProperties(final String proxyId, final Map<String, String> properties, final Path defaultDir) {
+        // see README for the meaning of each property
+        if (!Boolean.parseBoolean(properties.get("upload.enabled"))) {
+            return null;
+        }
+        final String dir = properties.get("upload.dir");
+        return new UploadSpool(
+                dir == null ? defaultDir.resolve(proxyId) : defaultDir.getFileSystem().getPath(dir),
+                Long.parseLong(StringUtils.defaultIfBlank(properties.get("upload.maxBytes"), String.valueOf(1L << 30))),
+                Integer.parseInt(StringUtils.defaultIfBlank(properties.get("upload.memoryBytes"), String.valueOf(1 << 20))));
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.http.HttpHeader;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rewrites the target's absolute URLs in HTML, CSS and JavaScript bodies to the proxy's alias, so a UI which embeds
+ * its own address keeps working behind the proxy.
+ * <p>
+ * Bodies are rewritten as they stream, byte by byte, which is safe for UTF-8 and any ASCII-compatible charset as
+ * URLs are ASCII. Only the last few bytes of each chunk, too few to rule out a URL starting there, are held back
+ * for the next chunk. The JSON-escaped form of each URL ({@code http:\/\/...}) is rewritten too. A URL is only
+ * rewritten where it ends, so {@code http://host/app} is not rewritten inside {@code http://host/application}.
+ */
+public class UrlRewriter {
+
+    private final byte[][] patterns;
+    private final byte[][] replacements;
+    private final boolean[] firstBytes = new boolean[256];
+    private final int maxPatternLength;
+    private final Set<String> types;
+    private final LongAdder rewrites = new LongAdder();
+    private final LongAdder responses = new LongAdder();
+
+    /**
+     * @param targets The target base URLs to replace
+     * @param alias The path they are replaced with
+     */
+    public UrlRewriter(final List<String> targets, final String alias, final Set<String> types) {
+        final Map<String, String> rules = new TreeMap<>(Comparator.comparingInt(String::length).reversed().thenComparing(Comparator.naturalOrder()));
+        final String replacement = StringUtils.removeEnd(alias, "/");
+        for (final String target : targets) {
+            final String url = StringUtils.removeEnd(target, "/");
+            rules.put(url, replacement);
+            rules.put(url.replace("/", "\\/"), replacement.replace("/", "\\/"));
+        }
+        // longest first, so a target which extends another is matched whole
+        this.patterns = new byte[rules.size()][];
+        this.replacements = new byte[rules.size()][];
+        int r = 0;
+        for (final Map.Entry<String, String> rule : rules.entrySet()) {
+            patterns[r] = rule.getKey().getBytes(StandardCharsets.US_ASCII);
+            replacements[r++] = rule.getValue().getBytes(StandardCharsets.US_ASCII);
+        }
+        int max = 0;
+        for (final byte[] pattern : patterns) {
+            firstBytes[pattern[0] & 0xff] = true;
+            max = Math.max(max, pattern.length);
+        }
+        this.maxPatternLength = max;
+        this.types = ImmutableSet.copyOf(types);
+    }
+
+    public boolean shouldRewrite(final Response serverResponse) {
+        if (serverResponse.getHeaders().containsKey(HttpHeader.CONTENT_ENCODING.asString())) {
+            return false;
+        }
+        final String type = StringUtils.substringBefore(
+                StringUtils.defaultString(serverResponse.getHeaders().get(HttpHeader.CONTENT_TYPE)), ";").trim().toLowerCase(Locale.ROOT);
+        return types.contains(type);
+    }
+
+    /**
+     * @return The value with a target URL at its start replaced, for headers such as {@code Location}
+     */
+    public String rewriteHeader(final String value) {
+        for (int i = 0; i < patterns.length; i++) {
+            final String url = new String(patterns[i], StandardCharsets.US_ASCII);
+            if (value.startsWith(url) && (value.length() == url.length() || !isUrlByte((byte) value.charAt(url.length())))) {
+                return new String(replacements[i], StandardCharsets.US_ASCII) + value.substring(url.length());
+            }
+        }
+        return value;
+    }
+
+    public Stream newStream() {
+        responses.increment();
+        return new Stream();
+    }
+
+    public long getRewrites() {
+        return rewrites.sum();
+    }
+
+    public long getResponses() {
+        return responses.sum();
+    }
+
+    /**
+     * @return Whether the byte could continue a URL path or host, so a match ending before it is not a whole URL
+     */
+    private static boolean isUrlByte(final byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '-' || b == '_' || b == '.';
+    }
+
+    /**
+     * The rewriting of one response body. Not thread-safe: the proxy delivers a response's content in order.
+     */
+    public class Stream {
+        private byte[] carry = new byte[0];
+
+        /**
+         * @return The rewritten bytes which are ready, possibly none
+         */
+        public byte[] write(final byte[] bytes, final int offset, final int length) {
+            if (carry.length == 0) {
+                return process(bytes, offset, offset + length, false);
+            }
+            final byte[] data = new byte[carry.length + length];
+            System.arraycopy(carry, 0, data, 0, carry.length);
+            System.arraycopy(bytes, offset, data, carry.length, length);
+            return process(data, 0, data.length, false);
+        }
+
+        /**
+         * @return The bytes held back at the end of the body, rewritten
+         */
+        public byte[] finish() {
+            final byte[] data = carry;
+            carry = new byte[0];
+            return process(data, 0, data.length, true);
+        }
+
+        private byte[] process(final byte[] data, final int start, final int end, final boolean last) {
+            // a match starting before the limit can be checked in full, including the byte after it
+            final int limit = last ? end : end - maxPatternLength;
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(end - start + 16);
+            int copied = start;
+            int i = start;
+            while (i < limit) {
+                if (firstBytes[data[i] & 0xff]) {
+                    final int match = matchAt(data, i, end);
+                    if (match >= 0) {
+                        out.write(data, copied, i - copied);
+                        out.write(replacements[match], 0, replacements[match].length);
+                        rewrites.increment();
+                        i += patterns[match].length;
+                        copied = i;
+                        continue;
+                    }
+                }
+                i++;
+            }
+            final int held = Math.max(i, copied);
+            out.write(data, copied, held - copied);
+            carry = held < end ? Arrays.copyOfRange(data, held, end) : new byte[0];
+            return out.toByteArray();
+        }
+
+        private int matchAt(final byte[] data, final int index, final int end) {
+            patterns:
+            for (int p = 0; p < patterns.length; p++) {
+                final byte[] pattern = patterns[p];
+                if (index + pattern.length > end) {
+                    continue;
+                }
+                for (int j = 0; j < pattern.length; j++) {
+                    if (data[index + j] != pattern[j]) {
+                        continue patterns;
+                    }
+                }
+                final int after = index + pattern.length;
+                if (after < end && isUrlByte(data[after])) {
+                    continue;
+                }
+                return p;
+            }
+            return -1;
+        }
+    }
+
+    public static UrlRewriter fromProperties(final List<String> targets, final String alias, final Map<String, String> properties) {
+        // see README for the meaning of each property
+        if (!Boolean.parseBoolean(properties.get("rewrite.enabled"))) {
+            return null;
+        }
+        return new UrlRewriter(targets, alias, ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(
+                StringUtils.defaultIfBlank(properties.get("rewrite.types"), "text/html,text/css,text/javascript,application/javascript")
+                        .toLowerCase(Locale.ROOT))));
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.base.Utf8;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.SuspendToken;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+/**
+ * The client-facing end of a proxied WebSocket, relaying frames to and from a WebSocket opened on the target.
+ * <p>
+ * Reading from the client is suspended until the target accepts the connection, so no frame is lost or reordered.
+ * After that, each side stops being read while a frame from it is being written to the other, so a slow reader holds
+ * back a fast writer rather than frames queueing up in memory.
+ * Closing either side closes the other with the same status, including a target connection which only opens after
+ * the client has gone.
+ */
+class WebSocketRelay implements WebSocketListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WebSocketRelay.class);
+
+    private final WebSocketClient client;
+    private final URI target;
+    private final ClientUpgradeRequest upgrade;
+    private final ProxyStreams.Stream stream;
+    private final long idleTimeoutMillis;
+    private final Runnable onClose;
+    private volatile boolean closed;
+    private volatile Session downstream;
+    private volatile Session upstream;
+    private volatile SuspendToken suspended;
+
+    WebSocketRelay(final WebSocketClient client, final URI target, final ClientUpgradeRequest upgrade,
+                   final ProxyStreams.Stream stream, final long idleTimeoutMillis, final Runnable onClose) {
+        this.client = client;
+        this.target = target;
+        this.upgrade = upgrade;
+        this.stream = stream;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public void onWebSocketConnect(final Session session) {
+        downstream = session;
+        session.setIdleTimeout(idleTimeoutMillis);
+        suspended = session.suspend();
+        try {
+            client.connect(new Upstream(), target, upgrade);
+        } catch (Exception e) {
+            LOG.debug("Failed to connect WebSocket to [{}]: {}", target, e.toString());
+            close(session, StatusCode.SERVER_ERROR, "Target unavailable");
+            finish();
+        }
+    }
+
+    @Override
+    public void onWebSocketText(final String message) {
+        stream.addIn(Utf8.encodedLength(message));
+        upstream.getRemote().sendString(message, new Delivery(downstream));
+    }
+
+    @Override
+    public void onWebSocketBinary(final byte[] payload, final int offset, final int length) {
+        stream.addIn(length);
+        upstream.getRemote().sendBytes(ByteBuffer.wrap(payload, offset, length), new Delivery(downstream));
+    }
+
+    @Override
+    public void onWebSocketClose(final int statusCode, final String reason) {
+        closed = true;
+        close(upstream, statusCode, reason);
+        finish();
+    }
+
+    @Override
+    public void onWebSocketError(final Throwable cause) {
+        LOG.debug("WebSocket to [{}] failed on the client side: {}", target, cause.toString());
+        closed = true;
+        close(upstream, StatusCode.SERVER_ERROR, "Client failed");
+        finish();
+    }
+
+    /**
+     * Frees the stream and ends the exchange; safe to call from either side, more than once.
+     */
+    private void finish() {
+        stream.close();
+        onClose.run();
+    }
+
+    private static void close(final Session session, final int statusCode, final String reason) {
+        if (session != null && session.isOpen()) {
+            // 1005 and 1006 describe a close with no frame, so cannot be sent in one
+            final int code = statusCode == StatusCode.NO_CODE || statusCode == StatusCode.ABNORMAL ? StatusCode.NORMAL : statusCode;
+            session.close(code, reason);
+        }
+    }
+
+    /**
+     * The end connected to the target.
+     */
+    private class Upstream implements WebSocketListener {
+
+        @Override
+        public void onWebSocketConnect(final Session session) {
+            upstream = session;
+            if (closed) {
+                // the client went while the target was connecting, so saw no upstream to close
+                close(session, StatusCode.NORMAL, "Client closed");
+                return;
+            }
+            session.setIdleTimeout(idleTimeoutMillis);
+            suspended.resume();
+        }
+
+        @Override
+        public void onWebSocketText(final String message) {
+            stream.addOut(Utf8.encodedLength(message));
+            downstream.getRemote().sendString(message, new Delivery(upstream));
+        }
+
+        @Override
+        public void onWebSocketBinary(final byte[] payload, final int offset, final int length) {
+            stream.addOut(length);
+            downstream.getRemote().sendBytes(ByteBuffer.wrap(payload, offset, length), new Delivery(upstream));
+        }
+
+        @Override
+        public void onWebSocketClose(final int statusCode, final String reason) {
+            close(downstream, statusCode, reason);
+            finish();
+        }
+
+        @Override
+        public void onWebSocketError(final Throwable cause) {
+            LOG.debug("WebSocket to [{}] failed on the target side: {}", target, cause.toString());
+            close(downstream, StatusCode.SERVER_ERROR, upstream == null ? "Target unavailable" : "Target failed");
+            finish();
+        }
+    }
+
+    /**
+     * Suspends reading from the sending side until a relayed frame is written, closing it if the frame cannot be.
+     * Created before the frame is sent, so reading is suspended however soon the write completes.
+     */
+    private static class Delivery implements WriteCallback {
+        private final Session source;
+        private final SuspendToken reading;
+
+        Delivery(final Session source) {
+            this.source = source;
+            this.reading = source.suspend();
+        }
+
+        @Override
+        public void writeFailed(final Throwable cause) {
+            close(source, StatusCode.SERVER_ERROR, "Relay failed");
+        }
+
+        @Override
+        public void writeSuccess() {
+            reading.resume();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.eclipse.jetty.client.HttpClient;
+import org.testng.annotations.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+
+public class BackendPoolTest {
+
+    private static final List<String> TARGETS = ImmutableList.of("http://a", "http://b", "http://c");
+
+    @Test
+    public void readsTargetsFromProperties() {
+        final BackendPool pool = BackendPool.fromProperties(" http://a , http://b,", ImmutableMap.of());
+        assertThat(pool.getBackends()).extracting(Backend::getUrl).containsExactly("http://a", "http://b");
+        assertThat(pool.getPrimary().getUrl()).isEqualTo("http://a");
+
+        assertThatThrownBy(() -> BackendPool.fromProperties(" , ", ImmutableMap.of()))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void spreadsTiesRoundRobin() {
+        final BackendPool pool = pool(BackendPool.Strategy.LEAST_OUTSTANDING, 5);
+        final Set<Backend> chosen = new HashSet<>();
+        for (int i = 0; i < TARGETS.size(); i++) {
+            chosen.add(pool.select());
+        }
+        assertThat(chosen).hasSize(TARGETS.size());
+    }
+
+    @Test
+    public void prefersLeastOutstanding() {
+        final BackendPool pool = pool(BackendPool.Strategy.LEAST_OUTSTANDING, 5);
+        final List<Backend> backends = pool.getBackends();
+        backends.get(0).begin();
+        backends.get(2).begin();
+        for (int i = 0; i < 10; i++) {
+            assertThat(pool.select()).isSameAs(backends.get(1));
+        }
+    }
+
+    @Test
+    public void powerOfTwoPrefersLessLoadedOfPair() {
+        final BackendPool pool = new BackendPool(ImmutableList.of("http://a", "http://b"), BackendPool.Strategy.POWER_OF_TWO,
+                5, 30_000, null, 10_000, 2_000);
+        pool.getBackends().get(0).begin();
+        for (int i = 0; i < 10; i++) {
+            assertThat(pool.select()).isSameAs(pool.getBackends().get(1));
+        }
+    }
+
+    @Test
+    public void skipsEjectedBackends() {
+        final BackendPool pool = pool(BackendPool.Strategy.LEAST_OUTSTANDING, 1);
+        final Backend ejected = pool.getBackends().get(0);
+        ejected.begin();
+        pool.onFailure(ejected, 0);
+        for (int i = 0; i < 10; i++) {
+            assertThat(pool.select()).isNotSameAs(ejected);
+        }
+    }
+
+    @Test
+    public void failsOpenWhenNoBackendIsAvailable() {
+        final BackendPool pool = pool(BackendPool.Strategy.LEAST_OUTSTANDING, 5);
+        for (final Backend backend : pool.getBackends()) {
+            backend.setHealthy(false);
+        }
+        assertThat(pool.select()).isIn(pool.getBackends());
+    }
+
+    @Test
+    public void backendFailingToProbeIsUnhealthy() throws InterruptedException {
+        final BackendPool pool = new BackendPool(TARGETS, BackendPool.Strategy.LEAST_OUTSTANDING, 5, 30_000,
+                "/health", 60_000, 2_000);
+        // a mock client returns no request, so each probe fails to start
+        pool.startHealthChecks(mock(HttpClient.class));
+        try {
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (pool.getBackends().get(2).isHealthy() && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            for (final Backend backend : pool.getBackends()) {
+                assertThat(backend.isHealthy()).isFalse();
+            }
+        } finally {
+            pool.close();
+        }
+        pool.close();
+    }
+
+    @Test
+    public void closingPoolLeavesSharedHealthCheckerRunning() throws InterruptedException {
+        final ScheduledExecutorService shared = BackendPool.newHealthChecker();
+        try {
+            final BackendPool first = new BackendPool(TARGETS, BackendPool.Strategy.LEAST_OUTSTANDING, 5, 30_000,
+                    "/health", 60_000, 2_000);
+            final BackendPool second = new BackendPool(TARGETS, BackendPool.Strategy.LEAST_OUTSTANDING, 5, 30_000,
+                    "/health", 60_000, 2_000);
+            first.startHealthChecks(mock(HttpClient.class), shared);
+            first.close();
+            second.startHealthChecks(mock(HttpClient.class), shared);
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (second.getBackends().get(2).isHealthy() && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            assertThat(second.getBackends().get(2).isHealthy()).isFalse();
+            assertThat(shared.isShutdown()).isFalse();
+            second.close();
+            assertThat(shared.isShutdown()).isFalse();
+        } finally {
+            shared.shutdownNow();
+        }
+    }
+
+    @Test
+    public void noHealthChecksWithoutPath() {
+        final BackendPool pool = pool(BackendPool.Strategy.LEAST_OUTSTANDING, 5);
+        pool.startHealthChecks(mock(HttpClient.class));
+        for (final Backend backend : pool.getBackends()) {
+            assertThat(backend.isHealthy()).isTrue();
+        }
+        pool.close();
+    }
+
+    private static BackendPool pool(final BackendPool.Strategy strategy, final int ejectionThreshold) {
+        return new BackendPool(TARGETS, strategy, ejectionThreshold, 30_000, null, 10_000, 2_000);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BackendTest {
+
+    private static final long EJECTION_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    @Test
+    public void tracksLoadAndStatistics() {
+        final Backend backend = new Backend("http://a");
+        backend.begin();
+        backend.begin();
+        assertThat(backend.getOutstanding()).isEqualTo(2);
+
+        backend.onSuccess(TimeUnit.MILLISECONDS.toNanos(2));
+        backend.onFailure(TimeUnit.MILLISECONDS.toNanos(4), 0, EJECTION_NANOS);
+        assertThat(backend.getOutstanding()).isZero();
+        assertThat(backend.getRequests()).isEqualTo(2);
+        assertThat(backend.getErrors()).isEqualTo(1);
+        assertThat(backend.getMeanLatencyMillis()).isEqualTo(3.0);
+        assertThat(backend.isAvailable()).isTrue();
+    }
+
+    @Test
+    public void ejectedAfterConsecutiveFailures() {
+        final Backend backend = new Backend("http://a");
+        assertThat(fail(backend, 3)).isFalse();
+        assertThat(fail(backend, 3)).isFalse();
+        assertThat(fail(backend, 3)).isTrue();
+        assertThat(backend.isAvailable()).isFalse();
+        // ejection is passive; the health checks still see it as healthy
+        assertThat(backend.isHealthy()).isTrue();
+    }
+
+    @Test
+    public void successBreaksRunOfFailures() {
+        final Backend backend = new Backend("http://a");
+        fail(backend, 2);
+        backend.begin();
+        backend.onSuccess(0);
+        assertThat(fail(backend, 2)).isFalse();
+        assertThat(backend.isAvailable()).isTrue();
+    }
+
+    @Test
+    public void neverEjectedWithoutThreshold() {
+        final Backend backend = new Backend("http://a");
+        for (int i = 0; i < 10; i++) {
+            assertThat(fail(backend, 0)).isFalse();
+        }
+        assertThat(backend.isAvailable()).isTrue();
+    }
+
+    @Test
+    public void returnsAfterEjection() throws InterruptedException {
+        final Backend backend = new Backend("http://a");
+        backend.begin();
+        assertThat(backend.onFailure(0, 1, TimeUnit.MILLISECONDS.toNanos(50))).isTrue();
+        assertThat(backend.isAvailable()).isFalse();
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertThat(backend.isAvailable()).isTrue();
+    }
+
+    @Test
+    public void unavailableWhileUnhealthy() {
+        final Backend backend = new Backend("http://a");
+        backend.setHealthy(false);
+        assertThat(backend.isAvailable()).isFalse();
+        backend.setHealthy(true);
+        assertThat(backend.isAvailable()).isTrue();
+    }
+
+    private static boolean fail(final Backend backend, final int threshold) {
+        backend.begin();
+        return backend.onFailure(0, threshold, EJECTION_NANOS);
+    }
+}
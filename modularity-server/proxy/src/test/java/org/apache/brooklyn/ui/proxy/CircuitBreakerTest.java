@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void opensOnErrorRateOnlyAfterMinimumCalls() {
+        final CircuitBreaker breaker = new CircuitBreaker("test", 0.5, 1.1, 10000, 4, 10, 60000, 1);
+        for (int i = 0; i < 3; i++) {
+            assertThat(breaker.tryAcquire()).isTrue();
+            breaker.onResult(0, true);
+        }
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+
+        breaker.tryAcquire();
+        breaker.onResult(0, false);
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.tryAcquire()).isFalse();
+        assertThat(breaker.getRejected()).isEqualTo(1);
+        assertThat(breaker.getRetryAfterMillis()).isPositive();
+    }
+
+    @Test
+    public void opensOnSlowCalls() {
+        final CircuitBreaker breaker = new CircuitBreaker("test", 1.1, 0.5, 100, 2, 10, 60000, 1);
+        breaker.tryAcquire();
+        breaker.onResult(200_000_000L, false);
+        breaker.tryAcquire();
+        breaker.onResult(200_000_000L, false);
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void halfOpenLetsTrialCallsThroughAndCloses() {
+        final CircuitBreaker breaker = new CircuitBreaker("test", 0.5, 1.1, 10000, 1, 10, 0, 2);
+        breaker.tryAcquire();
+        breaker.onResult(0, true);
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+
+        assertThat(breaker.tryAcquire()).isTrue();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        assertThat(breaker.tryAcquire()).isTrue();
+        assertThat(breaker.tryAcquire()).isFalse();
+        breaker.onResult(0, false);
+        breaker.onResult(0, false);
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void halfOpenReopensOnFailure() {
+        final CircuitBreaker breaker = new CircuitBreaker("test", 0.5, 1.1, 10000, 1, 10, 0, 2);
+        breaker.tryAcquire();
+        breaker.onResult(0, true);
+        breaker.tryAcquire();
+        breaker.onResult(0, true);
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    }
+}
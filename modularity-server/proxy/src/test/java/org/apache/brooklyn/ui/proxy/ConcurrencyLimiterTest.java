@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import org.testng.annotations.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class ConcurrencyLimiterTest {
+
+    @Test
+    public void rejectsOverLimitWithoutQueue() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 10, 0.5, 1000, 0, 0);
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        assertThat(limiter.acquire(request)).isEqualTo(ConcurrencyLimiter.Acquire.ACQUIRED);
+        assertThat(limiter.acquire(request)).isEqualTo(ConcurrencyLimiter.Acquire.ACQUIRED);
+        assertThat(limiter.acquire(request)).isEqualTo(ConcurrencyLimiter.Acquire.REJECTED);
+        assertThat(limiter.getInflight()).isEqualTo(2);
+        assertThat(limiter.getRejected()).isEqualTo(1);
+
+        limiter.release(0, false);
+        assertThat(limiter.getInflight()).isEqualTo(1);
+    }
+
+    @Test
+    public void backsOffOnFailureAndGrowsWhenSaturated() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 10, 0.5, 1000, 0, 0);
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        limiter.acquire(request);
+        limiter.release(0, true);
+        assertThat(limiter.getLimit()).isEqualTo(4);
+
+        limiter.acquire(request);
+        limiter.release(2_000_000_000L, false);
+        assertThat(limiter.getLimit()).isEqualTo(2);
+
+        limiter.acquire(request);
+        limiter.acquire(request);
+        limiter.release(0, false);
+        limiter.release(0, false);
+        assertThat(limiter.getLimit()).isEqualTo(2);
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire(request);
+            limiter.acquire(request);
+            limiter.release(0, false);
+            limiter.release(0, false);
+        }
+        assertThat(limiter.getLimit()).isGreaterThan(2);
+    }
+
+    @Test
+    public void handsPermitToQueuedRequest() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 0.5, 1000, 1, 500);
+        final HttpServletRequest first = mock(HttpServletRequest.class);
+        final HttpServletRequest second = mock(HttpServletRequest.class);
+        final AsyncContext async = mock(AsyncContext.class);
+        given(second.startAsync()).willReturn(async);
+        given(async.getRequest()).willReturn(second);
+
+        assertThat(limiter.acquire(first)).isEqualTo(ConcurrencyLimiter.Acquire.ACQUIRED);
+        assertThat(limiter.acquire(second)).isEqualTo(ConcurrencyLimiter.Acquire.QUEUED);
+        assertThat(limiter.getQueued()).isEqualTo(1);
+
+        limiter.release(0, false);
+        verify(second).setAttribute(ConcurrencyLimiter.ADMISSION, Boolean.TRUE);
+        verify(async).dispatch();
+        assertThat(limiter.getInflight()).isEqualTo(1);
+        assertThat(limiter.getQueued()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import org.testng.annotations.Test;
+
+import javax.security.auth.Subject;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CredentialCacheTest {
+
+    @Test
+    public void reusesSuccessfulLoginForSameCredentials() {
+        final CredentialCache cache = new CredentialCache(100, 60, 60, 3);
+        final Subject subject = new Subject();
+        cache.putSuccess(cache.key("admin", "secret"), cache.failureKey("admin", "10.0.0.1"), subject);
+        assertThat(cache.getSuccess(cache.key("admin", "secret"))).isSameAs(subject);
+        assertThat(cache.getSuccess(cache.key("admin", "other"))).isNull();
+        // the salt is per cache, so its keys mean nothing to another
+        assertThat(new CredentialCache(100, 60, 60, 3).key("admin", "secret")).isNotEqualTo(cache.key("admin", "secret"));
+    }
+
+    @Test
+    public void locksOutClientGuessingPasswordsForUser() {
+        final CredentialCache cache = new CredentialCache(100, 60, 60, 3);
+        final String failureKey = cache.failureKey("admin", "10.0.0.1");
+        // each guess is a different password, so only a count per user and client can catch them
+        for (int i = 0; i < 3; i++) {
+            assertThat(cache.isLockedOut(failureKey)).isFalse();
+            assertThat(cache.getSuccess(cache.key("admin", "guess" + i))).isNull();
+            cache.putFailure(failureKey);
+        }
+        assertThat(cache.isLockedOut(failureKey)).isTrue();
+        assertThat(cache.isLockedOut(cache.failureKey("admin", "10.0.0.2"))).isFalse();
+        assertThat(cache.isLockedOut(cache.failureKey("operator", "10.0.0.1"))).isFalse();
+    }
+
+    @Test
+    public void successForgetsClientFailures() {
+        final CredentialCache cache = new CredentialCache(100, 60, 60, 2);
+        final String failureKey = cache.failureKey("admin", "10.0.0.1");
+        cache.putFailure(failureKey);
+        cache.putSuccess(cache.key("admin", "secret"), failureKey, new Subject());
+        cache.putFailure(failureKey);
+        assertThat(cache.isLockedOut(failureKey)).isFalse();
+    }
+
+    @Test
+    public void failuresExpireAfterTtl() throws InterruptedException {
+        final CredentialCache cache = new CredentialCache(100, 60, 1, 1);
+        final String failureKey = cache.failureKey("admin", "10.0.0.1");
+        cache.putFailure(failureKey);
+        assertThat(cache.isLockedOut(failureKey)).isTrue();
+        Thread.sleep(1100);
+        assertThat(cache.isLockedOut(failureKey)).isFalse();
+    }
+
+    @Test
+    public void reportsHitsAndMissesOfBothTiers() {
+        final CredentialCache cache = new CredentialCache(100, 60, 60, 1);
+        final String key = cache.key("admin", "secret");
+        final String failureKey = cache.failureKey("admin", "10.0.0.1");
+        cache.getSuccess(key);
+        cache.putSuccess(key, failureKey, new Subject());
+        cache.getSuccess(key);
+        cache.isLockedOut(failureKey);
+        cache.putFailure(failureKey);
+        cache.isLockedOut(failureKey);
+
+        assertThat(cache.getStats())
+                .containsEntry("success.hits", 1L)
+                .containsEntry("success.misses", 1L)
+                .containsEntry("success.size", 1L)
+                .containsEntry("failure.hits", 1L)
+                .containsEntry("failure.misses", 1L)
+                .containsEntry("failure.size", 1L);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.collect.ImmutableListMultimap;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DiskCacheTierTest {
+
+    @Test
+    public void closingOneTierLeavesAnotherInTheSameDirectory() throws IOException {
+        final Path parent = Files.createTempDirectory("disk-cache-tier-test");
+        final DiskCacheTier replaced = new DiskCacheTier(parent, 1 << 20);
+        replaced.put("a", entry("old"));
+        final DiskCacheTier current = new DiskCacheTier(parent, 1 << 20);
+        current.put("a", entry("new"));
+        assertThat(current.getDir()).isNotEqualTo(replaced.getDir());
+
+        replaced.close();
+        assertThat(replaced.getDir()).doesNotExist();
+        final ResponseCache.Entry hit = current.get("a");
+        assertThat(hit).isNotNull();
+        assertThat(StandardCharsets.UTF_8.decode(hit.getResponse().getBody()).toString()).isEqualTo("new");
+
+        current.close();
+        assertThat(current.getDir()).doesNotExist();
+        Files.delete(parent);
+    }
+
+    @Test
+    public void clearDeletesOnlyIndexedFiles() throws IOException {
+        final Path parent = Files.createTempDirectory("disk-cache-tier-test");
+        final DiskCacheTier tier = new DiskCacheTier(parent, 1 << 20);
+        tier.put("a", entry("body"));
+        final Path other = Files.createFile(tier.getDir().resolve("notes.txt"));
+
+        tier.clear();
+        assertThat(tier.get("a")).isNull();
+        assertThat(tier.getSizeBytes()).isZero();
+        try (Stream<Path> files = Files.list(tier.getDir())) {
+            assertThat(files).containsExactly(other);
+        }
+        Files.delete(other);
+        tier.close();
+        Files.delete(parent);
+    }
+
+    @Test
+    public void removesDirectoriesOfTiersNoLongerOpen() throws IOException {
+        final Path parent = Files.createTempDirectory("disk-cache-tier-test");
+        final Path abandoned = Files.createDirectory(parent.resolve("tier-from-last-run"));
+        Files.write(abandoned.resolve("spill1.tmp"), new byte[1]);
+        final DiskCacheTier tier = new DiskCacheTier(parent, 1 << 20);
+        assertThat(abandoned).doesNotExist();
+        tier.close();
+        Files.delete(parent);
+    }
+
+    private static ResponseCache.Entry entry(final String body) {
+        final long now = System.currentTimeMillis();
+        return new ResponseCache.Entry(new BufferedResponse(200, ImmutableListMultimap.of("Cache-Control", "max-age=60"),
+                ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8))), now, now + 60_000);
+    }
+}
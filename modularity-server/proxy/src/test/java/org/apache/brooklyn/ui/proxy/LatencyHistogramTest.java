@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void reportsUpperBoundOfPercentileBucket() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        record(histogram, 50, 1);
+        record(histogram, 45, 7);
+        record(histogram, 5, 300);
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+        assertThat(snapshot.getCount()).isEqualTo(100);
+        assertThat(snapshot.getMeanMillis()).isCloseTo(18.65, within(0.01));
+        assertThat(snapshot.getMaxMillis()).isEqualTo(300);
+        assertThat(snapshot.getPercentileMillis(0.50)).isEqualTo(1);
+        assertThat(snapshot.getPercentileMillis(0.95)).isEqualTo(10);
+        // the bucket bound is capped at the largest value seen
+        assertThat(snapshot.getPercentileMillis(0.99)).isEqualTo(300);
+    }
+
+    @Test
+    public void reportsMaxForOverflowBucket() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        record(histogram, 1, 5);
+        record(histogram, 1, 90_000);
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+        assertThat(snapshot.getPercentileMillis(0.50)).isEqualTo(5);
+        assertThat(snapshot.getPercentileMillis(0.99)).isEqualTo(90_000);
+    }
+
+    @Test
+    public void snapshotResetsHistogram() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        record(histogram, 3, 20);
+        assertThat(histogram.snapshotAndReset().getCount()).isEqualTo(3);
+
+        final LatencyHistogram.Snapshot empty = histogram.snapshotAndReset();
+        assertThat(empty.getCount()).isZero();
+        assertThat(empty.getMeanMillis()).isZero();
+        assertThat(empty.getMaxMillis()).isZero();
+        assertThat(empty.getPercentileMillis(0.99)).isZero();
+    }
+
+    private static void record(final LatencyHistogram histogram, final int times, final long millis) {
+        for (int i = 0; i < times; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+}
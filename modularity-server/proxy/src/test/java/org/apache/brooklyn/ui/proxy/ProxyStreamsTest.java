@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ProxyStreamsTest {
+
+    @Test
+    public void capsOpenStreams() {
+        final ProxyStreams streams = new ProxyStreams(2, 1000);
+        final ProxyStreams.Stream first = streams.tryOpen("websocket", "ws://example.com/a");
+        final ProxyStreams.Stream second = streams.tryOpen("event-stream", "http://example.com/b");
+        assertThat(first).isNotNull();
+        assertThat(second).isNotNull();
+        assertThat(streams.tryOpen("websocket", "ws://example.com/c")).isNull();
+        assertThat(streams.getActive()).isEqualTo(2);
+        assertThat(streams.getOpened()).isEqualTo(2);
+        assertThat(streams.getRejected()).isEqualTo(1);
+
+        // closing twice frees one place only
+        first.close();
+        first.close();
+        assertThat(streams.getActive()).isEqualTo(1);
+        assertThat(streams.tryOpen("websocket", "ws://example.com/c")).isNotNull();
+        assertThat(streams.tryOpen("websocket", "ws://example.com/d")).isNull();
+    }
+
+    @Test
+    public void countsBytesPerStreamAndInTotal() {
+        final ProxyStreams streams = new ProxyStreams(10, 1000);
+        final ProxyStreams.Stream a = streams.tryOpen("websocket", "ws://example.com/a");
+        final ProxyStreams.Stream b = streams.tryOpen("websocket", "ws://example.com/b");
+        a.addIn(10);
+        a.addOut(100);
+        b.addIn(5);
+        assertThat(a.getIn()).isEqualTo(10);
+        assertThat(a.getOut()).isEqualTo(100);
+        assertThat(b.getOut()).isZero();
+        assertThat(streams.getBytesIn()).isEqualTo(15);
+        assertThat(streams.getBytesOut()).isEqualTo(100);
+    }
+
+    @Test
+    public void readsLimitsFromProperties() {
+        final ProxyStreams defaults = ProxyStreams.fromProperties(ImmutableMap.of());
+        assertThat(defaults.getIdleTimeoutMillis()).isEqualTo(300_000);
+        final ProxyStreams configured = ProxyStreams.fromProperties(ImmutableMap.of("streams.max", "1", "streams.idleTimeout", "5"));
+        assertThat(configured.getIdleTimeoutMillis()).isEqualTo(5000);
+        assertThat(configured.tryOpen("websocket", "ws://example.com")).isNotNull();
+        assertThat(configured.tryOpen("websocket", "ws://example.com")).isNull();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import org.osgi.service.http.HttpContext;
+import org.testng.annotations.Test;
+
+import javax.servlet.http.HttpServletRequest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+public class RateLimiterTest {
+
+    @Test
+    public void allowsBurstThenLimits() {
+        final RateLimiter limiter = new RateLimiter(1, 3, 100);
+        for (int i = 2; i >= 0; i--) {
+            final RateLimiter.Decision decision = limiter.acquire("user:admin");
+            assertThat(decision.isAllowed()).isTrue();
+            assertThat(decision.getRemaining()).isEqualTo(i);
+        }
+        final RateLimiter.Decision limited = limiter.acquire("user:admin");
+        assertThat(limited.isAllowed()).isFalse();
+        assertThat(limited.getRetryAfterSeconds()).isEqualTo(1);
+        assertThat(limiter.getLimited()).isEqualTo(1);
+    }
+
+    @Test
+    public void keepsSeparateBucketsPerKey() {
+        final RateLimiter limiter = new RateLimiter(1, 1, 100);
+        assertThat(limiter.acquire("user:a").isAllowed()).isTrue();
+        assertThat(limiter.acquire("user:a").isAllowed()).isFalse();
+        assertThat(limiter.acquire("user:b").isAllowed()).isTrue();
+    }
+
+    @Test
+    public void keysOnRemoteUserThenAddress() {
+        final HttpServletRequest authenticated = mock(HttpServletRequest.class);
+        given(authenticated.getAttribute(HttpContext.REMOTE_USER)).willReturn("admin");
+        final HttpServletRequest anonymous = mock(HttpServletRequest.class);
+        given(anonymous.getRemoteAddr()).willReturn("10.0.0.1");
+
+        assertThat(RateLimiter.key(authenticated)).isEqualTo("user:admin");
+        assertThat(RateLimiter.key(anonymous)).isEqualTo("addr:10.0.0.1");
+    }
+}
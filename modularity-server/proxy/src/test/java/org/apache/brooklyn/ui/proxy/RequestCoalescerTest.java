@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpFields;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RequestCoalescerTest {
+
+    private static final String URL = "http://example.com/api/catalog";
+
+    private RequestCoalescer coalescer;
+
+    @BeforeMethod
+    public void setup() {
+        coalescer = new RequestCoalescer(2, 1 << 16, ImmutableList.of("accept"));
+    }
+
+    @Test
+    public void onlyPlainGetsAreCoalescable() {
+        assertThat(coalescer.isCoalescable(request("GET", null))).isTrue();
+        assertThat(coalescer.isCoalescable(request("POST", null))).isFalse();
+        assertThat(coalescer.isCoalescable(request("GET", "Basic dXNlcjpwYXNz"))).isTrue();
+
+        final HttpServletRequest ranged = request("GET", null);
+        when(ranged.getHeader("Range")).thenReturn("bytes=0-10");
+        assertThat(coalescer.isCoalescable(ranged)).isFalse();
+
+        final HttpServletRequest bypassed = request("GET", null);
+        when(bypassed.getAttribute(RequestCoalescer.BYPASS)).thenReturn(Boolean.TRUE);
+        assertThat(coalescer.isCoalescable(bypassed)).isFalse();
+    }
+
+    @Test
+    public void identicalRequestsWaitForTheLeader() {
+        final RequestCoalescer.Flight flight = coalescer.join(URL, request("GET", null));
+        assertThat(flight).isNotNull();
+        assertThat(coalescer.join(URL, request("GET", null))).isNull();
+        assertThat(coalescer.getInFlight()).isEqualTo(1);
+
+        // different credentials never share a response
+        final RequestCoalescer.Flight other = coalescer.join(URL, request("GET", "Basic dXNlcjpwYXNz"));
+        assertThat(other).isNotNull();
+        assertThat(coalescer.getInFlight()).isEqualTo(2);
+    }
+
+    @Test
+    public void waitersBeyondTheCapGoUpstream() {
+        coalescer.join(URL, request("GET", null));
+        assertThat(coalescer.join(URL, request("GET", null))).isNull();
+        assertThat(coalescer.join(URL, request("GET", null))).isNull();
+
+        final RequestCoalescer.Flight overflow = coalescer.join(URL, request("GET", null));
+        assertThat(overflow).isNotNull();
+        assertThat(coalescer.getOverflows()).isEqualTo(1);
+        // completing an overflow flight leaves the real one in place
+        overflow.complete(null);
+        assertThat(coalescer.getInFlight()).isEqualTo(1);
+    }
+
+    @Test
+    public void waitersGetTheLeadersResponseAndCompleteTheirExchanges() throws IOException {
+        final UiProxyConfig config = UiProxyConfig.fromProperties(ImmutableMap.of("alias", "/ui", "target", "http://example.com"));
+        final RequestCoalescer.Flight flight = coalescer.join(URL, request("GET", null));
+        final HttpServletRequest waiting = request("GET", null);
+        final ProxyExchange exchange = ProxyExchange.begin(waiting, config);
+        when(waiting.getAttribute(ProxyExchange.class.getName())).thenReturn(exchange);
+        final AsyncContext waiter = waiting.startAsync();
+        assertThat(coalescer.join(URL, waiting)).isNull();
+        assertThat(config.getInflight()).isEqualTo(1);
+
+        final HttpServletResponse response = mock(HttpServletResponse.class);
+        final ServletOutputStream out = mock(ServletOutputStream.class);
+        when(response.getOutputStream()).thenReturn(out);
+        when(waiter.getResponse()).thenReturn(response);
+        flight.complete(new BufferedResponse(200, ImmutableListMultimap.of("ETag", "W/\"v1\""),
+                ByteBuffer.wrap("body".getBytes(StandardCharsets.UTF_8))));
+        final ArgumentCaptor<Runnable> write = ArgumentCaptor.forClass(Runnable.class);
+        verify(waiter).start(write.capture());
+        write.getValue().run();
+
+        verify(response).setStatus(200);
+        verify(response).addHeader("ETag", "W/\"v1\"");
+        verify(out).write(any(byte[].class), eq(0), eq(4));
+        verify(waiter).complete();
+        assertThat(config.getInflight()).isZero();
+        assertThat(coalescer.getSaved()).isEqualTo(1);
+        assertThat(coalescer.getInFlight()).isZero();
+    }
+
+    @Test
+    public void waitersGetOnlyTheirOwnCorrelationId() throws IOException {
+        final UiProxyConfig config = UiProxyConfig.fromProperties(ImmutableMap.of("alias", "/ui", "target", "http://example.com"));
+        final HttpServletRequest leading = request("GET", null);
+        when(leading.getAttribute(ProxyExchange.class.getName())).thenReturn(ProxyExchange.begin(leading, config));
+        final RequestCoalescer.Flight flight = coalescer.join(URL, leading);
+        final HttpServletRequest waiting = request("GET", null);
+        final ProxyExchange exchange = ProxyExchange.begin(waiting, config);
+        when(waiting.getAttribute(ProxyExchange.class.getName())).thenReturn(exchange);
+        final AsyncContext waiter = waiting.startAsync();
+        coalescer.join(URL, waiting);
+
+        // upstream echoes the correlation ID the leader sent it
+        final Response serverResponse = mock(Response.class);
+        final HttpFields upstream = mock(HttpFields.class);
+        when(upstream.iterator()).thenReturn(ImmutableList.of(
+                new HttpField("Content-Type", "application/json"),
+                new HttpField("X-Correlation-ID", "leaders-id")).iterator());
+        when(serverResponse.getHeaders()).thenReturn(upstream);
+        when(serverResponse.getStatus()).thenReturn(200);
+        final UiProxy proxy = new UiProxy();
+        flight.complete(BufferedResponse.of(serverResponse, "{}".getBytes(StandardCharsets.UTF_8), mock(HttpServletResponse.class),
+                (name, value) -> proxy.filterServerResponseHeader(leading, serverResponse, name, value)));
+
+        final HttpServletResponse response = mock(HttpServletResponse.class);
+        final ListMultimap<String, String> sent = ArrayListMultimap.create();
+        doAnswer(invocation -> {
+            sent.removeAll(invocation.getArguments()[0]);
+            return sent.put((String) invocation.getArguments()[0], (String) invocation.getArguments()[1]);
+        }).when(response).setHeader(anyString(), anyString());
+        doAnswer(invocation -> sent.put((String) invocation.getArguments()[0], (String) invocation.getArguments()[1]))
+                .when(response).addHeader(anyString(), anyString());
+        when(response.getOutputStream()).thenReturn(mock(ServletOutputStream.class));
+        when(waiter.getResponse()).thenReturn(response);
+        // as the proxy does for every request on its way in
+        response.setHeader("X-Correlation-ID", exchange.getCorrelationId());
+        final ArgumentCaptor<Runnable> write = ArgumentCaptor.forClass(Runnable.class);
+        verify(waiter).start(write.capture());
+        write.getValue().run();
+
+        assertThat(sent.get("X-Correlation-ID")).containsExactly(exchange.getCorrelationId());
+        assertThat(sent.get("Content-Type")).containsExactly("application/json");
+    }
+
+    @Test
+    public void waitersAreRedispatchedWhenTheLeaderFails() {
+        final RequestCoalescer.Flight flight = coalescer.join(URL, request("GET", null));
+        final HttpServletRequest waiting = request("GET", null);
+        final AsyncContext waiter = waiting.startAsync();
+        coalescer.join(URL, waiting);
+
+        flight.complete(null);
+
+        verify(waiting).setAttribute(RequestCoalescer.BYPASS, Boolean.TRUE);
+        verify(waiter).dispatch();
+        verify(waiter, never()).start(any(Runnable.class));
+        assertThat(coalescer.getFallbacks()).isEqualTo(1);
+        // the next identical request leads a new flight
+        assertThat(coalescer.join(URL, request("GET", null))).isNotNull();
+    }
+
+    private static HttpServletRequest request(final String method, final String authorization) {
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        final AsyncContext async = mock(AsyncContext.class);
+        when(request.getMethod()).thenReturn(method);
+        when(request.getHeader("Authorization")).thenReturn(authorization);
+        when(request.getHeader("accept")).thenReturn("application/json");
+        when(request.startAsync()).thenReturn(async);
+        when(async.getRequest()).thenReturn(request);
+        return request;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class RequestTimingTest {
+
+    @Test
+    public void splitsRequestIntoPhases() throws InterruptedException {
+        final RequestTiming timing = new RequestTiming(System.nanoTime());
+        assertThat(timing.wasSent()).isFalse();
+        Thread.sleep(5);
+
+        final Request request = mock(Request.class);
+        timing.sent(request);
+        final ArgumentCaptor<Request.BeginListener> begin = ArgumentCaptor.forClass(Request.BeginListener.class);
+        final ArgumentCaptor<Response.BeginListener> firstByte = ArgumentCaptor.forClass(Response.BeginListener.class);
+        verify(request).onRequestBegin(begin.capture());
+        verify(request).onResponseBegin(firstByte.capture());
+
+        begin.getValue().onBegin(request);
+        Thread.sleep(20);
+        firstByte.getValue().onBegin(mock(Response.class));
+        Thread.sleep(10);
+        timing.end();
+
+        assertThat(timing.wasSent()).isTrue();
+        assertThat(timing.getProxyNanos()).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(5));
+        assertThat(timing.getFirstByteNanos()).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(20));
+        assertThat(timing.getTransferNanos()).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(10));
+        assertThat(timing.toServerTiming()).matches("proxy;dur=\\d+\\.\\d, connect;dur=\\d+\\.\\d, ttfb;dur=\\d+\\.\\d");
+    }
+
+    @Test
+    public void unreachedPhasesAreZero() {
+        final RequestTiming timing = new RequestTiming(System.nanoTime());
+        timing.sent(mock(Request.class));
+        timing.end();
+        assertThat(timing.getConnectNanos()).isZero();
+        assertThat(timing.getFirstByteNanos()).isZero();
+        assertThat(timing.getTransferNanos()).isZero();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class ResponseCacheTest {
+
+    private static final String URL = "http://example.com/bundle.js";
+
+    private ResponseCache cache;
+
+    @BeforeMethod
+    public void setup() {
+        cache = new ResponseCache(1 << 20, 1 << 16, null);
+    }
+
+    @Test
+    public void storesResponseWithMaxAge() {
+        final HttpServletRequest request = request(null, null);
+        cache.put(URL, request, response("Cache-Control", "max-age=60"), true);
+
+        final ResponseCache.Entry entry = cache.get(URL, request);
+        assertThat(entry).isNotNull();
+        assertThat(entry.getResponse().getBodyLength()).isEqualTo(4);
+        assertThat(cache.getHits()).isEqualTo(1);
+    }
+
+    @Test
+    public void doesNotStoreWithoutFreshnessOrWhenPrivate() {
+        final HttpServletRequest request = request(null, null);
+        cache.put(URL, request, response("ETag", "\"v1\""), true);
+        cache.put(URL, request, response("Cache-Control", "private, max-age=60"), true);
+        cache.put(URL, request, response("Cache-Control", "no-store"), true);
+
+        assertThat(cache.get(URL, request)).isNull();
+        assertThat(cache.getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    public void requiresPublicWhenClientCredentialsAreForwarded() {
+        final HttpServletRequest request = request("Basic dXNlcjpwYXNz", null);
+        cache.put(URL, request, response("Cache-Control", "max-age=60"), true);
+        assertThat(cache.get(URL, request)).isNull();
+
+        cache.put(URL, request, response("Cache-Control", "max-age=60"), false);
+        assertThat(cache.get(URL, request)).isNotNull();
+    }
+
+    @Test
+    public void keysOnVaryHeaders() {
+        final BufferedResponse response = new BufferedResponse(200,
+                ImmutableListMultimap.of("Cache-Control", "max-age=60", "Vary", "Accept-Language"),
+                ByteBuffer.wrap("body".getBytes(StandardCharsets.UTF_8)));
+        cache.put(URL, request(null, "en"), response, true);
+
+        assertThat(cache.get(URL, request(null, "en"))).isNotNull();
+        assertThat(cache.get(URL, request(null, "fr"))).isNull();
+    }
+
+    @Test
+    public void comparesETagsWeakly() {
+        assertThat(ResponseCache.matchesIfNoneMatch("W/\"v1\"", "\"v1\"")).isTrue();
+        assertThat(ResponseCache.matchesIfNoneMatch("\"v1\"", "\"v0\", W/\"v1\"")).isTrue();
+        assertThat(ResponseCache.matchesIfNoneMatch("\"v1\"", "*")).isTrue();
+        assertThat(ResponseCache.matchesIfNoneMatch("\"v1\"", "\"v2\"")).isFalse();
+        assertThat(ResponseCache.matchesIfNoneMatch("\"v1\"", null)).isFalse();
+    }
+
+    @Test
+    public void answersNotModifiedForETagTheClientWasSent() throws IOException {
+        final HttpServletRequest request = request(null, null);
+        cache.put(URL, request, new BufferedResponse(200,
+                ImmutableListMultimap.of("Cache-Control", "max-age=60", "ETag", "W/\"v1\""),
+                ByteBuffer.wrap("body".getBytes(StandardCharsets.UTF_8))), true);
+        given(request.getHeader("If-None-Match")).willReturn("W/\"v1\"");
+        final HttpServletResponse response = mock(HttpServletResponse.class);
+
+        cache.write(cache.get(URL, request), request, response, null);
+
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(response).setHeader("ETag", "W/\"v1\"");
+        verify(response, never()).getOutputStream();
+    }
+
+    @Test
+    public void compressesHitsForGzipClients() throws IOException {
+        final ResponseCompressor compressor = new ResponseCompressor(0, ImmutableSet.of("text/plain"), 6);
+        final HttpServletRequest request = request(null, null);
+        given(request.getHeader("Accept-Encoding")).willReturn("gzip");
+        cache.put(URL, request, new BufferedResponse(200,
+                ImmutableListMultimap.of("Cache-Control", "max-age=60", "Content-Type", "text/plain", "ETag", "\"v1\""),
+                ByteBuffer.wrap("body".getBytes(StandardCharsets.UTF_8))), true);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final HttpServletResponse response = mock(HttpServletResponse.class);
+        given(response.getOutputStream()).willReturn(new CapturingOutputStream(out));
+
+        cache.write(cache.get(URL, request), request, response, compressor);
+
+        verify(response).setHeader("Content-Encoding", "gzip");
+        verify(response).addHeader("ETag", "W/\"v1\"");
+        verify(response, never()).setContentLength(anyInt());
+        assertThat(ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))))
+                .isEqualTo("body".getBytes(StandardCharsets.UTF_8));
+        assertThat(compressor.getResponses()).isEqualTo(1);
+    }
+
+    private static BufferedResponse response(final String header, final String value) {
+        return new BufferedResponse(200, ImmutableListMultimap.of(header, value), ByteBuffer.wrap("body".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static HttpServletRequest request(final String authorization, final String language) {
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        given(request.getMethod()).willReturn("GET");
+        given(request.getHeader("Authorization")).willReturn(authorization);
+        given(request.getHeader("accept-language")).willReturn(language);
+        return request;
+    }
+
+    private static class CapturingOutputStream extends ServletOutputStream {
+        private final ByteArrayOutputStream out;
+
+        CapturingOutputStream(final ByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(final int b) {
+            out.write(b);
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(final WriteListener writeListener) {
+        }
+    }
+}
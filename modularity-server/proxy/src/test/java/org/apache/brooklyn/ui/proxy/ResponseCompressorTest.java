@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ResponseCompressorTest {
+
+    @Test
+    public void producesValidGzipAcrossChunks() throws IOException {
+        final ResponseCompressor compressor = new ResponseCompressor(0, ImmutableSet.of("application/json"), 6);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("{\"id\":").append(i).append(",\"name\":\"entity\"},");
+        }
+        final byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        final ResponseCompressor.Stream stream = compressor.newStream();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int offset = 0; offset < body.length; offset += 1000) {
+            out.write(stream.write(body, offset, Math.min(1000, body.length - offset)));
+        }
+        out.write(stream.finish());
+
+        final byte[] decompressed = ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())));
+        assertThat(decompressed).isEqualTo(body);
+        assertThat(compressor.getBytesIn()).isEqualTo(body.length);
+        assertThat(compressor.getBytesOut()).isEqualTo(out.size());
+        assertThat(compressor.getSavedRatio()).isGreaterThan(0.5);
+    }
+
+    @Test
+    public void negotiatesGzip() {
+        assertThat(ResponseCompressor.acceptsGzip("gzip, deflate, br")).isTrue();
+        assertThat(ResponseCompressor.acceptsGzip("*")).isTrue();
+        assertThat(ResponseCompressor.acceptsGzip("gzip;q=0")).isFalse();
+        assertThat(ResponseCompressor.acceptsGzip("br")).isFalse();
+        assertThat(ResponseCompressor.acceptsGzip(null)).isFalse();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RetryBudgetTest {
+
+    @Test
+    public void retriesAreOffUnlessConfigured() {
+        assertThat(RetryBudget.fromProperties(ImmutableMap.of())).isNull();
+        assertThat(RetryBudget.fromProperties(ImmutableMap.of("retry.max", "0"))).isNull();
+
+        final RetryBudget budget = RetryBudget.fromProperties(ImmutableMap.of("retry.max", "2"));
+        assertThat(budget.getMaxRetries()).isEqualTo(2);
+        assertThat(budget.isRetryable("GET")).isTrue();
+        assertThat(budget.isRetryable("PUT")).isFalse();
+        assertThat(budget.isRetryable("POST")).isFalse();
+        assertThat(RetryBudget.fromProperties(ImmutableMap.of("retry.max", "1", "retry.methods", "get, put"))
+                .isRetryable("PUT")).isTrue();
+    }
+
+    @Test
+    public void retriesArePaidFromRequests() {
+        final RetryBudget budget = new RetryBudget(0.5, 2, 1, ImmutableSet.of("GET"));
+        assertThat(budget.tryWithdraw()).isTrue();
+        assertThat(budget.tryWithdraw()).isTrue();
+        assertThat(budget.tryWithdraw()).isFalse();
+        assertThat(budget.getExhausted()).isEqualTo(1);
+
+        budget.onRequest();
+        assertThat(budget.tryWithdraw()).isFalse();
+        budget.onRequest();
+        assertThat(budget.getTokens()).isEqualTo(1.0);
+        assertThat(budget.tryWithdraw()).isTrue();
+    }
+}
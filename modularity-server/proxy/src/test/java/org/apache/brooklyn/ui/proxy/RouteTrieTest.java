@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class RouteTrieTest {
+
+    @Test
+    public void matchesLongestPrefixOnSegments() {
+        final RouteTrie<String> trie = new RouteTrie<>();
+        trie.put("/tools", "tools");
+        trie.put("/tools/grafana", "grafana");
+        trie.put("/app", "app");
+
+        assertThat(trie.match("/tools/grafana/d/1").getValue()).isEqualTo("grafana");
+        assertThat(trie.match("/tools/grafana/d/1").getLength()).isEqualTo("/tools/grafana".length());
+        assertThat(trie.match("/tools/kibana").getValue()).isEqualTo("tools");
+        assertThat(trie.match("/app").getValue()).isEqualTo("app");
+        assertThat(trie.match("/application")).isNull();
+        assertThat(trie.match("/")).isNull();
+        assertThat(trie.values()).containsExactly("tools", "grafana", "app");
+    }
+
+    @Test
+    public void rejectsDuplicatePrefix() {
+        final RouteTrie<String> trie = new RouteTrie<>();
+        trie.put("/app", "a");
+        assertThatThrownBy(() -> trie.put("/app/", "b")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void groupsRouteProperties() {
+        final Map<String, Map<String, String>> routes = UiRoutingProxy.routeProperties(ImmutableMap.of(
+                "alias", "/tools",
+                "route.grafana.prefix", "/grafana",
+                "route.grafana.target", "http://localhost:3000",
+                "route.kibana.prefix", "/kibana"));
+
+        assertThat(routes).containsOnlyKeys("grafana", "kibana");
+        assertThat(routes.get("grafana")).containsEntry("target", "http://localhost:3000");
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+public class UiProxyConfigTest {
+
+    @Test
+    public void readsSnapshotFromProperties() {
+        final UiProxyConfig config = UiProxyConfig.fromProperties(ImmutableMap.of(
+                "alias", "/ui", "target", "http://example.com", "username", "admin", "password", "secret"));
+        assertThat(config.getAlias()).isEqualTo("/ui");
+        assertThat(config.getTarget()).isEqualTo("http://example.com");
+        assertThat(config.isAuthenticated()).isTrue();
+        assertThat(config.getAuthHeader()).isEqualTo("Basic YWRtaW46c2VjcmV0");
+        assertThat(config.getBackendPool().getPrimary().getUrl()).isEqualTo("http://example.com");
+
+        assertThat(UiProxyConfig.fromProperties(ImmutableMap.of("alias", "/ui", "target", "http://example.com"))
+                .isAuthenticated()).isFalse();
+    }
+
+    @Test
+    public void readsFeaturesIntoSnapshot() {
+        final UiProxyConfig off = UiProxyConfig.fromProperties(ImmutableMap.of("alias", "/ui", "target", "http://example.com"));
+        assertThat(off.getResponseCache()).isNull();
+        assertThat(off.getCoalescer()).isNull();
+        assertThat(off.getRateLimiter()).isNull();
+        assertThat(off.getRetryBudget()).isNull();
+        assertThat(off.getStreams()).isNotNull();
+        assertThat(off.isServerTiming()).isTrue();
+        assertThat(off.getDrainTimeoutMillis()).isEqualTo(30_000);
+
+        final UiProxyConfig on = UiProxyConfig.fromProperties(ImmutableMap.<String, String>builder()
+                .put("alias", "/ui").put("target", "http://example.com")
+                .put("coalesce.enabled", "true").put("ratelimit.enabled", "true").put("retry.max", "2")
+                .put("timing.header", "false").put("drain.timeout", "5").build());
+        assertThat(on.getCoalescer()).isNotNull();
+        assertThat(on.getRateLimiter()).isNotNull();
+        assertThat(on.getRetryBudget().getMaxRetries()).isEqualTo(2);
+        assertThat(on.isServerTiming()).isFalse();
+        assertThat(on.getDrainTimeoutMillis()).isEqualTo(5_000);
+        // snapshots built afresh each have their own
+        assertThat(on.getStreams()).isNotSameAs(off.getStreams());
+    }
+
+    @Test
+    public void keepsStatefulFeaturesWhosePropertiesAreUnchanged() {
+        final Map<String, String> limited = ImmutableMap.<String, String>builder()
+                .put("alias", "/ui").put("target", "http://example.com").put("streams.max", "5")
+                .put("ratelimit.enabled", "true").put("concurrency.enabled", "true").put("circuit.enabled", "true")
+                .put("retry.max", "2").build();
+        final UiProxyConfig first = UiProxyConfig.fromProperties(limited);
+
+        final UiProxyConfig second = UiProxyConfig.fromProperties(ImmutableMap.<String, String>builder()
+                .putAll(limited).put("timing.header", "false").build(), first);
+        assertThat(second.getStreams()).isSameAs(first.getStreams());
+        assertThat(second.getRateLimiter()).isSameAs(first.getRateLimiter());
+        assertThat(second.getConcurrencyLimiter()).isSameAs(first.getConcurrencyLimiter());
+        assertThat(second.getCircuitBreaker()).isSameAs(first.getCircuitBreaker());
+        assertThat(second.getRetryBudget()).isSameAs(first.getRetryBudget());
+
+        final UiProxyConfig third = UiProxyConfig.fromProperties(ImmutableMap.<String, String>builder()
+                .putAll(limited).put("ratelimit.rate", "5").put("circuit.window", "20").build(), second);
+        assertThat(third.getRateLimiter()).isNotSameAs(second.getRateLimiter());
+        assertThat(third.getCircuitBreaker()).isNotSameAs(second.getCircuitBreaker());
+        assertThat(third.getStreams()).isSameAs(first.getStreams());
+        assertThat(third.getConcurrencyLimiter()).isSameAs(first.getConcurrencyLimiter());
+        assertThat(third.getRetryBudget()).isSameAs(first.getRetryBudget());
+    }
+
+    @Test
+    public void retiredSnapshotIsReleasedByItsLastRequest() {
+        final UiProxyConfig config = UiProxyConfig.fromProperties(ImmutableMap.of("alias", "/ui", "target", "http://example.com"));
+        config.enter();
+        config.enter();
+        config.retire();
+        assertThat(config.isReleased()).isFalse();
+        config.exit();
+        assertThat(config.isReleased()).isFalse();
+        config.exit();
+        assertThat(config.isReleased()).isTrue();
+    }
+
+    @Test
+    public void replacedCacheIsClosedOnlyOnceItsRequestsFinish() {
+        final Map<String, String> cached = ImmutableMap.of("alias", "/ui", "target", "http://example.com", "cache.enabled", "true");
+        final UiProxyConfig first = UiProxyConfig.fromProperties(cached);
+        final ResponseCache cache = first.getResponseCache();
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        given(request.getMethod()).willReturn("GET");
+        cache.put("http://example.com/app.js", request, new BufferedResponse(200,
+                ImmutableListMultimap.of("Cache-Control", "max-age=60"), ByteBuffer.wrap("body".getBytes(StandardCharsets.UTF_8))), false);
+
+        // kept by the next snapshot, so still open when the first is released
+        final UiProxyConfig second = UiProxyConfig.fromProperties(ImmutableMap.<String, String>builder()
+                .putAll(cached).put("timing.header", "false").build(), first);
+        assertThat(second.getResponseCache()).isSameAs(cache);
+        first.retire();
+        assertThat(cache.getMemoryEntries()).isEqualTo(1);
+
+        // replaced by the third, so closed when the last request using the second finishes
+        final UiProxyConfig third = UiProxyConfig.fromProperties(ImmutableMap.<String, String>builder()
+                .putAll(cached).put("cache.maxEntryBytes", "1024").build(), second);
+        assertThat(third.getResponseCache()).isNotSameAs(cache);
+        second.enter();
+        second.retire();
+        assertThat(cache.getMemoryEntries()).isEqualTo(1);
+        second.exit();
+        assertThat(cache.getMemoryEntries()).isZero();
+    }
+
+    @Test
+    public void drainWaitsForRequestsUntilDeadline() throws InterruptedException {
+        final UiProxyConfig config = UiProxyConfig.fromProperties(ImmutableMap.of("alias", "/ui", "target", "http://example.com"));
+        config.enter();
+        assertThat(config.awaitDrained(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100))).isFalse();
+
+        final Thread finisher = new Thread(() -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            config.exit();
+        });
+        finisher.start();
+        assertThat(config.awaitDrained(System.nanoTime() + TimeUnit.SECONDS.toNanos(5))).isTrue();
+        assertThat(config.getInflight()).isZero();
+    }
+}
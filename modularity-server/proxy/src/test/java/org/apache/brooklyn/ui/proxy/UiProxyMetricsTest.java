@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.collect.ImmutableMap;
+import org.mockito.ArgumentCaptor;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class UiProxyMetricsTest {
+
+    @Test
+    public void summaryCoversOnlyTheInterval() {
+        final UiProxyMetrics metrics = new UiProxyMetrics("test");
+        try {
+            metrics.setTags(ImmutableMap.of("id", "test"));
+            metrics.increment("requests");
+            metrics.increment("requests");
+            metrics.add("bytes.out", 100);
+            metrics.recordLatency("remote-latency", TimeUnit.MILLISECONDS.toNanos(20));
+            metrics.gauge("streams.active", () -> 4);
+
+            final Map<String, Object> first = metrics.snapshotAndReset();
+            assertThat(first).containsEntry("id", "test")
+                    .containsEntry("type", UiProxyMetrics.TYPE)
+                    .containsEntry("requests", 2L)
+                    .containsEntry("bytes.out", 100L)
+                    .containsEntry("remote-latency.count", 1L)
+                    .containsEntry("remote-latency.p50", 20L)
+                    .containsEntry("streams.active", 4);
+
+            metrics.increment("requests");
+            final Map<String, Object> second = metrics.snapshotAndReset();
+            assertThat(second).containsEntry("requests", 1L)
+                    .containsEntry("bytes.out", 0L)
+                    .containsEntry("remote-latency.count", 0L)
+                    .containsEntry("streams.active", 4);
+        } finally {
+            metrics.close();
+        }
+    }
+
+    @Test
+    public void queuesSummariesUntilThereIsAnEventAdmin() {
+        final UiProxyMetrics metrics = new UiProxyMetrics("test");
+        try {
+            // the queue holds 16 summaries, so the last two are dropped
+            for (int i = 0; i < 18; i++) {
+                metrics.increment("requests");
+                metrics.flush();
+            }
+            final EventAdmin eventAdmin = mock(EventAdmin.class);
+            metrics.setEventAdmin(eventAdmin);
+            verify(eventAdmin, timeout(5000).times(16)).postEvent(any(Event.class));
+
+            metrics.flush();
+            metrics.flush();
+            verify(eventAdmin, timeout(5000).times(18)).postEvent(any(Event.class));
+            final ArgumentCaptor<Event> events = ArgumentCaptor.forClass(Event.class);
+            verify(eventAdmin, times(18)).postEvent(events.capture());
+            final List<Event> posted = events.getAllValues();
+            assertThat(posted.get(0).getTopic()).isEqualTo(UiProxyMetrics.TOPIC);
+            assertThat(posted.get(0).getProperty("requests")).isEqualTo(1L);
+            assertThat(posted.get(16).getProperty("requests")).isEqualTo(0L);
+            assertThat(posted.get(16).getProperty("metrics.dropped")).isEqualTo(2L);
+            assertThat(posted.get(17).getProperty("metrics.dropped")).isEqualTo(0L);
+        } finally {
+            metrics.close();
+        }
+    }
+
+    @Test
+    public void instancesShareOneThread() {
+        final List<UiProxyMetrics> all = new ArrayList<>();
+        try {
+            for (int i = 0; i < 3; i++) {
+                final UiProxyMetrics metrics = new UiProxyMetrics("test-" + i);
+                metrics.schedule(10);
+                all.add(metrics);
+            }
+            final EventAdmin eventAdmin = mock(EventAdmin.class);
+            all.get(0).setEventAdmin(eventAdmin);
+            verify(eventAdmin, timeout(5000).atLeastOnce()).postEvent(any(Event.class));
+            assertThat(Thread.getAllStackTraces().keySet().stream()
+                    .filter(thread -> thread.getName().startsWith("brooklyn-ui-proxy-metrics"))
+                    .count()).isEqualTo(1);
+        } finally {
+            all.forEach(UiProxyMetrics::close);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Map;
+import java.util.MissingResourceException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class UiRoutingProxyTest {
+
+    private static final Map<String, String> PROPERTIES = ImmutableMap.<String, String>builder()
+            .put("service.pid", "router")
+            .put("alias", "/tools")
+            .put("route.grafana.prefix", "/grafana")
+            .put("route.grafana.target", "http://localhost:3000")
+            .put("route.kibana.prefix", "/kibana")
+            .put("route.kibana.target", "http://kibana1:5601/, http://kibana2:5601/")
+            .put("route.kibana.username", "admin")
+            .put("route.kibana.password", "secret")
+            .put("route.kibana-api.prefix", "/kibana/api")
+            .put("route.kibana-api.target", "http://kibana-api:5601")
+            .build();
+
+    private UiRoutingProxy proxy;
+
+    @BeforeMethod
+    public void setup() {
+        proxy = new UiRoutingProxy();
+        proxy.activate(PROPERTIES);
+    }
+
+    @Test
+    public void groupsRouteProperties() {
+        final Map<String, Map<String, String>> routes = UiRoutingProxy.routeProperties(ImmutableMap.<String, Object>builder()
+                .put("alias", "/tools")
+                .put("route.a.prefix", "/a")
+                .put("route.a.healthCheck.path", "/health")
+                .put("route.b.ejection.failures", 3)
+                .put("route.", "ignored")
+                .put("route..prefix", "ignored")
+                .put("route.c", "ignored")
+                .put("router.d.prefix", "ignored")
+                .build());
+
+        assertThat(routes.keySet()).containsExactly("a", "b");
+        assertThat(routes.get("a")).containsExactly(
+                entry("healthCheck.path", "/health"),
+                entry("prefix", "/a"));
+        assertThat(routes.get("b")).containsEntry("ejection.failures", "3");
+    }
+
+    @Test
+    public void buildsRoutesFromProperties() {
+        final UiRoutingProxy.Routing routing = UiRoutingProxy.Routing.fromProperties(PROPERTIES);
+        assertThat(routing.getAlias()).isEqualTo("/tools");
+        assertThat(routing.getRoutes().size()).isEqualTo(3);
+
+        final UiRoutingProxy.Route kibana = routing.match(request("/tools/kibana/app", null)).getValue();
+        assertThat(kibana.getName()).isEqualTo("kibana");
+        assertThat(kibana.getAuthHeader()).isEqualTo("Basic YWRtaW46c2VjcmV0");
+        assertThat(kibana.getBackendPool().getBackends()).hasSize(2);
+        assertThat(routing.match(request("/tools/grafana", null)).getValue().getAuthHeader()).isNull();
+    }
+
+    @Test
+    public void routeNeedsPrefixAndTarget() {
+        assertThatThrownBy(() -> UiRoutingProxy.Routing.fromProperties(ImmutableMap.of("alias", "/tools", "route.a.prefix", "/a")))
+                .isInstanceOf(MissingResourceException.class)
+                .hasMessageContaining("[a]");
+        assertThatThrownBy(() -> UiRoutingProxy.Routing.fromProperties(ImmutableMap.of("route.a.prefix", "/a", "route.a.target", "http://a")))
+                .isInstanceOf(MissingResourceException.class);
+    }
+
+    @Test
+    public void routesByLongestPrefix() {
+        assertThat(proxy.rewriteTarget(request("/tools/grafana/d/1", "orgId=1"))).isEqualTo("http://localhost:3000/d/1?orgId=1");
+        assertThat(proxy.rewriteTarget(request("/tools/kibana/api/status", null))).isEqualTo("http://kibana-api:5601/status");
+        assertThat(proxy.rewriteTarget(request("/tools/kibana/app", null))).matches("http://kibana[12]:5601/app");
+        assertThat(proxy.rewriteTarget(request("/tools/other", null))).isNull();
+    }
+
+    @Test
+    public void routesWithAliasAndRoutesOfOneVersion() {
+        proxy.modified(ImmutableMap.of("service.pid", "router", "alias", "/apps",
+                "route.grafana.prefix", "/metrics", "route.grafana.target", "http://grafana:3000"));
+
+        assertThat(proxy.rewriteTarget(request("/tools/grafana/d/1", null))).isNull();
+        assertThat(proxy.rewriteTarget(request("/apps/metrics/d/1", null))).isEqualTo("http://grafana:3000/d/1");
+    }
+
+    @Test
+    public void replacedRoutesAreReleasedOnceTheirRequestsFinish() {
+        final HttpServletRequest request = request("/tools/grafana/d/1", null);
+        final UiRoutingProxy.Routing before = proxy.getRouting();
+        final ProxyExchange exchange = ProxyExchange.begin(request, before);
+        when(request.getAttribute(ProxyExchange.class.getName())).thenReturn(exchange);
+
+        proxy.modified(ImmutableMap.of("service.pid", "router", "alias", "/tools",
+                "route.grafana.prefix", "/grafana", "route.grafana.target", "http://grafana:3000"));
+        assertThat(before.isReleased()).isFalse();
+        // still routed as when it arrived
+        assertThat(proxy.rewriteTarget(request)).isEqualTo("http://localhost:3000/d/1");
+        assertThat(proxy.rewriteTarget(request("/tools/grafana/d/1", null))).isEqualTo("http://grafana:3000/d/1");
+
+        exchange.complete();
+        assertThat(before.isReleased()).isTrue();
+        assertThat(proxy.getRouting().isReleased()).isFalse();
+    }
+
+    @Test
+    public void completesExchangeWhenNoRouteMatches() throws IOException {
+        final HttpServletRequest request = request("/tools/other", null);
+        final HttpServletResponse response = mock(HttpServletResponse.class);
+        final ProxyExchange exchange = ProxyExchange.begin(request);
+        when(request.getAttribute(ProxyExchange.class.getName())).thenReturn(exchange);
+
+        proxy.onProxyRewriteFailed(request, response);
+
+        verify(response).sendError(404);
+        assertThat(exchange.complete()).isFalse();
+    }
+
+    private static HttpServletRequest request(final String uri, final String query) {
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getRequestURI()).thenReturn(uri);
+        when(request.getQueryString()).thenReturn(query);
+        return request;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class UploadSpoolTest {
+
+    private Path dir;
+    private UploadSpool spool;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("upload-spool-test");
+        spool = new UploadSpool(dir, 64 * 1024, 1024);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(file -> file.toFile().delete());
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    public void keepsSmallBodiesInMemory() throws IOException {
+        final UploadSpool.Body body = spool.spool(new ByteArrayInputStream(bytes(512)), "application/octet-stream");
+        assertThat(body.isOnDisk()).isFalse();
+        assertThat(body.getLength()).isEqualTo(512);
+        assertThat(body.newContent().getLength()).isEqualTo(512);
+        assertThat(spool.getFilesCreated()).isZero();
+    }
+
+    @Test
+    public void spoolsLargeBodiesToDiskUntilClosed() throws IOException {
+        final byte[] data = bytes(40 * 1024);
+        final UploadSpool.Body body = spool.spool(new ByteArrayInputStream(data), "application/zip");
+        assertThat(body.isOnDisk()).isTrue();
+        assertThat(body.newContent().getLength()).isEqualTo(data.length);
+        assertThat(spool.getDiskBytes()).isEqualTo(data.length);
+        assertThat(spool.getSpooledBytes()).isEqualTo(data.length);
+        try (Stream<Path> files = Files.list(dir)) {
+            assertThat(read(files.findFirst().get())).isEqualTo(data);
+        }
+
+        body.close();
+        body.close();
+        assertThat(spool.getDiskBytes()).isZero();
+        try (Stream<Path> files = Files.list(dir)) {
+            assertThat(files.count()).isZero();
+        }
+    }
+
+    @Test
+    public void refusesBodiesOverTheMaximum() throws IOException {
+        assertThat(spool.isTooLarge(64 * 1024 + 1)).isTrue();
+        assertThat(spool.isTooLarge(-1)).isFalse();
+        assertThatThrownBy(() -> spool.spool(new ByteArrayInputStream(bytes(64 * 1024 + 1)), null))
+                .isInstanceOf(UploadSpool.TooLargeException.class);
+        assertThat(spool.getRejected()).isEqualTo(2);
+        try (Stream<Path> files = Files.list(dir)) {
+            assertThat(files.count()).isZero();
+        }
+    }
+
+    private byte[] read(final Path file) {
+        try {
+            return Files.readAllBytes(file);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] bytes(final int length) {
+        final byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UrlRewriterTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UrlRewriterTest.class);
+
+    private final UrlRewriter rewriter = new UrlRewriter(
+            ImmutableList.of("http://backend:8081/", "http://backend:8081/app"), "/proxy", ImmutableSet.of("text/html"));
+
+    @Test
+    public void rewritesUrlsSplitAcrossChunks() {
+        final String body = "<a href=\"http://backend:8081/app/x\">x</a><script src=\"http://backend:8081/lib.js\"></script>";
+        final String expected = "<a href=\"/proxy/x\">x</a><script src=\"/proxy/lib.js\"></script>";
+        for (int chunk = 1; chunk <= body.length(); chunk++) {
+            assertThat(rewrite(body, chunk)).as("chunks of %d", chunk).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void rewritesOnlyWholeUrls() {
+        assertThat(rewrite("http://backend:8081/application http://backend:80812/ http://backend:8081", 7))
+                .isEqualTo("/proxy/application http://backend:80812/ /proxy");
+    }
+
+    @Test
+    public void rewritesJsonEscapedUrls() {
+        assertThat(rewrite("{\"href\":\"http:\\/\\/backend:8081\\/app\\/x\"}", 5)).isEqualTo("{\"href\":\"\\/proxy\\/x\"}");
+    }
+
+    @Test
+    public void rewritesLocationHeader() {
+        assertThat(rewriter.rewriteHeader("http://backend:8081/app/login")).isEqualTo("/proxy/login");
+        assertThat(rewriter.rewriteHeader("http://elsewhere/app/login")).isEqualTo("http://elsewhere/app/login");
+    }
+
+    @Test(groups = "Integration")
+    public void throughputAgainstPassthrough() {
+        final StringBuilder sb = new StringBuilder();
+        while (sb.length() < 4 * 1024 * 1024) {
+            sb.append("<div class=\"entity\"><a href=\"http://backend:8081/app/v1/applications/abc\">application</a></div>\n");
+        }
+        final byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+        final int chunk = 8192;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            final ByteArrayOutputStream plain = new ByteArrayOutputStream(body.length);
+            for (int offset = 0; offset < body.length; offset += chunk) {
+                plain.write(body, offset, Math.min(chunk, body.length - offset));
+            }
+            final long plainNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            final UrlRewriter.Stream stream = rewriter.newStream();
+            final ByteArrayOutputStream rewritten = new ByteArrayOutputStream(body.length);
+            for (int offset = 0; offset < body.length; offset += chunk) {
+                final byte[] out = stream.write(body, offset, Math.min(chunk, body.length - offset));
+                rewritten.write(out, 0, out.length);
+            }
+            final byte[] tail = stream.finish();
+            rewritten.write(tail, 0, tail.length);
+            final long rewriteNanos = System.nanoTime() - start;
+
+            LOG.info("Passthrough {} MB/s, rewrite {} MB/s",
+                    mbPerSecond(body.length, plainNanos), mbPerSecond(body.length, rewriteNanos));
+            assertThat(rewritten.size()).isLessThan(plain.size());
+        }
+    }
+
+    private String rewrite(final String body, final int chunk) {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        final UrlRewriter.Stream stream = rewriter.newStream();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int offset = 0; offset < bytes.length; offset += chunk) {
+            final byte[] ready = stream.write(bytes, offset, Math.min(chunk, bytes.length - offset));
+            out.write(ready, 0, ready.length);
+        }
+        final byte[] tail = stream.finish();
+        out.write(tail, 0, tail.length);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static long mbPerSecond(final long bytes, final long nanos) {
+        return bytes * TimeUnit.SECONDS.toNanos(1) / Math.max(1, nanos) / (1024 * 1024);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.brooklyn.ui.proxy;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.SuspendToken;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WebSocketRelayTest {
+
+    private static final URI TARGET = URI.create("ws://example.com/socket");
+
+    private WebSocketClient client;
+    private ClientUpgradeRequest upgrade;
+    private ProxyStreams streams;
+    private AtomicInteger closes;
+    private WebSocketRelay relay;
+    private Session downstream;
+    private SuspendToken suspended;
+
+    @BeforeMethod
+    public void setUp() {
+        client = mock(WebSocketClient.class);
+        upgrade = new ClientUpgradeRequest();
+        streams = new ProxyStreams(10, 1000);
+        closes = new AtomicInteger();
+        relay = new WebSocketRelay(client, TARGET, upgrade, streams.tryOpen("websocket", TARGET.toString()), 1000, closes::incrementAndGet);
+        downstream = session();
+        suspended = mock(SuspendToken.class);
+        when(downstream.suspend()).thenReturn(suspended);
+    }
+
+    @Test
+    public void relaysFramesOnceTargetAccepts() throws IOException {
+        relay.onWebSocketConnect(downstream);
+        verify(downstream).suspend();
+        final Session upstream = session();
+        upstreamListener().onWebSocketConnect(upstream);
+        verify(suspended).resume();
+        verify(upstream).setIdleTimeout(1000);
+
+        relay.onWebSocketText("hello");
+        verify(upstream.getRemote()).sendString(eq("hello"), any(WriteCallback.class));
+        upstreamListener().onWebSocketBinary(new byte[]{1, 2, 3, 4}, 1, 2);
+        verify(downstream.getRemote()).sendBytes(eq(ByteBuffer.wrap(new byte[]{2, 3})), any(WriteCallback.class));
+        assertThat(streams.getBytesIn()).isEqualTo(5);
+        assertThat(streams.getBytesOut()).isEqualTo(2);
+
+        upstreamListener().onWebSocketClose(StatusCode.NORMAL, "Bye");
+        verify(downstream).close(StatusCode.NORMAL, "Bye");
+        assertThat(streams.getActive()).isZero();
+        assertThat(closes.get()).isPositive();
+    }
+
+    @Test
+    public void readsNoFurtherFrameUntilTheLastIsWritten() throws IOException {
+        final SuspendToken clientReading = mock(SuspendToken.class);
+        when(downstream.suspend()).thenReturn(suspended, clientReading);
+        relay.onWebSocketConnect(downstream);
+        final Session upstream = session();
+        final SuspendToken targetReading = mock(SuspendToken.class);
+        when(upstream.suspend()).thenReturn(targetReading);
+        upstreamListener().onWebSocketConnect(upstream);
+
+        relay.onWebSocketText("first");
+        verify(downstream, times(2)).suspend();
+        final ArgumentCaptor<WriteCallback> sent = ArgumentCaptor.forClass(WriteCallback.class);
+        verify(upstream.getRemote()).sendString(eq("first"), sent.capture());
+        verify(clientReading, never()).resume();
+        sent.getValue().writeSuccess();
+        verify(clientReading).resume();
+
+        upstreamListener().onWebSocketBinary(new byte[]{1, 2}, 0, 2);
+        verify(upstream).suspend();
+        final ArgumentCaptor<WriteCallback> received = ArgumentCaptor.forClass(WriteCallback.class);
+        verify(downstream.getRemote()).sendBytes(any(ByteBuffer.class), received.capture());
+        verify(targetReading, never()).resume();
+        received.getValue().writeFailed(new IOException("Broken pipe"));
+        verify(upstream).close(eq(StatusCode.SERVER_ERROR), anyString());
+        verify(targetReading, never()).resume();
+    }
+
+    @Test
+    public void closesTargetWhichConnectsAfterClientHasGone() throws IOException {
+        relay.onWebSocketConnect(downstream);
+        final WebSocketListener upstreamListener = upstreamListener();
+        relay.onWebSocketClose(StatusCode.SHUTDOWN, "Going away");
+        assertThat(streams.getActive()).isZero();
+        assertThat(closes.get()).isPositive();
+
+        final Session upstream = session();
+        upstreamListener.onWebSocketConnect(upstream);
+        verify(upstream).close(eq(StatusCode.NORMAL), anyString());
+        verify(suspended, never()).resume();
+    }
+
+    @Test
+    public void refusesClientWhenTargetCannotBeReached() throws IOException {
+        when(client.connect(any(), eq(TARGET), eq(upgrade))).thenThrow(new IOException("Connection refused"));
+        relay.onWebSocketConnect(downstream);
+        verify(downstream).close(eq(StatusCode.SERVER_ERROR), anyString());
+        assertThat(streams.getActive()).isZero();
+        assertThat(closes.get()).isPositive();
+    }
+
+    @Test
+    public void closesClientWhenTargetFails() throws IOException {
+        relay.onWebSocketConnect(downstream);
+        upstreamListener().onWebSocketError(new IOException("Connection refused"));
+        verify(downstream).close(eq(StatusCode.SERVER_ERROR), eq("Target unavailable"));
+        assertThat(streams.getActive()).isZero();
+    }
+
+    @Test
+    public void abnormalCloseIsPassedOnAsNormal() throws IOException {
+        relay.onWebSocketConnect(downstream);
+        final Session upstream = session();
+        upstreamListener().onWebSocketConnect(upstream);
+        relay.onWebSocketClose(StatusCode.ABNORMAL, "Disconnected");
+        verify(upstream).close(StatusCode.NORMAL, "Disconnected");
+        verify(downstream, never()).close(anyInt(), anyString());
+    }
+
+    private WebSocketListener upstreamListener() throws IOException {
+        final ArgumentCaptor<Object> listener = ArgumentCaptor.forClass(Object.class);
+        verify(client).connect(listener.capture(), eq(TARGET), eq(upgrade));
+        return (WebSocketListener) listener.getValue();
+    }
+
+    private static Session session() {
+        final Session session = mock(Session.class);
+        final RemoteEndpoint remote = mock(RemoteEndpoint.class);
+        when(session.getRemote()).thenReturn(remote);
+        when(session.isOpen()).thenReturn(true);
+        return session;
+    }
+}